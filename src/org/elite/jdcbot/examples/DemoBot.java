@@ -814,7 +814,7 @@ public class DemoBot extends EventjDCBotAdapter implements ShareManagerListener
 				//if the searching user had not download file list from this bot.
 				return customFL;
 			}
-			return ownFL.getFilelist();
+			return super.getOwnFL(u, certainity);
 		}
 	}
 
@@ -20,7 +20,6 @@
 package org.elite.jdcbot.framework;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import org.elite.jdcbot.shareframework.SearchResultSet;
@@ -28,318 +27,265 @@ import org.elite.jdcbot.shareframework.SearchSet;
 import org.slf4j.Logger;
 
 /**
- * Created on 31-May-08
+ * Created on 31-May-08<br>
+ * Calls the event methods of a jDCBot from its own thread.
+ * <p>
+ * Every event is a small object which calls the bot's event
+ * method directly with its typed arguments, hence dispatching
+ * needs no method lookup, casting or boxing.
+ * 
  * @since 0.7.1
- * @version 0.3
+ * @version 0.4
  * @author AppleGrew
  * 
  */
 public class BotEventDispatchThread extends Thread {
 	private static final Logger logger = GlobalObjects.getLogger(BotEventDispatchThread.class);
 
-	private static enum Method {
-		onDownloadComplete,
-		onUploadComplete,
-		onUploadStart,
-		onUpdateMyInfo,
-		onDownloadStart,
-		onActiveSearch,
-		onPassiveSearch,
-		onChannelMessage,
-		onPrivateMessage,
-		onQuit,
-		onJoin,
-		onPublicMessage,
-		onDisconnect,
-		onBotQuit,
-		onConnect2Client,
-		onConnect,
-		onSearchResult,
-		onSendCommandFailed,
-		onHubName
-	}
+	/**
+	 * Max number of events taken out of the queue at a time.
+	 */
+	private static final int BATCH_SIZE = 256;
 
-	private List<DispatchEntity> dispatch;
-	private volatile boolean running;
+	private final EventQueue<Event> dispatch = new EventQueue<Event>();
 	private jDCBot _bot;
 
 	public BotEventDispatchThread(jDCBot bot) {
 		super("jDCBot-EventDispatchThread");
-		dispatch = Collections.synchronizedList(new ArrayList<DispatchEntity>());
 		_bot = bot;
-		running = true;
 		start();
 	}
 
 	public void run() {
-		while (running) {
-			while (!dispatch.isEmpty()) {
-				DispatchEntity de = null;
-				de = dispatch.get(0);
-				dispatch.remove(0);
-
-				Method method = de.method;
-				Object args[] = de.params;
-
-				switch (method) {
-				case onDownloadComplete:
-					BotException e = (BotException) getArg(args, 3);
-					boolean success = (Boolean) getArg(args, 2);
-					if (_bot.getDownloadCentral() != null) {
-						e =
-							_bot.getDownloadCentral().onDownloadFinished((User) getArg(args, 0), (DUEntity) getArg(args, 1),
-									success, e);
-						if (success) {
-							if (e != null)
-								success = false;
-						} else if (e == null)
-							continue;
-					}
-					_bot.onDownloadComplete((User) getArg(args, 0), (DUEntity) getArg(args, 1), success, e);
-
-					break;
-				case onUploadComplete:
-					_bot.onUploadComplete((User) getArg(args, 0), (DUEntity) getArg(args, 1), (Boolean) getArg(args, 2),
-							(BotException) getArg(args, 3));
-
-					break;
-				case onUploadStart:
-					_bot.onUploadStart((User) getArg(args, 0), (DUEntity) getArg(args, 1));
-
-					break;
-				case onUpdateMyInfo:
-					_bot.onUpdateMyInfo((String) getArg(args, 0));
-
-					break;
-				case onDownloadStart:
-					if (_bot.getDownloadCentral() != null)
-						_bot.getDownloadCentral().onDownloadStart((DUEntity) getArg(args, 1), (User) getArg(args, 0));
-					_bot.onDownloadStart((User) getArg(args, 0), (DUEntity) getArg(args, 1));
-
-					break;
-				case onPassiveSearch:
-					_bot.onPassiveSearch((String) getArg(args, 0), (SearchSet) getArg(args, 1));
-
-					break;
-				case onActiveSearch:
-					_bot.onActiveSearch((String) getArg(args, 0), (Integer) getArg(args, 1), (SearchSet) getArg(args, 2));
-
-					break;
-				case onChannelMessage:
-					_bot.onChannelMessage((String) getArg(args, 0), (String) getArg(args, 1), (String) getArg(args, 2));
-
-					break;
-				case onPrivateMessage:
-					_bot.onPrivateMessage((String) getArg(args, 0), (String) getArg(args, 1));
-
-					break;
-				case onQuit:
-					_bot.onQuit((String) getArg(args, 0));
-
-					break;
-				case onJoin:
-					_bot.onJoin((String) getArg(args, 0));
-
-					break;
-				case onPublicMessage:
-					_bot.onPublicMessage((String) getArg(args, 0), (String) getArg(args, 1));
-
-					break;
-				case onDisconnect:
-					_bot.onDisconnect();
-
-					break;
-				case onBotQuit:
-					_bot.onBotQuit();
-
-					break;
-				case onConnect2Client:
-					_bot.onConnect2Client();
-
-					break;
-				case onConnect:
-					_bot.onConnect();
-
-					break;
-				case onSearchResult:
-					_bot.onSearchResult((String) getArg(args, 0), (String) getArg(args, 1), (Integer) getArg(args, 2),
-							(SearchResultSet) getArg(args, 3), (Integer) getArg(args, 4), (Integer) getArg(args, 5), (String) getArg(
-									args, 6));
-
-					break;
-				case onSendCommandFailed:
-					_bot.onSendCommandFailed((String) getArg(args, 0), (Throwable) getArg(args, 1), (JMethod) getArg(args, 1));
-					break;
-				case onHubName:
-					_bot.onHubName((String) getArg(args, 0));
-					break;
-				default:
-					try {
-						throw new NoSuchMethodException("Method :" + method);
-					} catch (NoSuchMethodException nsme) {
-						logger.error("No method " + method + " found.", nsme);
-					}
+		List<Event> batch = new ArrayList<Event>(BATCH_SIZE);
+		//Returns zero only after stopIt() and when all the pending events are delivered.
+		while (dispatch.take(batch, BATCH_SIZE) > 0) {
+			for (Event e : batch) {
+				try {
+					e.deliver();
+				} catch (RuntimeException re) {
+					logger.error("Exception in event handler " + e.name, re);
 				}
+				dispatch.delivered(e);
 			}
-			try {
-				if (dispatch.isEmpty()) {
-					sleep(100L);
-				}
-			} catch (InterruptedException e) {}
+			batch.clear();
 		}
 	}
 
-	private Object getArg(Object args[], int i) {
-		return (args == null ? null : args[i]);
+	/**
+	 * @return The queue of the events waiting to be delivered. Use it to
+	 * monitor the backlog.
+	 */
+	public EventQueue<?> getEventQueue() {
+		return dispatch;
 	}
 
 	public void stopIt() {
-		running = false;
-		this.interrupt();
+		dispatch.close();
 	}
 
-	private class DispatchEntity {
-		public Method method;
-		public Object params[];
+	/**
+	 * A single event. It knows which method of the bot to call and with what.
+	 */
+	private static abstract class Event extends EventQueue.Event {
+		/**
+		 * Used only for logging.
+		 */
+		final String name;
+
+		Event(String name) {
+			this.name = name;
+		}
+
+		abstract void deliver();
 	}
 
-	private void addToDispath(DispatchEntity de) {
-		dispatch.add(de);
-		this.interrupt();
+	private void dispatch(Event e) {
+		dispatch.add(e);
 	}
 
 	//*********Proxy functions*********/
-	void callOnDownloadComplete(User user, DUEntity due, boolean success, BotException e) {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onDownloadComplete;
-		de.params = new Object[] { user, due, success, e };
-		addToDispath(de);
+	void callOnDownloadComplete(final User user, final DUEntity due, final boolean success, final BotException e) {
+		dispatch(new Event("onDownloadComplete") {
+			@Override
+			void deliver() {
+				BotException ex = e;
+				boolean ok = success;
+				if (_bot.getDownloadCentral() != null) {
+					ex = _bot.getDownloadCentral().onDownloadFinished(user, due, ok, ex);
+					if (ok) {
+						if (ex != null)
+							ok = false;
+					} else if (ex == null)
+						return;
+				}
+				_bot.onDownloadComplete(user, due, ok, ex);
+			}
+		});
 	}
 
-	void callOnUploadComplete(User user, DUEntity due, boolean success, BotException e) {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onUploadComplete;
-		de.params = new Object[] { user, due, success, e };
-		addToDispath(de);
+	void callOnUploadComplete(final User user, final DUEntity due, final boolean success, final BotException e) {
+		dispatch(new Event("onUploadComplete") {
+			@Override
+			void deliver() {
+				_bot.onUploadComplete(user, due, success, e);
+			}
+		});
 	}
 
-	void callOnUploadStart(User user, DUEntity due) {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onUploadStart;
-		de.params = new Object[] { user, due };
-		addToDispath(de);
+	void callOnUploadStart(final User user, final DUEntity due) {
+		dispatch(new Event("onUploadStart") {
+			@Override
+			void deliver() {
+				_bot.onUploadStart(user, due);
+			}
+		});
 	}
 
-	void callOnUpdateMyInfo(String user) {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onUpdateMyInfo;
-		de.params = new Object[] { user };
-		addToDispath(de);
+	void callOnUpdateMyInfo(final String user) {
+		dispatch(new Event("onUpdateMyInfo") {
+			@Override
+			void deliver() {
+				_bot.onUpdateMyInfo(user);
+			}
+		});
 	}
 
-	void callOnDownloadStart(User user, DUEntity due) {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onDownloadStart;
-		de.params = new Object[] { user, due };
-		addToDispath(de);
+	void callOnDownloadStart(final User user, final DUEntity due) {
+		dispatch(new Event("onDownloadStart") {
+			@Override
+			void deliver() {
+				if (_bot.getDownloadCentral() != null)
+					_bot.getDownloadCentral().onDownloadStart(due, user);
+				_bot.onDownloadStart(user, due);
+			}
+		});
 	}
 
-	void callOnPassiveSearch(String user, SearchSet search) {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onPassiveSearch;
-		de.params = new Object[] { user, search };
-		addToDispath(de);
+	void callOnPassiveSearch(final String user, final SearchSet search) {
+		dispatch(new Event("onPassiveSearch") {
+			@Override
+			void deliver() {
+				_bot.onPassiveSearch(user, search);
+			}
+		});
 	}
 
-	void callOnActiveSearch(String ip, int port, SearchSet search) {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onActiveSearch;
-		de.params = new Object[] { ip, port, search };
-		addToDispath(de);
+	void callOnActiveSearch(final String ip, final int port, final SearchSet search) {
+		dispatch(new Event("onActiveSearch") {
+			@Override
+			void deliver() {
+				_bot.onActiveSearch(ip, port, search);
+			}
+		});
 	}
 
-	void callOnChannelMessage(String user, String channel, String message) {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onChannelMessage;
-		de.params = new Object[] { user, channel, message };
-		addToDispath(de);
+	void callOnChannelMessage(final String user, final String channel, final String message) {
+		dispatch(new Event("onChannelMessage") {
+			@Override
+			void deliver() {
+				_bot.onChannelMessage(user, channel, message);
+			}
+		});
 	}
 
-	void callOnPrivateMessage(String user, String message) {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onPrivateMessage;
-		de.params = new Object[] { user, message };
-		addToDispath(de);
+	void callOnPrivateMessage(final String user, final String message) {
+		dispatch(new Event("onPrivateMessage") {
+			@Override
+			void deliver() {
+				_bot.onPrivateMessage(user, message);
+			}
+		});
 	}
 
-	void callOnQuit(String user) {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onQuit;
-		de.params = new Object[] { user };
-		addToDispath(de);
+	void callOnQuit(final String user) {
+		dispatch(new Event("onQuit") {
+			@Override
+			void deliver() {
+				_bot.onQuit(user);
+			}
+		});
 	}
 
-	void callOnJoin(String user) {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onJoin;
-		de.params = new Object[] { user };
-		addToDispath(de);
+	void callOnJoin(final String user) {
+		dispatch(new Event("onJoin") {
+			@Override
+			void deliver() {
+				_bot.onJoin(user);
+			}
+		});
 	}
 
-	void callOnPublicMessage(String user, String message) {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onPublicMessage;
-		de.params = new Object[] { user, message };
-		addToDispath(de);
+	void callOnPublicMessage(final String user, final String message) {
+		dispatch(new Event("onPublicMessage") {
+			@Override
+			void deliver() {
+				_bot.onPublicMessage(user, message);
+			}
+		});
 	}
 
 	void callOnDisconnect() {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onDisconnect;
-		de.params = null;
-		addToDispath(de);
+		dispatch(new Event("onDisconnect") {
+			@Override
+			void deliver() {
+				_bot.onDisconnect();
+			}
+		});
 	}
 
 	void callOnBotQuit() {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onBotQuit;
-		de.params = null;
-		addToDispath(de);
+		dispatch(new Event("onBotQuit") {
+			@Override
+			void deliver() {
+				_bot.onBotQuit();
+			}
+		});
 	}
 
 	void callOnConnect2Client() {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onConnect2Client;
-		de.params = null;
-		addToDispath(de);
+		dispatch(new Event("onConnect2Client") {
+			@Override
+			void deliver() {
+				_bot.onConnect2Client();
+			}
+		});
 	}
 
 	void callOnConnect() {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onConnect;
-		de.params = null;
-		addToDispath(de);
+		dispatch(new Event("onConnect") {
+			@Override
+			void deliver() {
+				_bot.onConnect();
+			}
+		});
 	}
 
-	void callOnSearchResult(String senderNick, String senderIP, int senderPort, SearchResultSet result, int free_slots, int total_slots,
-			String hubName) {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onSearchResult;
-		de.params = new Object[] { senderNick, senderIP, senderPort, result, free_slots, total_slots, hubName };
-		addToDispath(de);
+	void callOnSearchResult(final String senderNick, final String senderIP, final int senderPort, final SearchResultSet result,
+			final int free_slots, final int total_slots, final String hubName) {
+		dispatch(new Event("onSearchResult") {
+			@Override
+			void deliver() {
+				_bot.onSearchResult(senderNick, senderIP, senderPort, result, free_slots, total_slots, hubName);
+			}
+		});
 	}
 
-	public void callOnSendCommandFailed(String msg, Throwable e, JMethod src) {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onSendCommandFailed;
-		de.params = new Object[] { msg, e, src };
-		addToDispath(de);
+	public void callOnSendCommandFailed(final String msg, final Throwable e, final JMethod src) {
+		dispatch(new Event("onSendCommandFailed") {
+			@Override
+			void deliver() {
+				_bot.onSendCommandFailed(msg, e, src);
+			}
+		});
 	}
 	
-	public void callOnHubName(String hubName) {
-		DispatchEntity de = new DispatchEntity();
-		de.method = Method.onHubName;
-		de.params = new Object[] { hubName };
-		addToDispath(de);
+	public void callOnHubName(final String hubName) {
+		dispatch(new Event("onHubName") {
+			@Override
+			void deliver() {
+				_bot.onHubName(hubName);
+			}
+		});
 	}
 }
@@ -19,7 +19,6 @@
  */
 package org.elite.jdcbot.framework;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
@@ -28,6 +27,9 @@ import java.net.UnknownHostException;
 /**
  * Created on 2-Aug-10<br>
  * Buffers the socket InputStream.
+ * <p>
+ * Since 1.2.0 the buffered stream is a {@link DCInputStream},
+ * so raw commands can be framed from it in bulk.
  * 
  * @author AppleGrew
  * @since 1.1.3
@@ -46,7 +48,7 @@ public class BufferedSocket extends Socket {
 
 	public synchronized InputStream getInputStream() throws IOException {
 		if( in == null) {
-			in = new BufferedInputStream(super.getInputStream());
+			in = new DCInputStream(super.getInputStream());
 		}
 		return in;
 	}
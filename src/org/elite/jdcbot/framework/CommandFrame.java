@@ -0,0 +1,93 @@
+/*
+ * CommandFrame.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.framework;
+
+import java.nio.charset.Charset;
+
+/**
+ * Created on 18-Oct-10<br>
+ * A light weight view of a single raw command (including
+ * the trailing pipe) lying in some byte buffer. Nothing is
+ * copied or decoded till {@link #toString()} is called.
+ * <p>
+ * The view is reused by its creator, hence it is valid only till
+ * the next command is read. Call {@link #toString()} if you
+ * need to keep it.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+final class CommandFrame implements CharSequence {
+	/**
+	 * DC protocol commands are read byte by byte into chars.
+	 */
+	static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+	private byte buf[];
+	private int off;
+	private int len;
+
+	void wrap(byte buf[], int off, int len) {
+		this.buf = buf;
+		this.off = off;
+		this.len = len;
+	}
+
+	@Override
+	public int length() {
+		return len;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= len)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + len);
+		return (char) (buf[off + index] & 0xFF);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if (start < 0 || end > len || start > end)
+			throw new IndexOutOfBoundsException("Start: " + start + ", End: " + end + ", Length: " + len);
+		return new String(buf, off + start, end - start, CHARSET);
+	}
+
+	boolean startsWith(String prefix) {
+		int plen = prefix.length();
+		if (plen > len)
+			return false;
+		for (int i = 0; i < plen; i++)
+			if ((buf[off + i] & 0xFF) != prefix.charAt(i))
+				return false;
+		return true;
+	}
+
+	boolean contentEquals(String s) {
+		return s.length() == len && startsWith(s);
+	}
+
+	@Override
+	public String toString() {
+		return new String(buf, off, len, CHARSET);
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * CommandHandler.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.framework;
+
+/**
+ * Created on 18-Oct-10<br>
+ * Handles one kind of raw command received from the hub.
+ * Register it using {@link jDCBot#registerCommandHandler(String, CommandHandler)}.
+ * <p>
+ * The handler is called from the thread reading the hub's socket, so it
+ * must return quickly. Move any long running work to some other thread.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+public interface CommandHandler {
+	/**
+	 * @param rawCommand The complete raw command (including the trailing '|').
+	 */
+	public void handleCommand(String rawCommand);
+}
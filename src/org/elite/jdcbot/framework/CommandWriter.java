@@ -0,0 +1,302 @@
+/*
+ * CommandWriter.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.framework;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+/**
+ * Created on 18-Oct-10<br>
+ * Coalesces raw commands meant for a single connection into
+ * few large writes. A command written into this is only
+ * appended to a pending buffer, which is written out when either
+ * it grows beyond the flush threshold or the oldest command in it
+ * has waited for the maximum latency.
+ * <p>
+ * The delayed flushes are timed by the shared timer of {@link ExecutionMode},
+ * but the writes themselves are made on the CommandWriter's own flushing
+ * executor, so a stalled connection cannot hold back the flushes of the others.
+ * By default this is a daemon thread of its own, which exits when the writer
+ * stays idle. If a delayed flush fails then the error is thrown by the next call
+ * to {@link #write(String)} or {@link #flush()}.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+public class CommandWriter {
+	private static final Logger logger = GlobalObjects.getLogger(CommandWriter.class);
+	/**
+	 * Flush threshold used when none is given.
+	 */
+	public static final int DEFAULT_FLUSH_THRESHOLD = 16 * 1024; //16 KB
+	private static final long FLUSHER_KEEP_ALIVE = 30; //seconds
+
+	/**
+	 * Runs the delayed flushes on the timer thread itself. Only for streams
+	 * whose writes never block, like that of a {@link HubConnection}.
+	 */
+	static final Executor NON_BLOCKING = new Executor() {
+		@Override
+		public void execute(Runnable r) {
+			r.run();
+		}
+	};
+
+	private final OutputStream out;
+	private final long maxLatency;
+	private final int flushThreshold;
+	/**
+	 * Held while writing into <i>out</i>, so that batches are
+	 * written in the order they were formed.
+	 */
+	private final Object writeLock = new Object();
+	private final Executor flushExecutor;
+	private final Runnable delayedFlush = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				flush();
+			} catch (IOException e) {
+				logger.error("Delayed flush failed.", e);
+				pendingError = e;
+			}
+		}
+	};
+	/**
+	 * Run on the shared timer, it only hands over the flush to <i>flushExecutor</i>.
+	 */
+	private final Runnable flushTrigger = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				flushExecutor.execute(delayedFlush);
+			} catch (RejectedExecutionException e) {
+				logger.error("Delayed flush rejected.", e);
+				synchronized (CommandWriter.this) {
+					flushScheduled = false;
+				}
+			}
+		}
+	};
+
+	private byte pending[];
+	private byte spare[];
+	private int pendingLen = 0;
+	private int pendingCmds = 0;
+	private boolean flushScheduled = false;
+	private volatile IOException pendingError = null;
+
+	private long commands = 0;
+	private long writes = 0;
+	private long bytes = 0;
+	private int maxBatch = 0;
+
+	/**
+	 * @param out Where the commands are finally written.
+	 * @param maxLatency The maximum time (in milliseconds) a command may wait
+	 * for others to join it. If this is zero then every command is written
+	 * immediately.
+	 */
+	public CommandWriter(OutputStream out, long maxLatency) {
+		this(out, maxLatency, DEFAULT_FLUSH_THRESHOLD);
+	}
+
+	/**
+	 * @param out Where the commands are finally written.
+	 * @param maxLatency The maximum time (in milliseconds) a command may wait
+	 * for others to join it. If this is zero then every command is written
+	 * immediately.
+	 * @param flushThreshold The pending commands are written as soon as their
+	 * size reaches this many bytes.
+	 */
+	public CommandWriter(OutputStream out, long maxLatency, int flushThreshold) {
+		this(out, maxLatency, flushThreshold, null);
+	}
+
+	/**
+	 * @param out Where the commands are finally written.
+	 * @param maxLatency The maximum time (in milliseconds) a command may wait
+	 * for others to join it. If this is zero then every command is written
+	 * immediately.
+	 * @param flushThreshold The pending commands are written as soon as their
+	 * size reaches this many bytes.
+	 * @param flushExecutor Runs the delayed flushes. It must not be shared with
+	 * other connections if writing into <i>out</i> can block. If this is null
+	 * then a thread of this writer's own is used.
+	 */
+	public CommandWriter(OutputStream out, long maxLatency, int flushThreshold, Executor flushExecutor) {
+		if (out == null)
+			throw new NullPointerException("OutputStream is null.");
+		if (maxLatency < 0)
+			throw new IllegalArgumentException("maxLatency cannot be negative.");
+		this.out = out;
+		this.maxLatency = maxLatency;
+		this.flushThreshold = Math.max(1, flushThreshold);
+		pending = new byte[Math.min(this.flushThreshold * 2, 64 * 1024)];
+		spare = new byte[pending.length];
+		if (flushExecutor == null && maxLatency != 0)
+			flushExecutor = new ThreadPoolExecutor(0, 1, FLUSHER_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread th = ExecutionMode.newThread(r, "CommandWriter-Flusher");
+							th.setDaemon(true);
+							return th;
+						}
+					});
+		this.flushExecutor = flushExecutor;
+	}
+
+	/**
+	 * Queues a raw command for sending.
+	 * @param cmd The raw command. It must end with '|', this won't append it.
+	 * @throws IOException If the previous delayed write failed, or if this
+	 * command triggered a write which failed.
+	 */
+	public void write(String cmd) throws IOException {
+		throwPendingError();
+
+		boolean flushNow;
+		synchronized (this) {
+			int len = cmd.length();
+			ensureCapacity(pendingLen + len);
+			for (int i = 0; i < len; i++)
+				pending[pendingLen + i] = (byte) cmd.charAt(i);
+			pendingLen += len;
+			pendingCmds++;
+
+			flushNow = maxLatency == 0 || pendingLen >= flushThreshold;
+			if (!flushNow && !flushScheduled) {
+				flushScheduled = true;
+				ExecutionMode.getTimer().schedule(flushTrigger, maxLatency, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		if (flushNow)
+			flush();
+	}
+
+	/**
+	 * Writes all the pending commands now.
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		synchronized (writeLock) {
+			byte batch[];
+			int len, cmds;
+			synchronized (this) {
+				flushScheduled = false;
+				if (pendingLen == 0)
+					return;
+				batch = pending;
+				len = pendingLen;
+				cmds = pendingCmds;
+				pending = spare;
+				spare = null;
+				pendingLen = 0;
+				pendingCmds = 0;
+			}
+
+			try {
+				out.write(batch, 0, len);
+				out.flush();
+			} finally {
+				synchronized (this) {
+					spare = batch;
+					writes++;
+					commands += cmds;
+					bytes += len;
+					if (cmds > maxBatch)
+						maxBatch = cmds;
+				}
+			}
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > pending.length) {
+			byte bigger[] = new byte[Math.max(capacity, pending.length * 2)];
+			System.arraycopy(pending, 0, bigger, 0, pendingLen);
+			pending = bigger;
+		}
+	}
+
+	private void throwPendingError() throws IOException {
+		IOException e = pendingError;
+		if (e != null) {
+			pendingError = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * @return Total number of commands written so far.
+	 */
+	public synchronized long getCommandsWritten() {
+		return commands;
+	}
+
+	/**
+	 * @return Total number of writes made into the underlying stream.
+	 */
+	public synchronized long getWrites() {
+		return writes;
+	}
+
+	public synchronized long getBytesWritten() {
+		return bytes;
+	}
+
+	/**
+	 * @return Average number of commands batched per write.
+	 */
+	public synchronized double getAverageBatchSize() {
+		return writes == 0 ? 0 : (double) commands / writes;
+	}
+
+	/**
+	 * @return The largest number of commands that were written in a single write.
+	 */
+	public synchronized int getMaxBatchSize() {
+		return maxBatch;
+	}
+
+	public long getMaxLatency() {
+		return maxLatency;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return new StringBuffer("CommandWriter[commands:").append(commands).append(", writes:").append(writes)
+		.append(", bytes:").append(bytes).append(", avg batch:").append(getAverageBatchSize())
+		.append(", max batch:").append(maxBatch).append("]").toString();
+	}
+}
@@ -19,7 +19,6 @@
  */
 package org.elite.jdcbot.framework;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -46,12 +45,23 @@ class DCIO {
 
 	/**
 	 * Reading raw command from <i>in</i>.
+	 * <p>
+	 * When <i>in</i> is a {@link DCInputStream} (as is the case for
+	 * streams of {@link BufferedSocket}) then the command is framed
+	 * in bulk from its buffer, else it is read byte by byte.
 	 * 
 	 * @param The socket stream from which to read the command.
 	 * @return Command from hub
 	 * @throws IOException 
 	 */
 	final String ReadCommand(InputStream in) throws IOException {
+		if (in instanceof DCInputStream) {
+			String cmd = ReadFrame((DCInputStream) in).toString();
+			if (logger.isDebugEnabled())
+				logger.debug("From remote: " + cmd);
+			return cmd;
+		}
+
 		int c;
 		//Changing to StringBuffer from String. Artifact#2934462.
 		StringBuffer buffer = new StringBuffer();
@@ -65,10 +75,39 @@ class DCIO {
 			buffer.append((char) c);
 		} while (c != '|');
 
-		logger.debug("From remote: " + buffer);
+		if (logger.isDebugEnabled())
+			logger.debug("From remote: " + buffer);
 		return buffer.toString();
 	}
 
+	/**
+	 * Reads the next raw command from <i>in</i> without decoding it.
+	 * @param in
+	 * @return The view of the command which is valid only till the next read from <i>in</i>.
+	 * @throws IOException When the stream ends before a complete command is read.
+	 */
+	final CommandFrame ReadFrame(DCInputStream in) throws IOException {
+		CommandFrame frame = in.readFrame();
+		if (frame == null) {
+			if (ioexception_msg == null)
+				ioexception_msg = "Premature End of Socket stream or no data in it";
+			throw new IOException(ioexception_msg);
+		}
+		return frame;
+	}
+
+	/**
+	 * Reads and discards the next raw command from <i>in</i>.
+	 * @param in
+	 * @throws IOException
+	 */
+	final void SkipCommand(InputStream in) throws IOException {
+		if (in instanceof DCInputStream)
+			ReadFrame((DCInputStream) in);
+		else
+			ReadCommand(in);
+	}
+
 	final String ReadCommand(Socket socket) throws IOException {
 		//Removed BufferedInputStream from here,
 		//which was added as part of artifact#2934462.
@@ -90,14 +129,22 @@ class DCIO {
 		for (int i = 0; i < buffer.length(); i++)
 			bytes[i] = (byte) buffer.charAt(i);
 
-		logger.debug("From bot: " + buffer);
+		if (logger.isDebugEnabled())
+			logger.debug("From bot: " + buffer);
 		out.write(bytes);
 	}
 
+	/**
+	 * Sends raw command to <i>socket</i>. The command is written using a single
+	 * write into the socket's stream, so there is no need to buffer it. Commands
+	 * to remote clients are not coalesced by a {@link CommandWriter}, as each of
+	 * them is sent only after the remote client's reply to the previous one.
+	 * @param buffer
+	 * @param socket
+	 * @throws IOException
+	 */
 	final void SendCommand(final String buffer, final Socket socket) throws IOException {
-		final BufferedOutputStream bufOut = new BufferedOutputStream(socket.getOutputStream()); 
-		SendCommand(buffer, bufOut);
-		bufOut.flush();
+		SendCommand(buffer, socket.getOutputStream());
 	}
 
 	/**
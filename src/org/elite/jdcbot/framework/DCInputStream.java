@@ -0,0 +1,185 @@
+/*
+ * DCInputStream.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.framework;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Created on 18-Oct-10<br>
+ * A buffered InputStream which can also frame raw DC commands.
+ * The buffer is scanned for '|' in bulk and only complete commands
+ * are handed out, as reusable {@link CommandFrame} views.
+ * <p>
+ * Since this is a regular InputStream too, the data read ahead
+ * while framing commands is not lost when the stream is later
+ * used to read raw data (like file data after $ADCSND). That
+ * is why {@link BufferedSocket} hands out instances of this class.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+class DCInputStream extends FilterInputStream {
+	private static final int DEFAULT_BUFF_SIZE = 8 * 1024; //8 KB
+	/**
+	 * $NickList of very large hubs can run into
+	 * several hundred KBs, so this is set generously.
+	 */
+	static final int MAX_COMMAND_SIZE = 4 * 1024 * 1024; //4 MB
+
+	private byte buf[];
+	private int pos = 0;
+	private int count = 0;
+	private final CommandFrame frame = new CommandFrame();
+
+	DCInputStream(InputStream in) {
+		this(in, DEFAULT_BUFF_SIZE);
+	}
+
+	DCInputStream(InputStream in, int size) {
+		super(in);
+		buf = new byte[size];
+	}
+
+	/**
+	 * Reads the next raw command.
+	 * @return The view of the command (including the trailing '|'). It is
+	 * valid only till the next read from this stream. It is null if the
+	 * stream ended before a complete command could be read.
+	 * @throws IOException
+	 */
+	CommandFrame readFrame() throws IOException {
+		if (pos == count)
+			pos = count = 0;
+		int scan = pos;
+		while (true) {
+			for (int i = scan; i < count; i++) {
+				if (buf[i] == '|') {
+					frame.wrap(buf, pos, i - pos + 1);
+					pos = i + 1;
+					return frame;
+				}
+			}
+			scan = count;
+
+			if (count == buf.length) {
+				if (pos > 0) {
+					//Making room by discarding what has been already consumed.
+					System.arraycopy(buf, pos, buf, 0, count - pos);
+					scan -= pos;
+					count -= pos;
+					pos = 0;
+				} else {
+					if (buf.length >= MAX_COMMAND_SIZE)
+						throw new IOException("Command too large. Exceeded " + MAX_COMMAND_SIZE + " bytes.");
+					byte bigger[] = new byte[Math.min(buf.length * 2, MAX_COMMAND_SIZE)];
+					System.arraycopy(buf, 0, bigger, 0, count);
+					buf = bigger;
+				}
+			}
+
+			int n = in.read(buf, count, buf.length - count);
+			if (n == -1)
+				return null;
+			count += n;
+		}
+	}
+
+	/**
+	 * Removes and returns whatever has been read ahead but not yet
+	 * consumed. This is used when the underlying stream is to be
+	 * read by something else from now on.
+	 * @return Never null.
+	 */
+	byte[] drainBuffer() {
+		byte b[] = new byte[count - pos];
+		System.arraycopy(buf, pos, b, 0, b.length);
+		pos = count = 0;
+		return b;
+	}
+
+	private int fill() throws IOException {
+		pos = count = 0;
+		int n = in.read(buf, 0, buf.length);
+		if (n > 0)
+			count = n;
+		return n;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (pos >= count && fill() <= 0)
+			return -1;
+		return buf[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte b[], int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		int avail = count - pos;
+		if (avail <= 0) {
+			//Large reads need not be copied through our buffer.
+			if (len >= buf.length)
+				return in.read(b, off, len);
+			if (fill() <= 0)
+				return -1;
+			avail = count - pos;
+		}
+		int n = Math.min(avail, len);
+		System.arraycopy(buf, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0)
+			return 0;
+		int avail = count - pos;
+		if (avail <= 0)
+			return in.skip(n);
+		long skipped = Math.min(avail, n);
+		pos += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (count - pos) + in.available();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void mark(int readlimit) {}
+
+	@Override
+	public void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+}
@@ -34,6 +34,9 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.elite.jdcbot.shareframework.SearchSet;
 import org.elite.jdcbot.util.OutputEntityStream;
@@ -44,6 +47,11 @@ import org.slf4j.Logger;
  * Manages partial file downloading, auto resume, multi-source download, etc.
  * Segmented download is not yet implemented. Could be in future.
  * <p>
+ * The queue processing and searching threads are made as per
+ * {@link ExecutionMode}. They are woken up by signalling and not by
+ * interrupting them, since an interrupt would close any channel or
+ * (on a virtual thread) socket they are using at that time.
+ * <p>
  * This class is thread safe.
  * 
  * @author AppleGrew
@@ -62,6 +70,9 @@ public class DownloadCentral implements Runnable {
     private String incompleteDir;
     private BotInterface boi;
     private Thread th;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition wakeUp = lock.newCondition();
+    private boolean triggered = false; //Guarded by lock.
     volatile private boolean run = false;
     volatile private boolean supressSearch = false;
     private double transferRate = 0;
@@ -157,11 +168,11 @@ public class DownloadCentral implements Runnable {
 	if (th != null) {
 	    logger.warn("DownloadCentral Threads already running.");
 	} else {
-	    th = new Thread(this, "DownloadCentral Queue Processing Thread");
+	    th = ExecutionMode.newThread(this, "DownloadCentral Queue Processing Thread");
 	    run = true;
 	    searchTh = new SrcSearcher();
 	    supressSearch = true;
-	    searchTh.start();
+	    ExecutionMode.newThread(searchTh, "AltSrc Searcher Thread").start();
 	    th.start();
 	}
     }
@@ -169,7 +180,7 @@ public class DownloadCentral implements Runnable {
     public void stopQueueProcessThread() {
 	run = false;
 	if (th != null)
-	    th.interrupt();
+	    signal();
 	th = null;
 	if (searchTh != null)
 	    searchTh.stopIt();
@@ -188,7 +199,17 @@ public class DownloadCentral implements Runnable {
     public void triggerProcessQ(boolean supressSearch) {
 	this.supressSearch = supressSearch;
 	if (th != null && run)
-	    th.interrupt();
+	    signal();
+    }
+
+    private void signal() {
+	lock.lock();
+	try {
+	    triggered = true;
+	    wakeUp.signal();
+	} finally {
+	    lock.unlock();
+	}
     }
 
     public void setTransferRate(double rate) {
@@ -373,9 +394,16 @@ public class DownloadCentral implements Runnable {
 		}
 	    else
 		supressSearch = false;
+	    lock.lock();
 	    try {
-		Thread.sleep(25 * 60 * 1000); //25 mins
-	    } catch (InterruptedException e) {}
+		long nanos = TimeUnit.MINUTES.toNanos(25);
+		while (!triggered && run && nanos > 0)
+		    nanos = wakeUp.awaitNanos(nanos);
+		triggered = false;
+	    } catch (InterruptedException e) {
+	    } finally {
+		lock.unlock();
+	    }
 	}
 	th = null;
     }
@@ -826,16 +854,14 @@ public class DownloadCentral implements Runnable {
 	}
     }
 
-    private class SrcSearcher extends Thread {
+    private class SrcSearcher implements Runnable {
 	private List<Download> searchFor = Collections.synchronizedList(new ArrayList<Download>());
 	private volatile boolean running = true;
+	private final ReentrantLock searchLock = new ReentrantLock();
+	private final Condition newSearch = searchLock.newCondition();
 
 	private long lastSearchTime = -1;
 
-	public SrcSearcher() {
-	    super("AltSrc Searcher Thread");
-	}
-
 	public void run() {
 	    while (running) {
 		while (!searchFor.isEmpty()) {
@@ -871,20 +897,40 @@ public class DownloadCentral implements Runnable {
 		    }
 		}
 
+		searchLock.lock();
 		try {
-		    Thread.sleep(timeBetweenSearches);
-		} catch (InterruptedException e) {}
+		    //Checked under the lock, so that a search added after the loop above is not missed.
+		    long wait;
+		    if (searchFor.isEmpty())
+			wait = timeBetweenSearches;
+		    else
+			wait = timeBetweenSearches - (System.currentTimeMillis() - lastSearchTime);
+		    if (running && wait > 0)
+			newSearch.await(wait, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+		} finally {
+		    searchLock.unlock();
+		}
 	    }
 	}
 
 	public void search(Download d) {
 	    searchFor.add(d);
-	    this.interrupt();
+	    wakeUp();
 	}
 
 	public void stopIt() {
 	    running = false;
-	    this.interrupt();
+	    wakeUp();
+	}
+
+	private void wakeUp() {
+	    searchLock.lock();
+	    try {
+		newSearch.signal();
+	    } finally {
+		searchLock.unlock();
+	    }
 	}
     }
 }
@@ -28,6 +28,9 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.InflaterInputStream;
 
 import org.apache.tools.bzip2.CBZip2InputStream;
@@ -39,6 +42,10 @@ import org.slf4j.Logger;
  * <p>
  * This is used internally, you are not required do anything with this.
  * <p>
+ * The thread it runs on is made as per {@link ExecutionMode}. It is never
+ * interrupted, since interrupting a virtual thread blocked on a socket
+ * closes the socket; it is signalled instead.
+ * <p>
  * This class is thread safe.
  *
  * @author AppleGrew
@@ -50,17 +57,20 @@ public class DownloadHandler extends DCIO implements Runnable {
 	private static final Logger logger = GlobalObjects.getLogger(DownloadHandler.class);
 	private final int in_buffer_size = 64 * 1024; //64 KMB
 	private final int checkInterval = 100000; //This has been defined so polling frequency of CancelEntityQ is minimized. 
+	private final long passiveConnectTimeout = 3 * 60000L;
 
 	private List<DUEntity> DownloadEntityQ;
 	private List<DUEntity> CancelEntityQ;
 	private User _u;
 	private jDCBot _jdcbot;
 	private DownloadManager _dm;
-	private Socket _socket = null;
+	private volatile Socket _socket = null;
 	private volatile boolean close = false;
 	private volatile boolean threadstarted = false;
 	private volatile boolean connectionFailed = false;
 	private Thread th;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition passiveConnected = lock.newCondition();
 
 	public DownloadHandler(User user, jDCBot jdcbot, DownloadManager dm) {
 		_u = user;
@@ -74,21 +84,18 @@ public class DownloadHandler extends DCIO implements Runnable {
 
 	public void close() {
 		close = true;
-		if (threadstarted)
-			th.interrupt();
+		wakeUp();
 	}
 
 	public synchronized void cancelDownload(DUEntity due) {
 		CancelEntityQ.add(due);
-		if (threadstarted)
-			th.interrupt();
 	}
 
 	public synchronized void download(DUEntity de) {
 		if (!DownloadEntityQ.contains(de))
 			DownloadEntityQ.add(de);
 		if (!threadstarted) {
-			th = new Thread(this, "DownloadHandler Thread");
+			th = ExecutionMode.newThread(this, "DownloadHandler Thread");
 			th.start();
 			threadstarted = true;
 		}
@@ -96,8 +103,16 @@ public class DownloadHandler extends DCIO implements Runnable {
 
 	public void notifyPassiveConnect(Socket socket) {
 		_socket = socket;
-		if (th != null)
-			th.interrupt();
+		wakeUp();
+	}
+
+	private void wakeUp() {
+		lock.lock();
+		try {
+			passiveConnected.signalAll();
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	public String getUserName() {
@@ -137,21 +152,30 @@ public class DownloadHandler extends DCIO implements Runnable {
 			}
 	
 			if (_jdcbot.isPassive()) {
-				int count = 0;
-				while (_socket == null) {
-					count++;
-					try {
-						Thread.sleep(60000L); //Wait for passive connection
-					} catch (InterruptedException e1) {
-						logger.debug("DownloadHandler thread woken up.");
+				//Wait for passive connection
+				lock.lock();
+				try {
+					long nanos = TimeUnit.MILLISECONDS.toNanos(passiveConnectTimeout);
+					while (_socket == null && !close && nanos > 0) {
+						try {
+							nanos = passiveConnected.awaitNanos(nanos);
+						} catch (InterruptedException e1) {
+							logger.debug("DownloadHandler thread interrupted.");
+						}
 					}
-					if (_socket == null && count >= 3) {
+				} finally {
+					lock.unlock();
+				}
+				if (_socket == null) {
+					if (close)
+						notifyFailedConnection(new BotException(BotException.Error.TASK_FAILED_SHUTTING_DOWN));
+					else {
 						logger.error("Timeout. Waited for too long for remote client's (" + _u.username() + ") connection.");
-						connectionFailed = true;
 						notifyFailedConnection(new BotException(BotException.Error.TIMEOUT));
-						theEnd();
-						return;
 					}
+					connectionFailed = true;
+					theEnd();
+					return;
 				}
 			}
 	
@@ -273,16 +297,14 @@ public class DownloadHandler extends DCIO implements Runnable {
 						fin = new BufferedInputStream(fin, in_buffer_size);
 						int intervalCount = checkInterval;
 						while ((c = fin.read()) != -1 && (len == -1 || (++len <= fileLen && !close))) {
-							intervalCount--;
-							synchronized (CancelEntityQ) {
-								if (intervalCount <= 0 && (index = CancelEntityQ.indexOf(de)) != -1) {
-									CancelEntityQ.remove(index);
+							if (--intervalCount <= 0) {
+								intervalCount = checkInterval;
+								//Not closing the stream while holding CancelEntityQ's lock.
+								if (CancelEntityQ.remove(de)) {
 									de.os().close();
 									throw new BotException(BotException.Error.TRANSFER_CANCELLED);
 								}
 							}
-							if (intervalCount <= 0)
-								intervalCount = checkInterval;
 							de.os().write(c);
 						}
 						de.os().close();
@@ -21,8 +21,9 @@ package org.elite.jdcbot.framework;
 
 import java.lang.reflect.*;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created on 27-May-08<br>
@@ -37,22 +38,30 @@ import java.util.List;
  * Sorry.
  */
 public class EventDispatchThread extends Thread {
-    private List<DispatchEntity> dispatch;
-    private volatile boolean running;
+    private static final int BATCH_SIZE = 256;
+
+    private final EventQueue<DispatchEntity> dispatch = new EventQueue<DispatchEntity>();
+    /**
+     * The methods looked up so far, so that every method is looked up only once.
+     */
+    private final ConcurrentHashMap<MethodKey, Method> methods = new ConcurrentHashMap<MethodKey, Method>();
 
     public EventDispatchThread() {
 	super("jDCBot-EventDispatchThread");
-	dispatch = Collections.synchronizedList(new ArrayList<DispatchEntity>());
-	running = true;
 	start();
     }
 
     public void run() {
-	while (running) {
-	    while (!dispatch.isEmpty()) {
-		DispatchEntity de = dispatch.get(0);
-		dispatch.remove(0);
-		if (de.method != null) {
+	List<DispatchEntity> batch = new ArrayList<DispatchEntity>(BATCH_SIZE);
+	while (dispatch.take(batch, BATCH_SIZE) > 0) {
+	    for (DispatchEntity de : batch) {
+		if (de.job != null) {
+		    try {
+			de.job.run();
+		    } catch (RuntimeException e) {
+			e.printStackTrace();
+		    }
+		} else if (de.method != null) {
 		    try {
 			de.method.invoke(de.owner, de.params);
 		    } catch (IllegalArgumentException e) {
@@ -63,13 +72,19 @@ public class EventDispatchThread extends Thread {
 			e.printStackTrace();
 		    }
 		}
+		dispatch.delivered(de);
 	    }
-	    try {
-		sleep(60000L);
-	    } catch (InterruptedException e) {}
+	    batch.clear();
 	}
     }
 
+    /**
+     * @return The queue of the calls waiting to be made.
+     */
+    public EventQueue<?> getEventQueue() {
+	return dispatch;
+    }
+
     /**
      * Use this to invoke a call to a method via this (jDCBot-EventDispatchThread) thread.
      * @param owner The object of whom <i>method</i> is memeber.
@@ -134,31 +149,70 @@ public class EventDispatchThread extends Thread {
      * </ul>
      */
     public void call(Object owner, String method, Class<?> param_types[], Object... args) {
-	Method m = null;
-	try {
-	    m = owner.getClass().getMethod(method, param_types);
-	} catch (SecurityException e) {
-	    e.printStackTrace();
-	    return;
-	} catch (NoSuchMethodException e) {
-	    e.printStackTrace();
-	    return;
+	MethodKey key = new MethodKey(owner.getClass(), method, param_types);
+	Method m = methods.get(key);
+	if (m == null) {
+	    try {
+		m = owner.getClass().getMethod(method, param_types);
+	    } catch (SecurityException e) {
+		e.printStackTrace();
+		return;
+	    } catch (NoSuchMethodException e) {
+		e.printStackTrace();
+		return;
+	    }
+	    methods.put(key, m);
 	}
 	DispatchEntity de = new DispatchEntity();
 	de.method = m;
 	de.owner = owner;
 	de.params = args;
 	dispatch.add(de);
+    }
 
-	this.interrupt();
+    /**
+     * Runs <i>job</i> via this (jDCBot-EventDispatchThread) thread. Unlike
+     * {@link #call(Object, String, Class[], Object[]) call} this involves no
+     * reflection at all, the job can call the method it needs directly.
+     * @param job
+     */
+    public void invokeLater(Runnable job) {
+	DispatchEntity de = new DispatchEntity();
+	de.job = job;
+	dispatch.add(de);
     }
 
     public void stopIt() {
-	running = false;
-	this.interrupt();
+	dispatch.close();
+    }
+
+    private static class MethodKey {
+	private final Class<?> owner;
+	private final String name;
+	private final Class<?> params[];
+
+	MethodKey(Class<?> owner, String name, Class<?> params[]) {
+	    this.owner = owner;
+	    this.name = name;
+	    this.params = params;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+	    if (!(o instanceof MethodKey))
+		return false;
+	    MethodKey k = (MethodKey) o;
+	    return owner == k.owner && name.equals(k.name) && Arrays.equals(params, k.params);
+	}
+
+	@Override
+	public int hashCode() {
+	    return (owner.hashCode() * 31 + name.hashCode()) * 31 + Arrays.hashCode(params);
+	}
     }
 
-    private class DispatchEntity {
+    private static class DispatchEntity extends EventQueue.Event {
+	public Runnable job;
 	public Method method;
 	public Object owner;
 	public Object params[];
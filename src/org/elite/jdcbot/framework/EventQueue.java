@@ -0,0 +1,175 @@
+/*
+ * EventQueue.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.framework;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Created on 18-Oct-10<br>
+ * The queue between the threads raising events and the single
+ * thread dispatching them. Adding an event never locks. The
+ * dispatching thread takes the events out in batches and, when
+ * there are none, parks itself till one is added.
+ * <p>
+ * It also keeps count of how many events are waiting and how
+ * long they waited before being delivered.
+ * <p>
+ * Many threads may add events, but only one thread may take them out.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+public final class EventQueue<E extends EventQueue.Event> {
+	/**
+	 * Base of all the queued events. It records when it was queued.
+	 */
+	static class Event {
+		long queuedAt;
+	}
+
+	private final Queue<E> queue = new ConcurrentLinkedQueue<E>();
+	private final AtomicInteger depth = new AtomicInteger();
+	private final AtomicInteger maxDepth = new AtomicInteger();
+	private final AtomicBoolean sleeping = new AtomicBoolean(false);
+	private volatile Thread consumer = null;
+	private volatile boolean closed = false;
+
+	//Updated only by the consumer.
+	private volatile long delivered = 0;
+	private volatile long totalLatencyNanos = 0;
+	private volatile long maxLatencyNanos = 0;
+
+	/**
+	 * Adds an event. This can be called from any thread.
+	 * @param e
+	 */
+	void add(E e) {
+		e.queuedAt = System.nanoTime();
+		queue.add(e);
+		int d = depth.incrementAndGet();
+		int max;
+		while (d > (max = maxDepth.get()) && !maxDepth.compareAndSet(max, d));
+
+		if (sleeping.get() && sleeping.compareAndSet(true, false))
+			LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * Moves up to <i>max</i> events into <i>batch</i>. If there are none then
+	 * waits till one is added or the queue is closed. To be called by
+	 * the consumer only.
+	 * @param batch
+	 * @param max
+	 * @return The number of events moved, this is zero only when the queue is closed.
+	 */
+	int take(List<E> batch, int max) {
+		while (true) {
+			int n = 0;
+			E e;
+			while (n < max && (e = queue.poll()) != null) {
+				batch.add(e);
+				n++;
+			}
+			if (n > 0) {
+				depth.addAndGet(-n);
+				return n;
+			}
+			if (closed)
+				return 0;
+
+			consumer = Thread.currentThread();
+			sleeping.set(true);
+			//Rechecking since an event may have been added before we set the flag.
+			if (queue.isEmpty() && !closed)
+				LockSupport.park(this);
+			sleeping.set(false);
+		}
+	}
+
+	/**
+	 * To be called by the consumer once it has delivered <i>e</i>.
+	 * @param e
+	 */
+	void delivered(E e) {
+		long latency = System.nanoTime() - e.queuedAt;
+		delivered++;
+		totalLatencyNanos += latency;
+		if (latency > maxLatencyNanos)
+			maxLatencyNanos = latency;
+	}
+
+	/**
+	 * Wakes up the consumer, after this {@link #take(List, int)}
+	 * returns zero once the queue is empty.
+	 */
+	void close() {
+		closed = true;
+		Thread c = consumer;
+		if (c != null)
+			LockSupport.unpark(c);
+	}
+
+	/**
+	 * @return Number of events waiting to be delivered.
+	 */
+	public int getQueueDepth() {
+		return depth.get();
+	}
+
+	/**
+	 * @return The most events that were waiting at any time.
+	 */
+	public int getMaxQueueDepth() {
+		return maxDepth.get();
+	}
+
+	public long getEventsDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * @return Average time (in milliseconds) from an event being raised till
+	 * it was delivered.
+	 */
+	public double getAverageLatencyMillis() {
+		long d = delivered;
+		return d == 0 ? 0 : totalLatencyNanos / 1e6 / d;
+	}
+
+	/**
+	 * @return The longest time (in milliseconds) any event took to be delivered.
+	 */
+	public double getMaxLatencyMillis() {
+		return maxLatencyNanos / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuffer("EventQueue[depth:").append(getQueueDepth()).append(", max depth:").append(getMaxQueueDepth())
+		.append(", delivered:").append(delivered).append(", avg latency:").append(getAverageLatencyMillis())
+		.append(" ms, max latency:").append(getMaxLatencyMillis()).append(" ms]").toString();
+	}
+}
@@ -20,9 +20,7 @@
 package org.elite.jdcbot.framework;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.elite.jdcbot.shareframework.SearchResultSet;
 import org.elite.jdcbot.shareframework.SearchSet;
@@ -61,7 +59,12 @@ import org.elite.jdcbot.shareframework.SearchSet;
  * @see EventjDCBotAdapter
  */
 abstract public class EventjDCBot extends jDCBot {
-    private List<EventjDCBotListener> _listeners = Collections.synchronizedList(new ArrayList<EventjDCBotListener>());
+    /**
+     * Listeners are added or removed rarely but are called for every
+     * event, hence a copy-on-write list. Events are delivered without
+     * taking any lock.
+     */
+    private final CopyOnWriteArrayList<EventjDCBotListener> _listeners = new CopyOnWriteArrayList<EventjDCBotListener>();
 
     //******Constructors******/
     /**
@@ -120,10 +123,7 @@ abstract public class EventjDCBot extends jDCBot {
 
     //******Listeners handlers******/
     final public void addListener(EventjDCBotListener listener) {
-	synchronized (_listeners) {
-	    if (!_listeners.contains(listener))
-		_listeners.add(listener);
-	}
+	_listeners.addIfAbsent(listener);
     }
 
     final public void removeListener(EventjDCBotListener listener) {
@@ -134,145 +134,109 @@ abstract public class EventjDCBot extends jDCBot {
     @Override
     final protected void onSearchResult(String senderNick, String senderIP, int senderPort, SearchResultSet result, int free_slots,
 	    int total_slots, String hubName) {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_SearchResult(this, senderNick, senderIP, senderPort, result, free_slots, total_slots, hubName);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_SearchResult(this, senderNick, senderIP, senderPort, result, free_slots, total_slots, hubName);
     }
 
     @Override
     final protected void onConnect() {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_Connect(this);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_Connect(this);
     }
 
     @Override
     final protected void onConnect2Client() {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_Connect2Client(this);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_Connect2Client(this);
     }
 
     @Override
     final protected void onBotQuit() {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_BotQuit(this);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_BotQuit(this);
     }
 
     @Override
     final protected void onDisconnect() {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_Connect(this);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_Disconnect(this);
     }
 
     @Override
     final protected void onPublicMessage(String user, String message) {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_PublicMessage(this, user, message);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_PublicMessage(this, user, message);
     }
 
     @Override
     final protected void onJoin(String user) {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_Join(this, user);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_Join(this, user);
     }
 
     @Override
     final protected void onQuit(String user) {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_Quit(this, user);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_Quit(this, user);
     }
 
     @Override
     final protected void onUpdateMyInfo(String user) {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_UpdateMyInfo(this, user);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_UpdateMyInfo(this, user);
     }
 
     @Override
     final protected void onPrivateMessage(String user, String message) {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_PrivateMessage(this, user, message);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_PrivateMessage(this, user, message);
     }
 
     @Override
     final protected void onChannelMessage(String user, String channel, String message) {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_ChannelMessage(this, user, channel, message);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_ChannelMessage(this, user, channel, message);
     }
 
     @Override
     final protected void onPassiveSearch(String user, SearchSet search) {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_PassiveSearch(this, user, search);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_PassiveSearch(this, user, search);
     }
 
     @Override
     final protected void onActiveSearch(String ip, int port, SearchSet search) {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_ActiveSearch(this, ip, port, search);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_ActiveSearch(this, ip, port, search);
     }
 
     @Override
     final protected void onDownloadComplete(User user, DUEntity due, boolean success, BotException e) {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_DownloadComplete(this, user, due, success, e);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_DownloadComplete(this, user, due, success, e);
     }
 
     @Override
     final protected void onDownloadStart(User user, DUEntity due) {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_DownloadStart(this, user, due);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_DownloadStart(this, user, due);
     }
 
     @Override
     final protected void onUploadComplete(User user, DUEntity due, boolean success, BotException e) {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_UploadComplete(this, user, due, success, e);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_UploadComplete(this, user, due, success, e);
     }
 
     @Override
     final protected void onUploadStart(User user, DUEntity due) {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_UploadStart(this, user, due);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_UploadStart(this, user, due);
     }
     
     @Override
     final protected void onHubName(String hubName) {
-	synchronized (_listeners) {
-	    for (EventjDCBotListener l : _listeners)
-		l.on_HubName(this, hubName);
-	}
+	for (EventjDCBotListener l : _listeners)
+	    l.on_HubName(this, hubName);
     }
 }
@@ -0,0 +1,152 @@
+/*
+ * ExecutionMode.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.framework;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+
+/**
+ * Created on 18-Oct-10<br>
+ * Decides what kind of threads the framework runs its per-connection
+ * work on, i.e. the {@link DownloadHandler}s, the input threads of the
+ * uploads (and of the hub when not using {@link HubConnectionEngine}),
+ * the jobs {@link HubConnectionEngine} runs off its selector threads,
+ * and the download queue processing and alternate source searching
+ * threads of {@link DownloadCentral}.
+ * <p>
+ * By default these are ordinary (platform) threads. A bot serving
+ * hundreds of simultaneous transfers can instead run them on virtual
+ * threads, using {@link #useVirtualThreads()}, when the JVM supports them,
+ * or on threads made by its own ThreadFactory, using {@link #useThreadFactory(ThreadFactory)}.
+ * The mode should be set before any bot is connected, threads already
+ * running are not affected.
+ * <p>
+ * Idle upload connections are timed out by a single shared timer
+ * thread, and not by a thread per connection.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+public final class ExecutionMode {
+	private static final Logger logger = GlobalObjects.getLogger(ExecutionMode.class);
+
+	private static volatile ThreadFactory factory = null;
+	private static volatile boolean virtual = false;
+	private static ScheduledExecutorService timer = null;
+
+	private ExecutionMode() {}
+
+	/**
+	 * Uses ordinary threads. This is the default.
+	 */
+	public static void usePlatformThreads() {
+		factory = null;
+		virtual = false;
+	}
+
+	/**
+	 * Uses virtual threads. They are looked up at run time, so this
+	 * works only on JVMs that have them (Java 21 or later).
+	 * @return false if the JVM does not support virtual threads, in
+	 * that case the mode is left unchanged.
+	 */
+	public static boolean useVirtualThreads() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			ThreadFactory f = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			factory = f;
+			virtual = true;
+			return true;
+		} catch (Exception e) {
+			logger.warn("Virtual threads are not supported by this JVM: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Uses threads made by <i>threadFactory</i>. The threads are
+	 * renamed by the framework after they are made.
+	 * @param threadFactory
+	 */
+	public static void useThreadFactory(ThreadFactory threadFactory) {
+		if (threadFactory == null)
+			throw new NullPointerException("threadFactory is null.");
+		factory = threadFactory;
+		virtual = false;
+	}
+
+	/**
+	 * @return true if virtual threads are being used.
+	 */
+	public static boolean isUsingVirtualThreads() {
+		return virtual;
+	}
+
+	/**
+	 * @return The ThreadFactory being used or null if ordinary
+	 * threads are being used.
+	 */
+	public static ThreadFactory getThreadFactory() {
+		return factory;
+	}
+
+	/**
+	 * Makes a new (not started) thread as per the current mode.
+	 * @param r
+	 * @param name
+	 * @return
+	 */
+	static Thread newThread(Runnable r, String name) {
+		ThreadFactory f = factory;
+		if (f == null)
+			return new Thread(r, name);
+
+		Thread th = f.newThread(r);
+		if (th == null)
+			throw new IllegalStateException("ThreadFactory returned null.");
+		th.setName(name);
+		return th;
+	}
+
+	/**
+	 * @return The shared timer used for timeouts. Tasks run on it
+	 * must return quickly.
+	 */
+	static synchronized ScheduledExecutorService getTimer() {
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread th = new Thread(r, "jDCBot-Timer");
+					th.setDaemon(true);
+					return th;
+				}
+			});
+		}
+		return timer;
+	}
+}
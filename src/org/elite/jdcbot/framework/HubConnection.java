@@ -0,0 +1,280 @@
+/*
+ * HubConnection.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.framework;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+
+/**
+ * Created on 18-Oct-10<br>
+ * A single non-blocking connection served by {@link HubConnectionEngine}.
+ * This takes the role {@link InputThread} plays in the blocking
+ * mode, i.e. it frames the raw commands read from the socket
+ * and passes them to the {@link InputThreadTarget}.
+ * <p>
+ * All the reading and writing happens on the selector thread
+ * which owns this connection. Writes from other threads are
+ * queued and then written out when the socket is writable.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+class HubConnection {
+	private static final Logger logger = GlobalObjects.getLogger(HubConnection.class);
+	private static final int INITIAL_BUFF_SIZE = 16 * 1024; //16 KB
+	private static final int MAX_GATHER = 64;
+
+	private final SocketChannel channel;
+	private final InputThreadTarget target;
+	private final HubConnectionEngine.SelectorLoop loop;
+	private final Queue<ByteBuffer> outQ = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private final OutputStream out;
+	private final CommandFrame frame = new CommandFrame();
+	private final ByteBuffer gather[] = new ByteBuffer[MAX_GATHER];
+
+	private SelectionKey key;
+	private ByteBuffer in;
+
+	HubConnection(SocketChannel channel, InputThreadTarget target, HubConnectionEngine.SelectorLoop loop, byte readAhead[]) {
+		this.channel = channel;
+		this.target = target;
+		this.loop = loop;
+		int len = readAhead == null ? 0 : readAhead.length;
+		in = ByteBuffer.allocate(Math.max(INITIAL_BUFF_SIZE, Integer.highestOneBit(len) << 1));
+		if (len > 0)
+			in.put(readAhead);
+		out = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				HubConnection.this.write(b, off, len);
+			}
+		};
+	}
+
+	/**
+	 * @return An OutputStream which queues the data written
+	 * into it for sending. Writing into it never blocks.
+	 */
+	OutputStream getOutputStream() {
+		return out;
+	}
+
+	boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * Called by the selector thread.
+	 */
+	void register() {
+		try {
+			key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+			loop.connectionAdded();
+			if (in.position() > 0)
+				processFrames();
+		} catch (ClosedChannelException e) {
+			logger.error("Channel closed before it could be registered.", e);
+			closed.set(true);
+			target.disconnected();
+		} catch (Exception e) {
+			logger.error("Exception in register()", e);
+			closeNow();
+		}
+	}
+
+	void write(byte[] b, int off, int len) throws IOException {
+		if (closed.get())
+			throw new IOException("Disconnected");
+
+		ByteBuffer buff = ByteBuffer.allocate(len);
+		buff.put(b, off, len);
+		buff.flip();
+		outQ.add(buff);
+		scheduleFlush();
+	}
+
+	private void scheduleFlush() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					onWritable();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Called by the selector thread.
+	 */
+	void onWritable() {
+		if (key == null || !key.isValid())
+			return;
+		try {
+			while (!outQ.isEmpty()) {
+				//Gathering as many queued buffers as possible into a single write.
+				int n = 0;
+				for (ByteBuffer buff : outQ) {
+					gather[n++] = buff;
+					if (n == gather.length)
+						break;
+				}
+				channel.write(gather, 0, n);
+				for (int i = 0; i < n; i++) {
+					if (gather[i].hasRemaining()) {
+						clearGather(n);
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+						return;
+					}
+					outQ.poll();
+				}
+				clearGather(n);
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			flushScheduled.set(false);
+			//Something may have been queued after we found outQ empty
+			//but before the flag was cleared.
+			if (!outQ.isEmpty())
+				scheduleFlush();
+		} catch (IOException e) {
+			logger.error("Exception while writing to " + channel, e);
+			closeNow();
+		}
+	}
+
+	private void clearGather(int n) {
+		for (int i = 0; i < n; i++)
+			gather[i] = null;
+	}
+
+	/**
+	 * Called by the selector thread.
+	 */
+	void onReadable() {
+		try {
+			int n = channel.read(in);
+			if (n == -1) {
+				logger.info("Connection closed by remote end.");
+				closeNow();
+				return;
+			}
+			if (n > 0)
+				processFrames();
+		} catch (Exception e) {
+			logger.error("Exception in onReadable()", e);
+			closeNow();
+		}
+	}
+
+	/**
+	 * Passes every complete command in the read buffer to the target
+	 * and moves the incomplete tail to the start of the buffer.
+	 */
+	private void processFrames() throws IOException {
+		byte buff[] = in.array();
+		int end = in.position();
+		int start = 0;
+		for (int i = 0; i < end && !closed.get(); i++) {
+			if (buff[i] == '|') {
+				frame.wrap(buff, start, i - start + 1);
+				start = i + 1;
+				String rawCommand = frame.toString();
+				if (logger.isDebugEnabled())
+					logger.debug("From remote: " + rawCommand);
+				target.handleCommand(rawCommand);
+			}
+		}
+
+		if (start > 0) {
+			in.flip();
+			in.position(start);
+			in.compact();
+		} else if (!in.hasRemaining()) {
+			if (in.capacity() >= DCInputStream.MAX_COMMAND_SIZE)
+				throw new IOException("Command too large. Exceeded " + DCInputStream.MAX_COMMAND_SIZE + " bytes.");
+			ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 2, DCInputStream.MAX_COMMAND_SIZE));
+			in.flip();
+			bigger.put(in);
+			in = bigger;
+		}
+	}
+
+	/**
+	 * Closes the connection. The data already queued for sending will
+	 * be sent if that is possible without blocking.
+	 */
+	void close() {
+		if (loop.isInLoopThread())
+			closeNow();
+		else
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					closeNow();
+				}
+			});
+	}
+
+	/**
+	 * Called by the selector thread.
+	 */
+	void closeNow() {
+		if (!closed.compareAndSet(false, true))
+			return;
+
+		try {
+			ByteBuffer buff;
+			while ((buff = outQ.poll()) != null && channel.isOpen()) {
+				channel.write(buff);
+				if (buff.hasRemaining())
+					break;
+			}
+		} catch (IOException e) {}
+
+		if (key != null) {
+			key.cancel();
+			loop.connectionRemoved();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.error("Exception in closeNow()", e);
+		}
+		outQ.clear();
+		target.disconnected();
+	}
+}
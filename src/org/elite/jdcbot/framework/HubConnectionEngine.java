@@ -0,0 +1,271 @@
+/*
+ * HubConnectionEngine.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.framework;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+/**
+ * Created on 18-Oct-10<br>
+ * Multiplexes many hub connections over a small, fixed
+ * pool of selector threads. Without this every connected
+ * jDCBot needs its own {@link InputThread} blocked on its
+ * hub socket; with this the number of reader threads stays
+ * the same no matter how many hubs are connected to.
+ * <p>
+ * Set it using {@link MultiHubsAdapter#setConnectionEngine(HubConnectionEngine)}
+ * or {@link jDCBot#setConnectionEngine(HubConnectionEngine)}
+ * <u>before</u> connecting. The hub handshake is still done in
+ * blocking mode by the connecting thread, only after that the
+ * socket is handed over to one of the selector threads, which
+ * then calls {@link jDCBot#handleCommand(String)} for every command
+ * read.
+ * <p>
+ * Commands whose handling may block for long (like replying to
+ * $ConnectToMe) are moved off the selector threads to a
+ * separate pool, see {@link #invokeLater(Runnable)}.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+public class HubConnectionEngine {
+	private static final Logger logger = GlobalObjects.getLogger(HubConnectionEngine.class);
+
+	private final SelectorLoop loops[];
+	private final ExecutorService blockingJobs;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates an engine with one selector thread per available
+	 * processor, but not more than four.
+	 * @throws IOException When a selector could not be opened.
+	 */
+	public HubConnectionEngine() throws IOException {
+		this(Math.min(4, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * @param selectorThreads The number of selector threads to use. A single
+	 * thread is usually enough for hundreds of hubs.
+	 * @throws IOException When a selector could not be opened.
+	 */
+	public HubConnectionEngine(int selectorThreads) throws IOException {
+		if (selectorThreads < 1)
+			throw new IllegalArgumentException("selectorThreads must be at least 1.");
+
+		loops = new SelectorLoop[selectorThreads];
+		for (int i = 0; i < selectorThreads; i++) {
+			loops[i] = new SelectorLoop("HubConnectionEngine-Selector-" + i);
+			loops[i].start();
+		}
+
+		blockingJobs = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread th = ExecutionMode.newThread(r, "HubConnectionEngine-Job-" + count.getAndIncrement());
+				th.setDaemon(true);
+				return th;
+			}
+		});
+	}
+
+	/**
+	 * Hands over an already connected (and handshaked) channel to
+	 * one of the selector threads. After this <i>channel</i> is in
+	 * non-blocking mode and must only be written to using
+	 * {@link HubConnection#getOutputStream()}.
+	 * @param channel The connected channel.
+	 * @param target Where the read commands will be delivered.
+	 * @param readAhead Data already read from <i>channel</i> but not yet consumed.
+	 * @return The handle for the connection.
+	 * @throws IOException If the engine is closed or the channel could not
+	 * be switched to non-blocking mode.
+	 */
+	HubConnection register(SocketChannel channel, InputThreadTarget target, byte readAhead[]) throws IOException {
+		if (closed)
+			throw new IOException("HubConnectionEngine is closed.");
+
+		SelectorLoop loop = leastLoadedLoop();
+		channel.configureBlocking(false);
+		final HubConnection conn = new HubConnection(channel, target, loop, readAhead);
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				conn.register();
+			}
+		});
+		return conn;
+	}
+
+	/**
+	 * Runs <i>job</i> on a thread other than the selector threads.
+	 * Use this for handling commands which might block for long.
+	 * @param job
+	 */
+	void invokeLater(Runnable job) {
+		if (closed) {
+			logger.warn("HubConnectionEngine is closed, job dropped.");
+			return;
+		}
+		blockingJobs.execute(job);
+	}
+
+	public int getSelectorThreadCount() {
+		return loops.length;
+	}
+
+	/**
+	 * @return Total number of hub connections currently served.
+	 */
+	public int getConnectionCount() {
+		int count = 0;
+		for (SelectorLoop loop : loops)
+			count += loop.connections.get();
+		return count;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Closes all the connections and stops all threads of
+	 * this engine.
+	 */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		for (SelectorLoop loop : loops)
+			loop.stopIt();
+		blockingJobs.shutdown();
+	}
+
+	private SelectorLoop leastLoadedLoop() {
+		int start = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+		SelectorLoop best = loops[start];
+		for (int i = 1; i < loops.length; i++) {
+			SelectorLoop loop = loops[(start + i) % loops.length];
+			if (loop.connections.get() < best.connections.get())
+				best = loop;
+		}
+		return best;
+	}
+
+	/**
+	 * A single selector thread. All the operations on the selection
+	 * keys are done from this thread only, other threads post them
+	 * as jobs using {@link #execute(Runnable)}.
+	 */
+	class SelectorLoop extends Thread {
+		private final Selector selector;
+		private final Queue<Runnable> jobs = new ConcurrentLinkedQueue<Runnable>();
+		private final AtomicInteger connections = new AtomicInteger();
+		private volatile boolean running = true;
+
+		SelectorLoop(String name) throws IOException {
+			super(name);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		Selector selector() {
+			return selector;
+		}
+
+		void connectionAdded() {
+			connections.incrementAndGet();
+		}
+
+		void connectionRemoved() {
+			connections.decrementAndGet();
+		}
+
+		void execute(Runnable job) {
+			jobs.add(job);
+			selector.wakeup();
+		}
+
+		boolean isInLoopThread() {
+			return Thread.currentThread() == this;
+		}
+
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+					runJobs();
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						HubConnection conn = (HubConnection) key.attachment();
+						if (key.isValid() && key.isReadable())
+							conn.onReadable();
+						if (key.isValid() && key.isWritable())
+							conn.onWritable();
+					}
+				}
+			} catch (ClosedSelectorException e) {
+			} catch (IOException e) {
+				logger.error("Exception in selector loop " + getName(), e);
+			} finally {
+				for (SelectionKey key : selector.keys())
+					((HubConnection) key.attachment()).closeNow();
+				try {
+					selector.close();
+				} catch (IOException e) {
+					logger.error("Exception while closing selector.", e);
+				}
+			}
+			logger.info(getName() + " now terminated.");
+		}
+
+		private void runJobs() {
+			Runnable job;
+			while ((job = jobs.poll()) != null)
+				job.run();
+		}
+
+		void stopIt() {
+			running = false;
+			selector.wakeup();
+		}
+	}
+}
@@ -37,7 +37,7 @@ import org.slf4j.Logger;
  */
 class InputThread extends DCIO implements Runnable {
 	private static final Logger logger = GlobalObjects.getLogger(InputThread.class);
-	private InputStream _in;
+	private DCInputStream _in;
 	private InputThreadTarget _inputThreadTrgt;
 	private volatile boolean running = false;
 	private String threadName;
@@ -54,7 +54,7 @@ class InputThread extends DCIO implements Runnable {
 
 	public InputThread(InputThreadTarget inputThreadTrgt, InputStream in, String threadName) {
 		_inputThreadTrgt = inputThreadTrgt;
-		_in = in;
+		_in = in instanceof DCInputStream ? (DCInputStream) in : new DCInputStream(in);
 		this.set_IOExceptionMsg("Disconnected");
 		if (threadName == null)
 			threadName = "InputThread";
@@ -88,7 +88,7 @@ class InputThread extends DCIO implements Runnable {
 	 * Starts the InputThread thread.
 	 */
 	public void start() {
-		Thread th = new Thread(this, threadName);
+		Thread th = ExecutionMode.newThread(this, threadName);
 		if (th.getState() == Thread.State.NEW) {
 			running = true;
 			th.start();
@@ -20,64 +20,299 @@ package org.elite.jdcbot.framework;
  * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
  */
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
 
 /**
+ * A single thread which runs the jobs given to it one after another,
+ * in the order they were given.
+ * <p>
+ * The jobs wait in a bounded queue. What happens when the queue is
+ * full is decided by the {@link OverflowPolicy}. The thread waits for
+ * jobs on a condition, so giving it a job never interrupts the job
+ * it is running (which may be in the middle of some blocking I/O).
+ * <p>
+ * This class is thread safe.
  * 
  * @author AppleGrew
  * @since 1.1.4
- * @version 1.0
+ * @version 1.1
  */
 public class JobThread extends Thread {
-	
+	private static final Logger logger = GlobalObjects.getLogger(JobThread.class);
+
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/**
+	 * Queued by {@link #terminate()}, the thread exits on reaching it.
+	 */
+	private static final Job STOP = new Job(null);
+
+	/**
+	 * What {@link JobThread#invokeLater(Runnable)} does when the queue is full.
+	 */
+	public static enum OverflowPolicy {
+		/**
+		 * The caller waits till there is room in the queue. Jobs
+		 * given by the JobThread to itself are always queued, since
+		 * waiting then would be a deadlock.
+		 */
+		BLOCK,
+		/**
+		 * The oldest queued job is dropped to make room.
+		 */
+		DROP_OLDEST,
+		/**
+		 * The job is not queued and RejectedExecutionException is thrown.
+		 */
+		REJECT
+	}
+
 	/*
 	 * For auto-numbering threads.
 	 */ 
     private static int threadInitNumber;
     private volatile boolean run = true;
-	private Queue<Runnable> jobs = new LinkedList<Runnable>();
+
+	private final ArrayDeque<Job> jobs;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	private long jobsRun = 0;
+	private long jobsDropped = 0;
+	private long jobsRejected = 0;
+	private int maxQueueDepth = 0;
+	private long totalWaitNanos = 0;
+	private long maxWaitNanos = 0;
 	
 	private static synchronized int nextThreadNum() {
 		return threadInitNumber++;
 	}
 	
 	public JobThread() {
-		super("Job Thread - " + nextThreadNum());
+		this("Job Thread - " + nextThreadNum());
 	}
 	
 	public JobThread(String threadName) {
+		this(threadName, DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+	}
+
+	/**
+	 * @param threadName
+	 * @param capacity The maximum number of jobs which can wait to be run.
+	 * @param policy What to do when a job is given while <i>capacity</i> jobs are already waiting.
+	 */
+	public JobThread(String threadName, int capacity, OverflowPolicy policy) {
 		super(threadName);
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be at least 1.");
+		if (policy == null)
+			throw new NullPointerException("policy is null.");
+		this.capacity = capacity;
+		this.policy = policy;
+		jobs = new ArrayDeque<Job>(Math.min(capacity, 256));
 	}
 	
+	/**
+	 * Stops the thread after it has run the jobs already waiting, like
+	 * the $Quit sent by {@link jDCBot#quit()}. Jobs given after this are dropped.
+	 */
 	public void terminate() {
-		run = false;
-		interrupt();
+		lock.lock();
+		try {
+			if (!run)
+				return;
+			run = false;
+			jobs.add(STOP);
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
 	}
 	
+	/**
+	 * Queues <i>job</i> to be run by this thread.
+	 * @param job
+	 * @throws RejectedExecutionException When the queue is full and the
+	 * policy is {@link OverflowPolicy#REJECT}.
+	 */
 	public void invokeLater(Runnable job) {
-		synchronized (jobs) {
-			jobs.add(job);
+		if (job == null)
+			throw new NullPointerException("job is null.");
+
+		lock.lock();
+		try {
+			if (!run) {
+				jobsDropped++;
+				logger.warn(getName() + " is terminated, job dropped.");
+				return;
+			}
+			if (jobs.size() >= capacity && Thread.currentThread() != this) {
+				switch (policy) {
+				case BLOCK:
+					while (run && jobs.size() >= capacity)
+						notFull.awaitUninterruptibly();
+					if (!run) {
+						jobsDropped++;
+						return;
+					}
+					break;
+				case DROP_OLDEST:
+					jobs.poll();
+					jobsDropped++;
+					break;
+				case REJECT:
+					jobsRejected++;
+					throw new RejectedExecutionException(getName() + " queue is full.");
+				}
+			}
+			jobs.add(new Job(job));
+			if (jobs.size() > maxQueueDepth)
+				maxQueueDepth = jobs.size();
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
 		}
-		interrupt();
 	}
 	
-	private Runnable getJob() {
-		synchronized (jobs) {
-			return jobs.poll();
+	private Job getJob() throws InterruptedException {
+		lock.lock();
+		try {
+			while (jobs.isEmpty())
+				notEmpty.await();
+			Job job = jobs.poll();
+			if (job == STOP)
+				return null;
+			notFull.signal();
+			long wait = System.nanoTime() - job.queuedAt;
+			totalWaitNanos += wait;
+			if (wait > maxWaitNanos)
+				maxWaitNanos = wait;
+			jobsRun++;
+			return job;
+		} finally {
+			lock.unlock();
 		}
 	}
 	
 	public void run() {
-		while(run) {
+		while(true) {
 			try {
-				Runnable job;
-				while((job = getJob()) != null) {
-					job.run();
-				}
-				interrupted(); //Clearing interrupt flag; if any.
-				sleep(6000L);
-			} catch (InterruptedException e) {}
+				Job job = getJob();
+				if (job == null)
+					break;
+				job.job.run();
+			} catch (InterruptedException e) {
+			} catch (RuntimeException e) {
+				logger.error("Exception in job run by " + getName(), e);
+			}
+		}
+	}
+
+	/**
+	 * @return Number of jobs waiting to be run.
+	 */
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			//Not counting the STOP queued by terminate().
+			return run ? jobs.size() : Math.max(0, jobs.size() - 1);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The most jobs that were waiting at any time.
+	 */
+	public int getMaxQueueDepth() {
+		lock.lock();
+		try {
+			return maxQueueDepth;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return Number of jobs taken up for running so far.
+	 */
+	public long getJobsRun() {
+		lock.lock();
+		try {
+			return jobsRun;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Number of jobs dropped due to overflow or termination.
+	 */
+	public long getJobsDropped() {
+		lock.lock();
+		try {
+			return jobsDropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getJobsRejected() {
+		lock.lock();
+		try {
+			return jobsRejected;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Average time (in milliseconds) jobs waited in the queue before being run.
+	 */
+	public double getAverageWaitMillis() {
+		lock.lock();
+		try {
+			return jobsRun == 0 ? 0 : totalWaitNanos / 1e6 / jobsRun;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The longest time (in milliseconds) any job waited in the queue.
+	 */
+	public double getMaxWaitMillis() {
+		lock.lock();
+		try {
+			return maxWaitNanos / 1e6;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static class Job {
+		final Runnable job;
+		final long queuedAt = System.nanoTime();
+
+		Job(Runnable job) {
+			this.job = job;
 		}
 	}
 }
@@ -80,6 +80,17 @@ public class MultiHubsAdapter implements UDPInputThreadTarget, BotInterface {
 	protected ShareManager shareManager;
 	protected DownloadCentral downloadCentral = null;
 	private UDPInputThread _udp_inputThread = null;
+	private UDPDemultiplexer udpDemultiplexer;
+	private final UDPSender udpSender = new UDPSender();
+	private int udpReceiveThreads = 1;
+	private HubConnectionEngine connectionEngine = null;
+	private long commandLatency = jDCBot.DEFAULT_COMMAND_LATENCY;
+	/**
+	 * These are shared by all the bots when
+	 * a HubConnectionEngine is used.
+	 */
+	JobThread outThread = null;
+	SearchResponder searchResponder = null;
 
 	protected List<jDCBot> bots;
 	protected Map<String, Hub> hubMap = null;
@@ -154,6 +165,7 @@ public class MultiHubsAdapter implements UDPInputThreadTarget, BotInterface {
 
 		lock = new ReentrantLock();
 		bots = Collections.synchronizedList(new ArrayList<jDCBot>(6));
+		udpDemultiplexer = new UDPDemultiplexer(bots);
 		hubMap = Collections.synchronizedMap(new HashMap<String, Hub>(6));
 		shareManager = null;
 
@@ -209,6 +221,7 @@ public class MultiHubsAdapter implements UDPInputThreadTarget, BotInterface {
 			throw new NullPointerException("Cannot remove null bot.");
 		}
 		bots.remove(bot);
+		udpDemultiplexer.clear();
 	}
 
 	public String getMiscDir() {
@@ -283,6 +296,59 @@ public class MultiHubsAdapter implements UDPInputThreadTarget, BotInterface {
 		return downloadCentral;
 	}
 
+	public long getCommandLatency() {
+		return commandLatency;
+	}
+
+	/**
+	 * Sets the command latency of all the bots. It takes effect
+	 * when each of them next connects to its hub. Only the setting is
+	 * shared, every bot still coalesces and writes its own commands, see
+	 * {@link CommandWriter}.
+	 * @see jDCBot#setCommandLatency(long)
+	 * @param millis
+	 */
+	public void setCommandLatency(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("Latency cannot be negative.");
+		commandLatency = millis;
+		synchronized (bots) {
+			for (jDCBot bot : bots)
+				bot.setCommandLatency(millis);
+		}
+	}
+
+	public HubConnectionEngine getConnectionEngine() {
+		return connectionEngine;
+	}
+
+	/**
+	 * Makes all the bots read from their hubs using the selector
+	 * threads of <i>engine</i>, instead of each creating its own
+	 * InputThread. In this mode the bots also share a single
+	 * output JobThread and SearchResponder, hence the number of threads
+	 * used does not grow with the number of hubs.
+	 * <p>
+	 * This must be called before creating any jDCBot
+	 * with this MultiHubsAdapter. The engine is closed when this
+	 * adapter is terminated.
+	 * @param engine
+	 */
+	public void setConnectionEngine(HubConnectionEngine engine) {
+		synchronized (bots) {
+			if (!bots.isEmpty())
+				throw new IllegalStateException("Connection engine must be set before creating any bot.");
+			connectionEngine = engine;
+			if (engine != null && outThread == null) {
+				outThread = new JobThread("MultiHubsAdapter OutThread");
+				outThread.setDaemon(true);
+				outThread.start();
+				searchResponder = new SearchResponder("MultiHubsAdapter SearchThread", SearchResponder.DEFAULT_WORKERS,
+						jDCBot.SEARCH_QUEUE_CAPACITY);
+			}
+		}
+	}
+
 	/**
 	 * <b>Note:</b> <u>Always</u> call {@link #setDirs(String, String)}
 	 * before calling this method else you will get all sorts of nasty
@@ -329,6 +395,13 @@ public class MultiHubsAdapter implements UDPInputThreadTarget, BotInterface {
 			bot.terminate();
 		if (_udp_inputThread != null)
 			_udp_inputThread.stop();
+		udpSender.close();
+		if (connectionEngine != null)
+			connectionEngine.close();
+		if (outThread != null)
+			outThread.terminate();
+		if (searchResponder != null)
+			searchResponder.terminate();
 		if (shareManager != null)
 			shareManager.close();
 		if (downloadCentral != null)
@@ -340,13 +413,47 @@ public class MultiHubsAdapter implements UDPInputThreadTarget, BotInterface {
 		}
 	}
 
+	/**
+	 * $SRs are handed only to the bot connected to the hub named in them,
+	 * see {@link UDPDemultiplexer}. Other packets are handed to all the bots.
+	 */
 	public void handleUDPCommand(String rawCommand, String ip, int port) {
-		synchronized (bots) {
-			for (jDCBot bot : bots)
-				bot.handleUDPCommand(rawCommand, ip, port);
+		udpDemultiplexer.dispatch(rawCommand, ip, port);
+	}
+
+	/**
+	 * Sets the number of threads receiving (and parsing) UDP packets.
+	 * This is useful when the bots are connected to many hubs and get
+	 * lots of search results. Default is 1.
+	 * <p>
+	 * If the UDP port is already being listened on then it is reopened.
+	 * @param threads
+	 * @throws SocketException If the UDP port could not be reopened.
+	 */
+	public void setUDPReceiveThreads(int threads) throws SocketException {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be at least 1.");
+		synchronized (this) {
+			udpReceiveThreads = threads;
+			if (_udp_inputThread != null && !_udp_inputThread.isClosed() && _udp_inputThread.getThreadCount() != threads) {
+				_udp_inputThread.stop();
+				_udp_inputThread = null;
+				initiateUDPListening();
+			}
 		}
 	}
 
+	public synchronized int getUDPReceiveThreads() {
+		return udpReceiveThreads;
+	}
+
+	/**
+	 * @return The sender of the active search results, shared by all the bots.
+	 */
+	public UDPSender getUDPSender() {
+		return udpSender;
+	}
+
 	public void onUDPExceptionClose(IOException e) {
 		_udp_inputThread = null;
 		try {
@@ -362,7 +469,7 @@ public class MultiHubsAdapter implements UDPInputThreadTarget, BotInterface {
 			return;
 
 		udpSocket = new DatagramSocket(_udp_port);
-		_udp_inputThread = new UDPInputThread(this, udpSocket);
+		_udp_inputThread = new UDPInputThread(this, udpSocket, udpReceiveThreads);
 		_udp_inputThread.start();
 	}
 
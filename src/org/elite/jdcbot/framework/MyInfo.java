@@ -0,0 +1,198 @@
+/*
+ * MyInfo.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.framework;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+
+/**
+ * Created on 18-Oct-10<br>
+ * The parsed form of a user's $MyINFO. Everything {@link User}
+ * reports about the user's info and client tag is worked out once
+ * here, when the $MyINFO arrives, and not on every call.
+ * <p>
+ * Values which repeat across users (connection types, client
+ * names, versions, etc.) are interned, so that thousands of
+ * users share few instances of them.
+ * <p>
+ * This class is immutable, hence thread safe.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+final class MyInfo {
+	private static final Logger logger = GlobalObjects.getLogger(MyInfo.class);
+	/**
+	 * Beyond this many values the pool stops growing, so that
+	 * a hub sending junk cannot make it grow without bound.
+	 */
+	private static final int MAX_POOL_SIZE = 8192;
+	private static final ConcurrentHashMap<String, String> pool = new ConcurrentHashMap<String, String>();
+
+	static final MyInfo EMPTY = new MyInfo(null, "", "", "", "0");
+
+	/**
+	 * The $MyINFO exactly as received, after the nick and the following space.
+	 * It is null when this was not created from a $MyINFO.
+	 */
+	final String raw;
+	final String desc, conn, mail, share, tag;
+	final String client, version;
+	final int slots, flag;
+	final boolean active;
+
+	private MyInfo(String raw, String desc, String conn, String mail, String share) {
+		this.raw = raw;
+		this.desc = desc;
+		this.conn = intern(conn);
+		this.mail = intern(mail);
+		this.share = share;
+
+		String t = "";
+		int index = desc.indexOf('<');
+		if (index != -1) {
+			if (index + 1 <= desc.length() - 1)
+				t = intern(desc.substring(index + 1, desc.length() - 1));
+			else
+				logger.warn("Malformed tag in user description: " + desc);
+		}
+		tag = t;
+		client = intern(parseClient(t));
+		version = intern(parseVersion(t));
+		slots = parseSlots(t);
+		active = t.indexOf(",M:A") != -1;
+		flag = parseFlag(this.conn);
+	}
+
+	/**
+	 * @param desc
+	 * @param conn
+	 * @param mail
+	 * @param share
+	 * @return The info made from the given fields. Null fields are taken as empty.
+	 */
+	static MyInfo create(String desc, String conn, String mail, String share) {
+		return new MyInfo(null, desc == null ? "" : desc, conn == null ? "" : conn, mail == null ? "" : mail,
+				share == null ? "0" : share);
+	}
+
+	/**
+	 * Parses the part of $MyINFO $ALL after the nick, i.e.
+	 * <i>description</i>$ $<i>connection</i>$<i>e-mail</i>$<i>share size</i>$
+	 * @param info The string containing the $MyINFO.
+	 * @param start The index in <i>info</i> where the description starts.
+	 * @param end The index in <i>info</i> just after the last '$'.
+	 * @return
+	 * @throws IndexOutOfBoundsException If <i>info</i> is malformed.
+	 */
+	static MyInfo parse(String info, int start, int end) {
+		int descEnd = info.indexOf('$', start);
+		int connEnd = descEnd == -1 ? -1 : info.indexOf('$', descEnd + 3);
+		int mailEnd = connEnd == -1 ? -1 : info.indexOf('$', connEnd + 1);
+		int shareEnd = mailEnd == -1 ? -1 : info.indexOf('$', mailEnd + 1);
+		if (shareEnd == -1 || shareEnd >= end)
+			throw new IndexOutOfBoundsException("Malformed $MyINFO: " + info);
+
+		return new MyInfo(info.substring(start, end), info.substring(start, descEnd), info.substring(descEnd + 3, connEnd),
+				info.substring(connEnd + 1, mailEnd), info.substring(mailEnd + 1, shareEnd));
+	}
+
+	/**
+	 * Checks, without creating any objects, whether this was parsed from the same
+	 * $MyINFO as the one in <i>info</i>.
+	 * @param info
+	 * @param start The index in <i>info</i> where the description starts.
+	 * @param end The index in <i>info</i> just after the last '$'.
+	 * @return
+	 */
+	boolean isSameAs(String info, int start, int end) {
+		return raw != null && end - start == raw.length() && info.regionMatches(start, raw, 0, raw.length());
+	}
+
+	/**
+	 * @param s
+	 * @return The pooled instance equal to <i>s</i>.
+	 */
+	static String intern(String s) {
+		if (s.length() == 0)
+			return "";
+		String p = pool.get(s);
+		if (p != null)
+			return p;
+		if (pool.size() >= MAX_POOL_SIZE)
+			return s;
+		p = pool.putIfAbsent(s, s);
+		return p == null ? s : p;
+	}
+
+	private static String parseClient(String tag) {
+		int space = tag.indexOf(' ');
+		if (space == -1)
+			return "";
+		return tag.substring(0, space);
+	}
+
+	private static String parseVersion(String tag) {
+		int index1 = tag.indexOf(" V:");
+		if (index1 == -1)
+			return "";
+		index1 += 2;
+		int index2 = tag.indexOf(',', index1);
+		if (index2 == -1)
+			return "";
+		return tag.substring(index1, index2 + 1);
+	}
+
+	private static int parseSlots(String tag) {
+		int index = tag.indexOf(",S:");
+		if (index == -1)
+			return 0;
+		int slots = 0;
+		for (int i = index + 3; i < tag.length(); i++) {
+			char c = tag.charAt(i);
+			if (c < '0' || c > '9')
+				break;
+			slots = slots * 10 + (c - '0');
+		}
+		return slots;
+	}
+
+	/**
+	 * The last character of the connection type is
+	 * the user's status flag.
+	 */
+	private static int parseFlag(String conn) {
+		int len = conn.length();
+		if (len == 0)
+			return User.NORMAL_FLAG;
+		char c = conn.charAt(len - 1);
+		if (c < '0' || c > '9')
+			return User.NORMAL_FLAG;
+		int flag = c - '0';
+		if (len >= 2 && conn.charAt(len - 2) == '1')
+			flag += 10;
+		//Odd flags are mapped to the even flag just below.
+		if (flag >= 3 && flag <= 11 && flag % 2 == 1)
+			flag--;
+		return flag;
+	}
+}
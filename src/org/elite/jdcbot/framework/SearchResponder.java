@@ -0,0 +1,240 @@
+/*
+ * SearchResponder.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.framework;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * Created on 18-Oct-10<br>
+ * A pool of threads answering the searches made by other users.
+ * <p>
+ * A search is worth answering only while the searcher is still waiting
+ * for results. So every search is given a deadline, {@link #setMaxSearchAge(long)}
+ * after it was received. Searches still waiting in the queue at their
+ * deadline are shed, i.e. dropped without being answered. When the queue
+ * is full the oldest waiting search is shed to make room for the new one.
+ * <p>
+ * The threads are made as per {@link ExecutionMode}.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+public class SearchResponder {
+	private static final Logger logger = GlobalObjects.getLogger(SearchResponder.class);
+
+	public static final int DEFAULT_WORKERS = 2;
+	public static final long DEFAULT_MAX_SEARCH_AGE = 5000;
+
+	/**
+	 * Queued to wake up idle threads so that they check if they must exit.
+	 */
+	private static final Search POISON = new Search(null, 0);
+
+	private final String name;
+	private final BlockingQueue<Search> queue;
+	private volatile long maxSearchAge = DEFAULT_MAX_SEARCH_AGE;
+	private volatile boolean running = true;
+
+	//Guarded by this.
+	private int workers;
+	private int alive = 0;
+	private int threadNum = 0;
+
+	private final AtomicLong answered = new AtomicLong();
+	private final AtomicLong shed = new AtomicLong();
+	private final AtomicLong late = new AtomicLong();
+
+	/**
+	 * Creates the responder and starts its threads.
+	 * @param name Prefix of the threads' names.
+	 * @param workers Number of threads.
+	 * @param capacity Max number of searches waiting to be answered.
+	 */
+	public SearchResponder(String name, int workers, int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be at least 1.");
+		this.name = name;
+		queue = new ArrayBlockingQueue<Search>(capacity);
+		setWorkers(workers);
+	}
+
+	/**
+	 * Queues a search to be answered. This never blocks.
+	 * @param search The code which searches and sends the results.
+	 */
+	public void submit(Runnable search) {
+		if (!running)
+			return;
+		Search s = new Search(search, System.currentTimeMillis());
+		while (!queue.offer(s)) {
+			Search old = queue.poll();
+			if (old != null && old != POISON)
+				shed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Changes the number of threads. When reducing, the extra threads
+	 * exit after finishing the search they are answering.
+	 * @param workers
+	 */
+	public synchronized void setWorkers(int workers) {
+		if (workers < 1)
+			throw new IllegalArgumentException("workers must be at least 1.");
+		this.workers = workers;
+		while (running && alive < workers) {
+			alive++;
+			Thread th = ExecutionMode.newThread(new Worker(), name + " " + threadNum++);
+			th.setDaemon(true);
+			th.start();
+		}
+		wakeUp(alive - workers);
+	}
+
+	public synchronized int getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * @param millis How long after being received a search is worth answering.
+	 */
+	public void setMaxSearchAge(long millis) {
+		if (millis <= 0)
+			throw new IllegalArgumentException("millis must be positive.");
+		maxSearchAge = millis;
+	}
+
+	public long getMaxSearchAge() {
+		return maxSearchAge;
+	}
+
+	/**
+	 * Stops all the threads. The searches waiting are discarded.
+	 */
+	public void terminate() {
+		running = false;
+		queue.clear();
+		synchronized (this) {
+			wakeUp(alive);
+		}
+	}
+
+	/**
+	 * Queues a POISON for each of <i>count</i> threads. If one is shed
+	 * since the queue is full, that is fine, the threads are then busy
+	 * and check if they must exit after every search.
+	 * @param count
+	 */
+	private void wakeUp(int count) {
+		for (int i = 0; i < count; i++)
+			queue.offer(POISON);
+	}
+
+	/**
+	 * @return true if the calling thread must exit.
+	 */
+	private synchronized boolean retire() {
+		if (running && alive <= workers)
+			return false;
+		alive--;
+		return true;
+	}
+
+	/**
+	 * @return Number of searches answered, including the late ones.
+	 */
+	public long getAnsweredCount() {
+		return answered.get();
+	}
+
+	/**
+	 * @return Number of searches dropped without being answered, since
+	 * they were too old or the queue was full.
+	 */
+	public long getShedCount() {
+		return shed.get();
+	}
+
+	/**
+	 * @return Number of searches whose answering finished after their deadline.
+	 */
+	public long getLateCount() {
+		return late.get();
+	}
+
+	/**
+	 * @return Number of searches waiting to be answered.
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuffer("SearchResponder[answered:").append(getAnsweredCount()).append(", shed:").append(getShedCount())
+		.append(", late:").append(getLateCount()).append(", queued:").append(getQueueDepth()).append("]").toString();
+	}
+
+	private static class Search {
+		final Runnable job;
+		final long receivedAt;
+
+		Search(Runnable job, long receivedAt) {
+			this.job = job;
+			this.receivedAt = receivedAt;
+		}
+	}
+
+	private class Worker implements Runnable {
+		public void run() {
+			while (!retire()) {
+				Search s;
+				try {
+					s = queue.take();
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if (s == POISON)
+					continue;
+
+				long deadline = s.receivedAt + maxSearchAge;
+				if (System.currentTimeMillis() > deadline) {
+					shed.incrementAndGet();
+					continue;
+				}
+				try {
+					s.job.run();
+				} catch (Exception e) {
+					logger.error("Exception while answering search.", e);
+				}
+				answered.incrementAndGet();
+				if (System.currentTimeMillis() > deadline)
+					late.incrementAndGet();
+			}
+		}
+	}
+}
@@ -20,6 +20,8 @@
 package org.elite.jdcbot.framework;
 
 import java.io.InputStream;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created on 27-May-08<br>
@@ -28,6 +30,9 @@ import java.io.InputStream;
  * InputThread. This is used by UploadHandler so that
  * idle connections can be closed and slots can be freed
  * for the needy.
+ * <p>
+ * The idle time is checked by the timer shared by all the
+ * instances of this, see {@link ExecutionMode}.
  *
  * @author AppleGrew
  * @since 0.7
@@ -35,7 +40,8 @@ import java.io.InputStream;
  */
 public class TimeoutInputThread extends InputThread {
     private long timeout = 30000; //30 sec
-    private Timer timer = null;
+    private volatile long prevTime = -1;
+    private ScheduledFuture<?> timer = null;
 
     /** Constructs thread that will read raw commands from hub
      *
@@ -44,58 +50,40 @@ public class TimeoutInputThread extends InputThread {
      */
     public TimeoutInputThread(InputThreadTarget inputThreadTrgt, InputStream in) {
 	super(inputThreadTrgt, in, "TimeoutInputThread");
-	timer = new Timer();
     }
 
     @Override
     protected void onReadingCommand() {
-	timer.resetTimer();
+	prevTime = System.currentTimeMillis();
     }
 
     @Override
     public void start() {
 	super.start();
-	timer.start();
-	timer.resetTimer();
+	prevTime = System.currentTimeMillis();
+	synchronized (this) {
+	    //The check runs on the shared timer thread, not on a thread of its own.
+	    timer = ExecutionMode.getTimer().scheduleWithFixedDelay(new Runnable() {
+		@Override
+		public void run() {
+		    if (System.currentTimeMillis() - prevTime >= timeout)
+			onTimeout();
+		}
+	    }, timeout, timeout, TimeUnit.MILLISECONDS);
+	}
     }
 
     @Override
     public void stop() {
-	timer.stopIt();
+	synchronized (this) {
+	    if (timer != null)
+		timer.cancel(false);
+	    timer = null;
+	}
 	super.stop();
     }
 
     private void onTimeout() {
 	stop();
     }
-
-    private class Timer extends Thread {
-	private volatile boolean timerRunning = true;
-	private long prevTime = -1;
-
-	public void run() {
-	    while (timerRunning) {
-		try {
-		    sleep(timeout);
-		    if (prevTime != -1 && System.currentTimeMillis() - prevTime >= timeout)
-			onTimeout();
-		} catch (InterruptedException e) {}
-	    }
-	}
-
-	/**
-	 * Stops the thread.
-	 */
-	public synchronized void stopIt() {
-	    timerRunning = false;
-	    try {
-		interrupt();
-	    } catch (Exception e) {}
-	}
-
-	public void resetTimer() {
-	    prevTime = System.currentTimeMillis();
-	}
-
-    }
 }
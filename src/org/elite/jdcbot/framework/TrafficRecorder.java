@@ -0,0 +1,171 @@
+/*
+ * TrafficRecorder.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.framework;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+
+/**
+ * Created on 18-Oct-10<br>
+ * Records the raw commands a bot receives, from the hub and over UDP,
+ * so that they can later be fed back by {@link TrafficReplayer}.
+ * Set it using {@link jDCBot#setTrafficRecorder(TrafficRecorder)}.
+ * <p>
+ * The capture is a gzipped stream of records. It starts with
+ * {@link #MAGIC} and {@link #VERSION}, followed by records of the form:<br>
+ * <code>kind(byte) millis_since_start(int) [ip(UTF) port(int)] length(int) command(UTF-8 bytes)</code><br>
+ * where the ip and port are present only for {@link #UDP} and {@link #HUB_ADDRESS}
+ * records. A {@link #HUB_ADDRESS} record carries no command.
+ * <p>
+ * Use one recorder per bot. If writing fails then recording
+ * stops, the bot itself is not affected.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+public class TrafficRecorder {
+	private static final Logger logger = GlobalObjects.getLogger(TrafficRecorder.class);
+
+	static final int MAGIC = 0x4A444354; //JDCT
+	static final int VERSION = 1;
+
+	static final byte HUB = 0;
+	static final byte UDP = 1;
+	static final byte HUB_ADDRESS = 2;
+
+	private final DataOutputStream out;
+	private final long startTime = System.currentTimeMillis();
+	private long records = 0;
+	private boolean closed = false;
+
+	public TrafficRecorder(String file) throws IOException {
+		this(new File(file));
+	}
+
+	public TrafficRecorder(File file) throws IOException {
+		this(new FileOutputStream(file));
+	}
+
+	/**
+	 * @param os Where the capture is written. It is closed by {@link #close()}.
+	 * @throws IOException
+	 */
+	public TrafficRecorder(OutputStream os) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(os), 64 * 1024));
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+	}
+
+	/**
+	 * Records the address of the hub the bot is connected to, so that
+	 * the commands which are checked against it replay correctly.
+	 */
+	synchronized void recordHubAddress(String ip, int port) {
+		if (closed)
+			return;
+		try {
+			out.writeByte(HUB_ADDRESS);
+			out.writeInt(elapsed());
+			out.writeUTF(ip);
+			out.writeInt(port);
+			records++;
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	synchronized void recordHubCommand(String rawCommand) {
+		if (closed)
+			return;
+		try {
+			out.writeByte(HUB);
+			out.writeInt(elapsed());
+			writeCommand(rawCommand);
+			records++;
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	synchronized void recordUDPCommand(String rawCommand, String ip, int port) {
+		if (closed)
+			return;
+		try {
+			out.writeByte(UDP);
+			out.writeInt(elapsed());
+			out.writeUTF(ip);
+			out.writeInt(port);
+			writeCommand(rawCommand);
+			records++;
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	private void writeCommand(String rawCommand) throws IOException {
+		byte b[] = rawCommand.getBytes("UTF-8");
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private int elapsed() {
+		return (int) (System.currentTimeMillis() - startTime);
+	}
+
+	private void failed(IOException e) {
+		logger.error("Exception while recording traffic, recording stopped.", e);
+		close();
+	}
+
+	/**
+	 * @return The number of records written so far.
+	 */
+	public synchronized long getRecordCount() {
+		return records;
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Finishes the capture. Nothing is recorded after this.
+	 */
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			out.close();
+		} catch (IOException e) {
+			logger.error("Exception while closing the capture.", e);
+		}
+	}
+}
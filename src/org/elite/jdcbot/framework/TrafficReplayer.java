@@ -0,0 +1,347 @@
+/*
+ * TrafficReplayer.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.framework;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+
+/**
+ * Created on 18-Oct-10<br>
+ * Feeds a capture made by {@link TrafficRecorder} back into a bot,
+ * through {@link jDCBot#handleCommand(String)} and
+ * {@link jDCBot#handleUDPCommand(String, String, int)}, as fast as
+ * possible and without any sockets. The commands are replayed in the
+ * order they were recorded, from the calling thread, and timed
+ * individually.
+ * <p>
+ * The whole capture is loaded into memory before replaying, so that
+ * reading it does not get measured. $ConnectToMe and $RevConnectToMe
+ * are skipped since handling them would make connections to the peers
+ * named in them.
+ * <p>
+ * This can be run from the command line too, see {@link #main(String[])}.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+public class TrafficReplayer {
+	private static final Logger logger = GlobalObjects.getLogger(TrafficReplayer.class);
+
+	private jDCBot bot;
+	private final List<Record> records = new ArrayList<Record>();
+
+	/**
+	 * @param bot The bot to feed the commands to. It should not be connected to any hub.
+	 */
+	public TrafficReplayer(jDCBot bot) {
+		setBot(bot);
+	}
+
+	/**
+	 * Sets the bot to replay into from now on, the loaded capture is kept.
+	 * A bot remembers the users and their infos from an earlier replay, so
+	 * replaying the capture into it again measures less work than the first
+	 * time. Use a new bot for every pass which is measured.
+	 * @param bot The bot to feed the commands to. It should not be connected to any hub.
+	 */
+	public void setBot(jDCBot bot) {
+		if (bot == null)
+			throw new NullPointerException("bot is null.");
+		this.bot = bot;
+	}
+
+	/**
+	 * Loads the capture, replacing any previously loaded one.
+	 * @param file
+	 * @throws IOException If the file is not a capture or it could not be read.
+	 */
+	public void load(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Loads the capture, replacing any previously loaded one.
+	 * @param is
+	 * @throws IOException If the stream is not a capture or it could not be read.
+	 */
+	public void load(InputStream is) throws IOException {
+		records.clear();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(is), 64 * 1024));
+		if (in.readInt() != TrafficRecorder.MAGIC)
+			throw new IOException("Not a traffic capture.");
+		int version = in.readUnsignedByte();
+		if (version != TrafficRecorder.VERSION)
+			throw new IOException("Unsupported capture version: " + version);
+
+		while (true) {
+			int kind;
+			try {
+				kind = in.readByte();
+			} catch (EOFException e) {
+				break;
+			}
+			Record r = new Record();
+			r.kind = (byte) kind;
+			in.readInt(); //Time of the record, not used since we replay at full speed.
+			if (kind == TrafficRecorder.UDP || kind == TrafficRecorder.HUB_ADDRESS) {
+				r.ip = in.readUTF();
+				r.port = in.readInt();
+			}
+			if (kind == TrafficRecorder.HUB || kind == TrafficRecorder.UDP) {
+				byte b[] = new byte[in.readInt()];
+				in.readFully(b);
+				r.command = new String(b, "UTF-8");
+			} else if (kind != TrafficRecorder.HUB_ADDRESS)
+				throw new IOException("Corrupt capture, unknown record kind: " + kind);
+			records.add(r);
+		}
+		logger.info("Loaded " + records.size() + " records.");
+	}
+
+	/**
+	 * @return Number of records loaded.
+	 */
+	public int getRecordCount() {
+		return records.size();
+	}
+
+	/**
+	 * Replays the loaded capture once.
+	 * @return The measurements.
+	 */
+	public Stats replay() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long latencies[] = new long[records.size()];
+		int count = 0, skipped = 0, errors = 0;
+
+		long allocStart = allocatedBytes(threadBean, threadId);
+		long start = System.nanoTime();
+		for (Record r : records) {
+			if (r.kind == TrafficRecorder.HUB_ADDRESS) {
+				try {
+					bot._ip = InetAddress.getByName(r.ip);
+					bot._port = r.port;
+				} catch (IOException e) {
+					logger.warn("Could not set hub address to " + r.ip, e);
+				}
+				continue;
+			}
+			if (r.kind == TrafficRecorder.HUB
+					&& (r.command.startsWith("$ConnectToMe") || r.command.startsWith("$RevConnectToMe"))) {
+				skipped++;
+				continue;
+			}
+
+			long t = System.nanoTime();
+			try {
+				if (r.kind == TrafficRecorder.HUB)
+					bot.handleCommand(r.command);
+				else
+					bot.handleUDPCommand(r.command, r.ip, r.port);
+			} catch (RuntimeException e) {
+				errors++;
+				if (logger.isDebugEnabled())
+					logger.debug("Exception while replaying: " + r.command, e);
+			}
+			latencies[count++] = System.nanoTime() - t;
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocEnd = allocatedBytes(threadBean, threadId);
+
+		Stats s = new Stats();
+		s.commands = count;
+		s.skipped = skipped;
+		s.errors = errors;
+		s.elapsedNanos = elapsed;
+		s.allocatedBytes = allocStart < 0 || allocEnd < 0 ? -1 : allocEnd - allocStart;
+		Arrays.sort(latencies, 0, count);
+		s.latencies = Arrays.copyOf(latencies, count);
+		return s;
+	}
+
+	/**
+	 * @return Bytes allocated so far by the given thread, or -1 if the
+	 * JVM cannot tell that.
+	 */
+	private static long allocatedBytes(ThreadMXBean bean, long threadId) {
+		try {
+			Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+			if (!c.isInstance(bean))
+				return -1;
+			Method m = c.getMethod("getThreadAllocatedBytes", long.class);
+			return (Long) m.invoke(bean, threadId);
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The result of one replay.
+	 */
+	public static class Stats {
+		private int commands, skipped, errors;
+		private long elapsedNanos, allocatedBytes;
+		/**
+		 * Sorted.
+		 */
+		private long latencies[];
+
+		/**
+		 * @return Number of commands replayed.
+		 */
+		public int getCommands() {
+			return commands;
+		}
+
+		/**
+		 * @return Number of commands not replayed.
+		 */
+		public int getSkipped() {
+			return skipped;
+		}
+
+		/**
+		 * @return Number of commands whose handling threw an exception.
+		 */
+		public int getErrors() {
+			return errors;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		public double getCommandsPerSecond() {
+			return elapsedNanos == 0 ? 0 : commands * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * @return Bytes allocated by the replaying thread, or -1 if
+		 * the JVM does not support measuring that. Allocations made
+		 * by other threads (like the event dispatch thread) are not
+		 * included.
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		/**
+		 * @return Bytes allocated per second, or -1 if not known.
+		 */
+		public double getAllocationRate() {
+			if (allocatedBytes < 0)
+				return -1;
+			return elapsedNanos == 0 ? 0 : allocatedBytes * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * @param percentile Between 0 and 100.
+		 * @return Latency in nanoseconds of handling a single command.
+		 */
+		public long getLatencyPercentile(double percentile) {
+			if (latencies.length == 0)
+				return 0;
+			int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(latencies.length - 1, index))];
+		}
+
+		@Override
+		public String toString() {
+			return new StringBuffer("commands: ").append(commands).append(", skipped: ").append(skipped)
+			.append(", errors: ").append(errors)
+			.append(", time: ").append(elapsedNanos / 1000000).append(" ms")
+			.append(", commands/sec: ").append((long) getCommandsPerSecond())
+			.append(", allocated: ").append(allocatedBytes < 0 ? "unknown" : (allocatedBytes / 1024) + " KB")
+			.append(", alloc rate: ").append(allocatedBytes < 0 ? "unknown" : (long) (getAllocationRate() / (1024 * 1024)) + " MB/s")
+			.append(", latency (us) p50: ").append(getLatencyPercentile(50) / 1000.0)
+			.append(" p90: ").append(getLatencyPercentile(90) / 1000.0)
+			.append(" p99: ").append(getLatencyPercentile(99) / 1000.0)
+			.append(" p99.9: ").append(getLatencyPercentile(99.9) / 1000.0)
+			.append(" max: ").append(getLatencyPercentile(100) / 1000.0).toString();
+		}
+	}
+
+	private static class Record {
+		byte kind;
+		String command;
+		String ip;
+		int port;
+	}
+
+	/**
+	 * Replays a capture into bare bots and prints the measurements.<br>
+	 * Usage: TrafficReplayer &lt;capture file&gt; [passes]<br>
+	 * All passes but the last are treated as warm-up. Every pass is made
+	 * into a new bot, so only the JVM's warm-up carries over to the next.
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String args[]) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: TrafficReplayer <capture file> [passes]");
+			System.exit(1);
+		}
+		int passes = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		BotConfig config = new BotConfig();
+		config.setBotIP("127.0.0.1");
+		config.setListenPort(0);
+		config.setUDP_listenPort(0);
+
+		TrafficReplayer replayer = null;
+		for (int i = 1; i <= passes; i++) {
+			jDCBot bot = new jDCBot(config) {};
+			if (replayer == null) {
+				replayer = new TrafficReplayer(bot);
+				replayer.load(new File(args[0]));
+			} else
+				replayer.setBot(bot);
+
+			Stats s = replayer.replay();
+			System.out.println((i < passes ? "Warm-up " : "Measured ") + "pass " + i + ": " + s);
+			bot.terminate();
+		}
+		System.exit(0);
+	}
+}
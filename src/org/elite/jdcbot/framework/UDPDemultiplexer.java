@@ -0,0 +1,157 @@
+/*
+ * UDPDemultiplexer.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.framework;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * Created on 18-Oct-10<br>
+ * Hands the UDP packets received by {@link MultiHubsAdapter} to the bot
+ * they are meant for. The hub address at the end of a $SR is
+ * extracted once and looked up in a table of the bots' hub addresses,
+ * so only the bot connected to that hub parses the result. Packets
+ * other than $SR are still given to all the bots.
+ * <p>
+ * The table is filled as the results arrive, by searching the bots
+ * for the one connected to the hub. Since a bot may later connect to
+ * some other hub, every lookup is checked against the bot's current
+ * hub address.
+ * <p>
+ * This class is thread safe, it can be called by many UDP receiving
+ * threads at once.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+final class UDPDemultiplexer {
+	private static final Logger logger = GlobalObjects.getLogger(UDPDemultiplexer.class);
+
+	/**
+	 * Must be a synchronized list.
+	 */
+	private final List<jDCBot> bots;
+	/**
+	 * Hub address (ip:port) to the bot connected to it. Entries are
+	 * added only for hubs a bot is connected to, so this cannot grow
+	 * beyond the number of bots by junk packets.
+	 */
+	private final ConcurrentHashMap<String, jDCBot> routes = new ConcurrentHashMap<String, jDCBot>();
+
+	private final AtomicLong routed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong broadcast = new AtomicLong();
+
+	UDPDemultiplexer(List<jDCBot> bots) {
+		this.bots = bots;
+	}
+
+	void dispatch(String rawCommand, String ip, int port) {
+		String hubAddress = hubAddressOf(rawCommand);
+		if (hubAddress == null) {
+			broadcast.incrementAndGet();
+			synchronized (bots) {
+				for (jDCBot bot : bots)
+					bot.handleUDPCommand(rawCommand, ip, port);
+			}
+			return;
+		}
+
+		jDCBot bot = routes.get(hubAddress);
+		if (bot == null || !hubAddress.equals(bot.getHubAddress())) {
+			if (bot != null)
+				routes.remove(hubAddress, bot);
+			bot = findBot(hubAddress);
+		}
+		if (bot == null) {
+			dropped.incrementAndGet();
+			if (logger.isDebugEnabled())
+				logger.debug("Search result meant for unknown hub " + hubAddress + " has been ignored.");
+			return;
+		}
+		routed.incrementAndGet();
+		bot.handleUDPCommand(rawCommand, ip, port);
+	}
+
+	private jDCBot findBot(String hubAddress) {
+		synchronized (bots) {
+			for (jDCBot bot : bots)
+				if (hubAddress.equals(bot.getHubAddress())) {
+					routes.put(hubAddress, bot);
+					return bot;
+				}
+		}
+		return null;
+	}
+
+	/**
+	 * Forgets all the routes. To be called when a bot is removed.
+	 */
+	void clear() {
+		routes.clear();
+	}
+
+	/**
+	 * Extracts the hub's address from a $SR, i.e. the <i>hub_ip[:port]</i>
+	 * in the brackets at its end.
+	 * @param rawCommand
+	 * @return The address in the form <i>ip:port</i>, or null if <i>rawCommand</i>
+	 * is not a $SR or has no hub address.
+	 */
+	static String hubAddressOf(String rawCommand) {
+		if (!rawCommand.startsWith("$SR "))
+			return null;
+		int end = rawCommand.lastIndexOf(')');
+		if (end == -1)
+			return null;
+		int start = rawCommand.lastIndexOf('(', end);
+		if (start == -1 || end - start < 2)
+			return null;
+		String address = rawCommand.substring(start + 1, end);
+		if (address.indexOf(':') == -1)
+			address = address + ":411";
+		return address;
+	}
+
+	/**
+	 * @return Number of $SRs handed to a single bot.
+	 */
+	long getRoutedCount() {
+		return routed.get();
+	}
+
+	/**
+	 * @return Number of $SRs not meant for any of the bots.
+	 */
+	long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return Number of other packets, which were handed to all the bots.
+	 */
+	long getBroadcastCount() {
+		return broadcast.get();
+	}
+}
@@ -37,10 +37,10 @@ import org.slf4j.Logger;
  */
 public class UDPInputThread implements Runnable {
 	private static final Logger logger = GlobalObjects.getLogger(UDPInputThread.class);
-	private DatagramPacket _packet;
+	private static final int BUFFER_SIZE = 10240; //Max. possible size is 64KB
 	private DatagramSocket _socket;
-	private byte buffer[];
 	private UDPInputThreadTarget _inputThreadTrgt;
+	private final int threads;
 	private volatile boolean running = false;
 
 	/** Constructs thread that will read raw commands from hub
@@ -49,27 +49,43 @@ public class UDPInputThread implements Runnable {
 	 * @param in InputStream class from which we will read.
 	 */
 	public UDPInputThread(UDPInputThreadTarget inputThreadTrgt, DatagramSocket socket) {
+		this(inputThreadTrgt, socket, 1);
+	}
+
+	/**
+	 * Constructs threads which will all receive from the same socket.
+	 * Each packet is received, and handled, by only one of them, so
+	 * <i>inputThreadTrgt</i> must be able to handle packets from many
+	 * threads at once.
+	 * @param inputThreadTrgt
+	 * @param socket
+	 * @param threads Number of threads to receive on.
+	 */
+	public UDPInputThread(UDPInputThreadTarget inputThreadTrgt, DatagramSocket socket, int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be at least 1.");
 		_inputThreadTrgt = inputThreadTrgt;
 		_socket = socket;
-		buffer = new byte[10240]; //Max. possible size is 64KB
-		_packet = new DatagramPacket(buffer, buffer.length);
+		this.threads = threads;
 	}
 
 	public void run() {
+		//Each receiving thread has its own packet.
+		byte buffer[] = new byte[BUFFER_SIZE];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
 		try {
-			running = true;
 			while (running) {
 				//Wait to receive a datagram
-				_socket.receive(_packet);
+				_socket.receive(packet);
 
-				_inputThreadTrgt.handleUDPCommand(new String(buffer, 0, _packet.getLength()), _packet.getAddress().getHostAddress(),
-						_packet.getPort());
+				_inputThreadTrgt.handleUDPCommand(new String(buffer, 0, packet.getLength()), packet.getAddress().getHostAddress(),
+						packet.getPort());
 
 				//Reset the length of the packet before reusing it.
-				_packet.setLength(buffer.length);
+				packet.setLength(buffer.length);
 			}
 		} catch (IOException e) {
-			if (running) {
+			if (closeOnError()) {
 				logger.error("Exception in run().", e);
 				_inputThreadTrgt.onUDPExceptionClose(e);
 			}
@@ -78,17 +94,31 @@ public class UDPInputThread implements Runnable {
 	}
 
 	/**
-	 * Starts the InputThread thread.
+	 * @return true only for the first receiving thread that fails, so that
+	 * the target is told about it just once.
+	 */
+	private synchronized boolean closeOnError() {
+		if (!running)
+			return false;
+		running = false;
+		//The other receiving threads are blocked on the socket.
+		_socket.close();
+		return true;
+	}
+
+	/**
+	 * Starts the InputThread thread(s).
 	 */
 	public void start() {
-		Thread th = new Thread(this, "UDPInputThread");
-		if (th.getState() == Thread.State.NEW) {
+		if (running)
+			throw new IllegalThreadStateException("Thread is already running");
+		running = true;
+		for (int i = 0; i < threads; i++) {
+			Thread th = new Thread(this, threads == 1 ? "UDPInputThread" : "UDPInputThread-" + i);
 			th.setDaemon(true);
-			running = true;
 			th.start();
-			logger.debug("new UDPInputThread thread started.");
-		} else
-			throw new IllegalThreadStateException("Thread is already running");
+		}
+		logger.debug("new UDPInputThread thread(s) started.");
 	}
 
 	public void stop() {
@@ -99,4 +129,11 @@ public class UDPInputThread implements Runnable {
 	public boolean isClosed() {
 		return !running;
 	}
+
+	/**
+	 * @return Number of threads receiving on the socket.
+	 */
+	public int getThreadCount() {
+		return threads;
+	}
 }
@@ -0,0 +1,288 @@
+/*
+ * UDPSender.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.framework;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * Created on 18-Oct-10<br>
+ * Sends the results of active searches. All the datagrams are sent from
+ * a single long-lived channel, by a thread of its own, so the searching
+ * thread never waits on the network or on name resolution.
+ * <p>
+ * The replies are queued and when the queue is full new replies are
+ * dropped. Replies to any one destination (ip:port) are limited to
+ * a burst of {@link #DEFAULT_BURST} followed by {@link #DEFAULT_RATE}
+ * per second; the rest are dropped. This keeps a search flood from
+ * turning the bot into a UDP flooder.
+ * <p>
+ * One instance is used per jDCBot, or per MultiHubsAdapter when in
+ * multi hubs mode.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+public class UDPSender implements Runnable {
+	private static final Logger logger = GlobalObjects.getLogger(UDPSender.class);
+
+	public static final int DEFAULT_CAPACITY = 1024;
+	public static final int DEFAULT_BURST = 20;
+	public static final double DEFAULT_RATE = 10;
+
+	/**
+	 * Max number of resolved addresses and of per destination
+	 * rate limits remembered.
+	 */
+	private static final int MAX_CACHED = 1024;
+
+	private final BlockingQueue<Reply> queue;
+	private final int burst;
+	private final double ratePerMilli;
+
+	//Used only by the sending thread.
+	private final Map<String, InetAddress> addresses = new LruMap<InetAddress>();
+	private final Map<String, Bucket> buckets = new LruMap<Bucket>();
+	private DatagramChannel channel = null;
+
+	private volatile boolean running = false;
+	private boolean closed = false;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	public UDPSender() {
+		this(DEFAULT_CAPACITY, DEFAULT_BURST, DEFAULT_RATE);
+	}
+
+	/**
+	 * @param capacity Max number of replies waiting to be sent.
+	 * @param burst Max number of replies sent to a destination at once.
+	 * @param ratePerSecond Replies per second to a destination, after the burst.
+	 */
+	public UDPSender(int capacity, int burst, double ratePerSecond) {
+		if (capacity < 1 || burst < 1 || ratePerSecond <= 0)
+			throw new IllegalArgumentException("capacity, burst and ratePerSecond must be positive.");
+		queue = new ArrayBlockingQueue<Reply>(capacity);
+		this.burst = burst;
+		ratePerMilli = ratePerSecond / 1000;
+	}
+
+	/**
+	 * Queues a datagram for sending. This never blocks.
+	 * @param ip The destination's IP or host name.
+	 * @param port
+	 * @param data
+	 * @return false if the queue is full or this is closed, in which case
+	 * the datagram is dropped.
+	 */
+	public boolean send(String ip, int port, byte data[]) {
+		if (!running && !start()) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		if (!queue.offer(new Reply(ip, port, data))) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	private synchronized boolean start() {
+		if (running)
+			return true;
+		if (closed)
+			return false;
+		try {
+			channel = DatagramChannel.open();
+		} catch (IOException e) {
+			logger.error("Could not open the UDP channel.", e);
+			return false;
+		}
+		running = true;
+		Thread th = new Thread(this, "UDPSender");
+		th.setDaemon(true);
+		th.start();
+		return true;
+	}
+
+	public void run() {
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		while (running) {
+			Reply r;
+			try {
+				r = queue.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if (r == CLOSE)
+				break;
+
+			if (!allowed(r.ip + ":" + r.port)) {
+				dropped.incrementAndGet();
+				continue;
+			}
+			try {
+				InetAddress address = resolve(r.ip);
+				buffer.clear();
+				buffer.put(r.data).flip();
+				channel.send(buffer, new InetSocketAddress(address, r.port));
+				sent.incrementAndGet();
+			} catch (Exception e) {
+				failed.incrementAndGet();
+				logger.error("Exception while sending UDP packet to " + r.ip + ":" + r.port, e);
+			}
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.error("Exception in run().", e);
+		}
+		dropped.addAndGet(queue.size());
+		queue.clear();
+	}
+
+	private InetAddress resolve(String ip) throws UnknownHostException {
+		InetAddress address = addresses.get(ip);
+		if (address == null) {
+			address = InetAddress.getByName(ip);
+			addresses.put(ip, address);
+		}
+		return address;
+	}
+
+	/**
+	 * Token bucket rate limiting.
+	 * @param destination
+	 * @return true if a datagram can be sent to <i>destination</i> now.
+	 */
+	private boolean allowed(String destination) {
+		long now = System.currentTimeMillis();
+		Bucket b = buckets.get(destination);
+		if (b == null) {
+			b = new Bucket();
+			b.tokens = burst;
+			b.lastRefill = now;
+			buckets.put(destination, b);
+		} else {
+			b.tokens = Math.min(burst, b.tokens + (now - b.lastRefill) * ratePerMilli);
+			b.lastRefill = now;
+		}
+		if (b.tokens < 1)
+			return false;
+		b.tokens--;
+		return true;
+	}
+
+	/**
+	 * Stops the sending thread. The replies still queued are dropped.
+	 */
+	public synchronized void close() {
+		closed = true;
+		if (!running)
+			return;
+		running = false;
+		dropped.addAndGet(queue.size());
+		queue.clear();
+		queue.offer(CLOSE);
+	}
+
+	/**
+	 * @return Number of datagrams sent.
+	 */
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	/**
+	 * @return Number of datagrams dropped since the queue was full,
+	 * the destination's rate limit was exceeded or this was closed.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return Number of datagrams which could not be sent due to errors.
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * @return Number of datagrams waiting to be sent.
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuffer("UDPSender[sent:").append(getSentCount()).append(", dropped:").append(getDroppedCount())
+		.append(", failed:").append(getFailedCount()).append(", queued:").append(getQueueDepth()).append("]").toString();
+	}
+
+	private static final Reply CLOSE = new Reply(null, 0, null);
+
+	private static class Reply {
+		final String ip;
+		final int port;
+		final byte data[];
+
+		Reply(String ip, int port, byte data[]) {
+			this.ip = ip;
+			this.port = port;
+			this.data = data;
+		}
+	}
+
+	private static class Bucket {
+		double tokens;
+		long lastRefill;
+	}
+
+	private static class LruMap<V> extends LinkedHashMap<String, V> {
+		private static final long serialVersionUID = 1L;
+
+		LruMap() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+			return size() > MAX_CACHED;
+		}
+	}
+}
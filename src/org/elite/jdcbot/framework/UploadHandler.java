@@ -142,6 +142,7 @@ public class UploadHandler extends InputThreadTarget {
 		logger.debug("From remote client:" + cmd);
 
 		boolean ZLIG = false;
+		boolean preDeflated = false;
 		InputStream in = null;
 		OutputStream os = null;
 		long fileLen = 0;
@@ -191,9 +192,14 @@ public class UploadHandler extends InputThreadTarget {
 					isfirstUpload = false;
 
 				try {
-					if (fType == DUEntity.Type.FILELIST)
-						due = sm.getFileList(user);
-					else
+					if (fType == DUEntity.Type.FILELIST) {
+						//Own file list is kept deflated, so it need not be deflated for every upload.
+						if (ZLIG)
+							due = sm.getZlibFileList(user);
+						preDeflated = due != null;
+						if (due == null)
+							due = sm.getFileList(user);
+					} else
 						due = sm.getFile(user, file, fType, start, fileLen);
 				} catch (FileNotFoundException e1) {
 					buffer = "$Error " + e1.getMessage() + "|";
@@ -231,7 +237,7 @@ public class UploadHandler extends InputThreadTarget {
 			}
 
 			try {
-				if (ZLIG)
+				if (ZLIG && !preDeflated)
 					os = new DeflaterOutputStream(socket.getOutputStream());
 				else
 					os = socket.getOutputStream();
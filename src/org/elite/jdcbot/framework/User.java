@@ -47,8 +47,11 @@ public class User {
     public static final int FIREBALL_FLAG = 8;
     public static final int FIREBALL_AWAY_FLAG = 10;
 
-    private String _username, _desc, _conn, _mail, _share, _tag, _supports = "", _ip = "";
-    private int _flag;
+    private String _username, _supports = "", _ip = "";
+    /**
+     * Everything from the user's $MyINFO. It is replaced as a whole on every update.
+     */
+    private volatile MyInfo info = MyInfo.EMPTY;
     private volatile boolean _hasInfo, _op = false, extraSlotsGranted = false, blockUploadToUser = false;
     private jDCBot _bot;
     private String _CID = "";
@@ -63,56 +66,27 @@ public class User {
 	}
 	_username = username;
 	_bot = bot;
-	setInfo("", "", "", "0");
+	init();
 	_hasInfo = false;
     }
 
-    synchronized void setInfo(String desc, String conn, String mail, String share) {
-	_hasInfo = true;
+    void setInfo(String desc, String conn, String mail, String share) {
+	setInfo(MyInfo.create(desc, conn, mail, share));
+    }
 
-	_desc = desc == null? "": desc;
-	_conn = conn == null? "": conn;
-	_mail = mail == null? "": mail;
-	_share = share == null? "0": share;
-
-	int index = _desc.indexOf('<');
-	if (index == -1)
-	    _tag = new String();
-	else
-		try {
-	    _tag = _desc.substring(_desc.indexOf('<') + 1, _desc.length() - 1);
-		} catch (IndexOutOfBoundsException iobe) {
-		logger.warn("Malformed tag in user description: " + _desc);
-		_tag = "";
-		}
-
-	String flag;
-	if (_conn.length() == 0)
-	    flag = "1";
-	else {
-	    flag = _conn.substring(_conn.length() - 1, _conn.length());
-	    try {
-		Integer.parseInt(flag);
-		if ((_conn.length() - 2) >= 0 && _conn.charAt(_conn.length() - 2) == '1')
-		    flag = "1" + flag;
-	    } catch (NumberFormatException nfe) {
-		flag = "1";
-	    }
-	}
-	_flag = Integer.parseInt(flag);
-	if (_flag == 3)
-	    _flag = 2;
-	else if (_flag == 5)
-	    _flag = 4;
-	else if (_flag == 7)
-	    _flag = 6;
-	else if (_flag == 9)
-	    _flag = 8;
-	else if (_flag == 11)
-	    _flag = 10;
+    void setInfo(MyInfo info) {
+	this.info = info;
+	_hasInfo = true;
+	if (logger.isInfoEnabled())
+	    logger.info("User info set: " + toString());
+    }
 
-	init();
-	logger.info("User info set: " + toString());
+    /**
+     * @return true if the user's info was last set from the same $MyINFO.
+     * @see MyInfo#isSameAs(String, int, int)
+     */
+    boolean hasSameInfo(String info, int start, int end) {
+	return this.info.isSameAs(info, start, end);
     }
 
     private void init() {
@@ -209,48 +183,42 @@ public class User {
      * use method with that name 
      */
     public String description() {
-	synchronized (_desc) {
-	    return _desc;
-	}
+	return info.desc;
     }
 
     /**
      * @return Type of user's connection
      */
     public String connection_type() {
-	return _conn;
+	return info.conn;
     }
 
     /**
      * @return User mail he specified
      */
     public String mail() {
-	return _mail;
+	return info.mail;
     }
 
     /**
      * @return Share size of the user in bytes
      */
     public String sharesize() {
-	return _share;
+	return info.share;
     }
 
     /**
      * @return true if user has client tag, false otherwise
      */
     public boolean hasTag() {
-	synchronized (_tag) {
-	    return (_tag.length() != 0);
-	}
+	return info.tag.length() != 0;
     }
 
     /**
      * @return Client tag if it exist
      */
     public String tag() {
-	synchronized (_tag) {
-	    return _tag;
-	}
+	return info.tag;
     }
 
     /**
@@ -258,13 +226,9 @@ public class User {
      * @return Description (also known as comment) if it exist, "" otherwise
      */
     public String real_description() {
-	String buffer = new String();
-	int index = 0;
-	while ((_desc.length() > index) && (_desc.charAt(index) != '<')) {
-	    buffer = buffer + _desc.charAt(index);
-	    index++;
-	}
-	return buffer;
+	String desc = info.desc;
+	int index = desc.indexOf('<');
+	return index == -1 ? desc : desc.substring(0, index);
     }
 
     /**
@@ -272,13 +236,7 @@ public class User {
      * @return Client that user use if it exist, "" otherwise
      */
     public String client() {
-	synchronized (_tag) {
-	    if (_tag.length() < 1)
-		return "";
-	    if (_tag.indexOf(' ') == -1)
-		return "";
-	    return _tag.substring(0, _tag.indexOf(' '));
-	}
+	return info.client;
     }
 
     /**
@@ -286,16 +244,7 @@ public class User {
      * @return Version of the client user use if it exist in tag, "" otherwise
      */
     public String version() {
-	synchronized (_tag) {
-	    if (_tag.contains(" V:")) {
-		int index1 = _tag.indexOf(" V:") + 2;
-		int index2 = _tag.indexOf(',', index1);
-		if (index2 == -1)
-		    return "";
-		return _tag.substring(index1, index2 + 1);
-	    } else
-		return "";
-	}
+	return info.version;
     }
 
     /**
@@ -303,12 +252,7 @@ public class User {
      * @return true if user is active, false if it is in passive mode, or tag does not exist
      */
     public boolean isActive() {
-	synchronized (_tag) {
-	    if (_tag.contains(",M:A"))
-		return true;
-	    else
-		return false;
-	}
+	return info.active;
     }
 
     /**
@@ -316,16 +260,7 @@ public class User {
      * @return Number of slots user have if exists in tag, 0 otherwise 
      */
     public int slots() {
-	synchronized (_tag) {
-	    if (_tag.contains(",S:")) {
-		int index1 = _tag.indexOf(",S:") + 3;
-		String buffer = new String();
-		while ((_tag.charAt(index1) != '>') && (_tag.charAt(index1) != ',') && (_tag.charAt(index1) != ' '))
-		    buffer += _tag.charAt(index1++);
-		return Integer.parseInt(buffer);
-	    } else
-		return 0;
-	}
+	return info.slots;
     }
 
     public boolean isGrantedExtraSlot() {
@@ -359,7 +294,7 @@ public class User {
     }
 
     public int getFlag() {
-	return _flag;
+	return info.flag;
     }
 
     /**
@@ -427,7 +362,7 @@ public class User {
 	.append(", Has Info:").append(_hasInfo)
 	.append(", isOp:").append(_op)
 	.append(", IP:").append(_ip)
-	.append(", Tag:").append(_tag)
+	.append(", Tag:").append(info.tag)
 	.toString();
     }
 
@@ -20,12 +20,17 @@
 
 package org.elite.jdcbot.framework;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
 import java.util.Random;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 
@@ -46,7 +51,20 @@ import org.slf4j.Logger;
  */
 public class UserManager {
 	private static final Logger logger = GlobalObjects.getLogger(UserManager.class);
+	/**
+	 * Max number of $GetINFO commands sent in one write.
+	 */
+	private static final int GETINFO_BATCH_SIZE = 256;
+
 	private List<User> users;
+	private final Queue<String> getInfoQ = new ConcurrentLinkedQueue<String>();
+	private final AtomicBoolean getInfoScheduled = new AtomicBoolean(false);
+	private final Runnable getInfoSender = new Runnable() {
+		@Override
+		public void run() {
+			sendQueuedGetINFOs();
+		}
+	};
 
 	private jDCBot _bot;
 
@@ -58,28 +76,73 @@ public class UserManager {
 	/**
 	 * Add all users from the user list (user nick are delimited with '$$')<br>
 	 * <b>Note:</b> When this method is called then all pre-existing users will be lost.
+	 * The new list is installed in one go.
 	 * 
 	 * @param user_list
 	 *                List of all users delimited with '$$'
 	 */
 	void addUsers(String user_list) {
+		List<String> userList = parseDoubleDollarList(user_list);
+		List<User> newUsers = new ArrayList<User>(userList.size());
+		List<String> nicks = new ArrayList<String>(userList.size());
+		String botname = _bot.botname();
+		for (String user : userList) {
+			if (!user.equals(botname)) {
+				newUsers.add(new User(user, _bot));
+				nicks.add(user);
+			}
+		}
+
 		synchronized (users) {
 			users.clear();
-			List<String> userList = parseDoubleDollarList(user_list);
-			for (int i = 0; i < userList.size(); i++) {
-				String user = userList.get(i);
-				if (!user.equals(_bot.botname())) {
-					users.add(new User(user, _bot));
-					try {
-						if (!_bot.isHubSupports("NoGetINFO")) {
-							String cmd = "$GetINFO $" + user + " $" + _bot.botname() + "|";
-							logger.debug(cmd);
-							_bot.SendCommand(cmd);
-						}
-					} catch (Exception e) {}
+			users.addAll(newUsers);
+		}
+		requestInfo(nicks);
+	}
+
+	/**
+	 * Queues $GetINFO requests for the given users, unless the hub sends
+	 * all $MyINFOs on its own. The requests are sent in batches from
+	 * the bot's outThread, so the hub reader thread is never held up
+	 * by them, not even when a huge nick list arrives.
+	 * @param nicks
+	 */
+	private void requestInfo(Collection<String> nicks) {
+		if (nicks.isEmpty() || _bot.isHubSupports("NoGetINFO"))
+			return;
+		getInfoQ.addAll(nicks);
+		if (getInfoScheduled.compareAndSet(false, true))
+			_bot.outThread.invokeLater(getInfoSender);
+	}
+
+	/**
+	 * Sends all the queued $GetINFOs, GETINFO_BATCH_SIZE commands per write.
+	 */
+	private void sendQueuedGetINFOs() {
+		do {
+			String botname = _bot.botname();
+			StringBuffer batch = new StringBuffer();
+			int count = 0;
+			String nick;
+			try {
+				while ((nick = getInfoQ.poll()) != null) {
+					batch.append("$GetINFO $").append(nick).append(" $").append(botname).append('|');
+					if (++count == GETINFO_BATCH_SIZE) {
+						_bot.SendCommand(batch.toString());
+						batch.setLength(0);
+						count = 0;
+					}
 				}
+				if (count > 0)
+					_bot.SendCommand(batch.toString());
+			} catch (IOException e) {
+				logger.error("Exception while sending $GetINFO, dropping the queued requests.", e);
+				getInfoQ.clear();
 			}
-		}
+
+			getInfoScheduled.set(false);
+			//Requests may have been queued after the queue was found empty but before the flag was cleared.
+		} while (!getInfoQ.isEmpty() && getInfoScheduled.compareAndSet(false, true));
 	}
 	
 	void updateUserIPs(String list) {
@@ -180,13 +243,7 @@ public class UserManager {
 				users.add(new User(user, _bot));
 		}
 
-		try {
-			if (!_bot.isHubSupports("NoGetINFO")) {
-				String cmd = "$GetINFO $" + user + " $" + _bot.botname() + "|";
-				logger.debug(cmd);
-				_bot.SendCommand(cmd);
-			}
-		} catch (Exception e) {}
+		requestInfo(Collections.singletonList(user));
 	}
 
 	/**
@@ -281,62 +338,50 @@ public class UserManager {
 	 * 
 	 * @param info Info from the user that will be parsed
 	 */
-	void SetInfo(String info) {
-		StringBuffer user, desc, conn, mail, share;
-		int index = 0;
-		user = new StringBuffer();
-		while (info.charAt(index) != ' ') {
-			user.append(info.charAt(index));
-			index++;
-		}
-		String strUser = user.toString();
-		if (strUser.equalsIgnoreCase(_bot.botname()))
-			return;
+	boolean SetInfo(String info) {
+		return SetInfo(info, 0, info.length());
+	}
 
-		index++;
-		desc = new StringBuffer();
-		while (info.charAt(index) != '$') {
-			desc.append(info.charAt(index));
-			index++;
-		}
-		index = index + 3;
-		conn = new StringBuffer();
-		while (info.charAt(index) != '$') {
-			conn.append(info.charAt(index));
-			index++;
-		}
-		index++;
-		mail = new StringBuffer();
-		while (info.charAt(index) != '$') {
-			mail.append(info.charAt(index));
-			index++;
-		}
-		index++;
-		share = new StringBuffer();
-		while (info.charAt(index) != '$') {
-			share.append(info.charAt(index));
-			index++;
-		}
-		
+	/**
+	 * Sets user info from the part of $MyINFO $ALL lying between <i>start</i>
+	 * and <i>end</i> of <i>info</i>. If the user's info is exactly the same
+	 * as last time then nothing is done, not even the onUpdateMyInfo event is fired.
+	 * 
+	 * @param info String containing the info, usually the raw $MyINFO command.
+	 * @param start Index where the user's nick starts.
+	 * @param end Index just after the info ends.
+	 * @return false if the info was ignored, i.e. it was of the bot itself or
+	 * it has not changed.
+	 */
+	boolean SetInfo(String info, int start, int end) {
+		int nickEnd = info.indexOf(' ', start);
+		int nickLen = nickEnd - start;
+		String botname = _bot.botname();
+		if (botname.length() == nickLen && info.regionMatches(true, start, botname, 0, nickLen))
+			return false;
+
+		User u = null;
 		synchronized (users) {
-			Iterator<User> i = users.iterator();
-			boolean found = false;
-			while (i.hasNext()) {
-				User u = i.next();
-				if (u.username().equalsIgnoreCase(strUser)) {
-					u.setInfo(desc.toString(), conn.toString(), mail.toString(), share.toString());
-					found = true;
+			for (User usr : users) {
+				String name = usr.username();
+				if (name.length() == nickLen && info.regionMatches(true, start, name, 0, nickLen)) {
+					u = usr;
 					break;
 				}
 			}
-			if(!found) {
-				User u = new User(strUser, _bot);
+			if (u != null && u.hasSameInfo(info, nickEnd + 1, end))
+				return false;
+
+			MyInfo myInfo = MyInfo.parse(info, nickEnd + 1, end);
+			if (u == null) {
+				u = new User(info.substring(start, nickEnd), _bot);
 				users.add(u);
-				u.setInfo(desc.toString(), conn.toString(), mail.toString(), share.toString());
 			}
+			u.setInfo(myInfo);
 		}
 
-		_bot.getDispatchThread().callOnUpdateMyInfo(strUser);
+		_bot.getDispatchThread().callOnUpdateMyInfo(u.username());
+		return true;
 	}
 
 	/**
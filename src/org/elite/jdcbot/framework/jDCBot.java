@@ -25,15 +25,19 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.imageio.IIOException;
 
@@ -80,14 +84,51 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 	protected UDPInputThread _udp_inputThread = null;
 	private BotEventDispatchThread dispatchThread = null;
 	protected JobThread outThread;
-	private JobThread searchThread;
+	private SearchResponder searchResponder;
+	/**
+	 * When the bot is connected using a {@link HubConnectionEngine}
+	 * then this is used instead of <i>_inputThread</i>.
+	 */
+	private volatile HubConnection hubConnection = null;
+	private HubConnectionEngine connectionEngine = null;
+	/**
+	 * Coalesces the commands sent to the hub after
+	 * we have logged in.
+	 */
+	private volatile CommandWriter hubWriter = null;
+	private long commandLatency = DEFAULT_COMMAND_LATENCY;
+	private volatile TrafficRecorder trafficRecorder = null;
+	/**
+	 * True when <i>outThread</i> and <i>searchResponder</i> are owned
+	 * by MultiHubsAdapter and shared by all its bots.
+	 */
+	private boolean sharedJobThreads = false;
+	/**
+	 * Hub commands are dispatched by a lookup on their names in
+	 * these tables, see {@link #handleCommand(String)}.
+	 */
+	private final Map<String, CommandHandler> builtinHandlers = createBuiltinHandlers();
+	private final Map<String, CommandHandler> userHandlers = new ConcurrentHashMap<String, CommandHandler>();
 
 	protected String miscDir;
 	protected String incompleteDir;
 
 	protected BufferedSocket socket = null;
 	protected BufferedServerSocket socketServer = null;
+	/**
+	 * Makes the $ConnectToMe handshakes of this bot happen one at a
+	 * time. A lock is used and not the bot's monitor so that a handshake
+	 * waiting on <i>socketServer</i> does not block the bot's synchronized
+	 * methods, nor pins the carrier of a virtual thread (see {@link ExecutionMode}).
+	 */
+	private final ReentrantLock connectToMeLock = new ReentrantLock();
+	/**
+	 * Makes the replies to the hub's $ConnectToMe happen one at a time,
+	 * for the same reasons as <i>connectToMeLock</i>.
+	 */
+	private final ReentrantLock replyConnectToMeLock = new ReentrantLock();
 	protected DatagramSocket udpSocket = null;
+	private UDPSender udpSender;
 
 	InputStream input;
 	OutputStream output;
@@ -133,6 +174,11 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 	 */
 	protected String _hubHostname;
 	protected int _port;
+	/**
+	 * The hub's <i>ip:port</i>, as it appears in $SRs. Used by
+	 * {@link UDPDemultiplexer} to find the bot a $SR is meant for.
+	 */
+	private volatile String hubAddress = null;
 	protected int _udp_port;
 	protected String _botIP;
 	protected int _listenPort;
@@ -140,6 +186,18 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 	protected int _maxUploadSlots;
 	protected int _maxDownloadSlots;
 
+	/**
+	 * Default value (in milliseconds) of {@link #setCommandLatency(long)}.
+	 */
+	public static final long DEFAULT_COMMAND_LATENCY = 10;
+
+	/**
+	 * Max number of searches waiting to be answered. When more
+	 * arrive the oldest are dropped, since by then the searcher
+	 * has most probably stopped waiting for the results.
+	 */
+	static final int SEARCH_QUEUE_CAPACITY = 256;
+
 	public static final String _hubproto_supports = "NoGetINFO UserIP2 MiniSlots TTH";
 	public static final String _clientproto_supports = "MiniSlots ADCGet XmlBZList TTHF ZLIG";
 
@@ -241,6 +299,7 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 		if (isInMultiHubsMode()) {
 			miscDir = multiHubsAdapter.miscDir;
 			incompleteDir = multiHubsAdapter.incompleteDir;
+			commandLatency = multiHubsAdapter.getCommandLatency();
 		}
 
 		_botname = botname;
@@ -256,6 +315,7 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 		_udp_port = UDP_listenPort;
 
 		um = new UserManager(this);
+		udpSender = isInMultiHubsMode() ? multiHubsAdapter.getUDPSender() : new UDPSender();
 		downloadManager = new DownloadManager(this);
 		uploadManager = new UploadManager(this);
 		dispatchThread = new BotEventDispatchThread(this);
@@ -276,12 +336,18 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 		}
 
 		initiateUDPListening();
-		outThread = new JobThread();
-		outThread.setDaemon(true);
-		outThread.start();
-		searchThread = new JobThread();
-		searchThread.setDaemon(true);
-		searchThread.start();
+		if (isInMultiHubsMode() && multiHubsAdapter.getConnectionEngine() != null) {
+			//Writes in this mode never block, so all the bots can share these.
+			outThread = multiHubsAdapter.outThread;
+			searchResponder = multiHubsAdapter.searchResponder;
+			sharedJobThreads = true;
+		} else {
+			outThread = new JobThread();
+			outThread.setDaemon(true);
+			outThread.start();
+			searchResponder = new SearchResponder("Search " + outThread.getName(), SearchResponder.DEFAULT_WORKERS,
+					SEARCH_QUEUE_CAPACITY);
+		}
 	}
 	
 	final public void setBotName(String botname) throws BotException {
@@ -460,6 +526,71 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 		return dispatchThread;
 	}
 
+	public TrafficRecorder getTrafficRecorder() {
+		return trafficRecorder;
+	}
+
+	/**
+	 * Starts recording all the commands this bot receives into <i>recorder</i>.
+	 * The capture can be replayed using {@link TrafficReplayer}.
+	 * @param recorder Set this to null to stop recording. The previous recorder
+	 * is not closed by this.
+	 */
+	public void setTrafficRecorder(TrafficRecorder recorder) {
+		if (recorder != null && isConnected() && _ip != null)
+			recorder.recordHubAddress(_ip.getHostAddress(), _port);
+		trafficRecorder = recorder;
+	}
+
+	/**
+	 * @return The engine which will be used to read from the hub. In
+	 * multi hubs mode this is MultiHubsAdapter's engine. It is null when
+	 * the bot uses its own InputThread.
+	 */
+	public HubConnectionEngine getConnectionEngine() {
+		if (isInMultiHubsMode())
+			return multiHubsAdapter.getConnectionEngine();
+		return connectionEngine;
+	}
+
+	/**
+	 * @return The writer which batches the commands sent to the hub. Use it
+	 * to find how well the commands are being coalesced. It is null when
+	 * not connected.
+	 */
+	public CommandWriter getHubCommandWriter() {
+		return hubWriter;
+	}
+
+	public long getCommandLatency() {
+		return commandLatency;
+	}
+
+	/**
+	 * Sets the maximum time a command sent to the hub may be held back
+	 * so that it can be written along with other commands in a single
+	 * write. This takes effect from the next call to {@link #connect(String, int)}.
+	 * @param millis Set this to zero to write every command immediately.
+	 */
+	public void setCommandLatency(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("Latency cannot be negative.");
+		commandLatency = millis;
+	}
+
+	/**
+	 * Makes the bot read from its hub using the selector threads of
+	 * <i>engine</i> instead of creating its own InputThread. This
+	 * takes effect from the next call to {@link #connect(String, int)}.
+	 * <p>
+	 * In multi hubs mode use {@link MultiHubsAdapter#setConnectionEngine(HubConnectionEngine)}
+	 * instead.
+	 * @param engine Set this to null to go back to using InputThread.
+	 */
+	public void setConnectionEngine(HubConnectionEngine engine) {
+		connectionEngine = engine;
+	}
+
 	public String getMiscDir() {
 		return miscDir;
 	}
@@ -475,7 +606,7 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 	 * @return true if and only if the jDCBot is currently connected to a hub.
 	 */
 	final public boolean isConnected() {
-		return _inputThread != null;
+		return _inputThread != null || hubConnection != null;
 	}
 
 	/**
@@ -583,6 +714,13 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 		return Hub.prepareHubSignature(_hubHostname, _port);
 	}
 
+	/**
+	 * @return The hub's <i>ip:port</i> or null if the bot never connected.
+	 */
+	final String getHubAddress() {
+		return hubAddress;
+	}
+
 	/**
 	 * 
 	 * @return Random user from the hub
@@ -627,12 +765,23 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 		_hubHostname = hostname;
 
 		// connect to server
-		socket = new BufferedSocket(hostname, port);
-		input = socket.getInputStream();
-		output = socket.getOutputStream();
-		//breader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		HubConnectionEngine engine = getConnectionEngine();
+		SocketChannel channel = null;
+		if (engine != null) {
+			//The handshake below is done in blocking mode, then the channel is handed over to the engine.
+			channel = SocketChannel.open(new InetSocketAddress(hostname, port));
+			input = new DCInputStream(channel.socket().getInputStream());
+			output = channel.socket().getOutputStream();
+			_ip = channel.socket().getInetAddress();
+		} else {
+			socket = new BufferedSocket(hostname, port);
+			input = socket.getInputStream();
+			output = socket.getOutputStream();
+			//breader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 
-		_ip = socket.getInetAddress();
+			_ip = socket.getInetAddress();
+		}
+		hubAddress = _ip.getHostAddress() + ":" + _port;
 
 		buffer = ReadCommand();
 		String lock = parseRawCmd(buffer)[1];
@@ -695,8 +844,22 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 		
 		sendMyINFO();
 
-		_inputThread = new InputThread(this, input, "Hub InputThread");
-		_inputThread.start();
+		TrafficRecorder recorder = trafficRecorder;
+		if (recorder != null)
+			recorder.recordHubAddress(_ip.getHostAddress(), _port);
+
+		if (engine != null) {
+			//Commands read ahead during handshake are handed over too.
+			hubConnection = engine.register(channel, this, ((DCInputStream) input).drainBuffer());
+			output = hubConnection.getOutputStream();
+			//Writes into a HubConnection only queue the data, so they can be flushed on the timer itself.
+			hubWriter = new CommandWriter(output, commandLatency, CommandWriter.DEFAULT_FLUSH_THRESHOLD, CommandWriter.NON_BLOCKING);
+			input = null;
+		} else {
+			hubWriter = new CommandWriter(output, commandLatency);
+			_inputThread = new InputThread(this, input, "Hub InputThread");
+			_inputThread.start();
+		}
 		
 		dispatchThread.callOnConnect();
 	}
@@ -706,7 +869,16 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 		SendCommand(buffer);
 	}
 
-	synchronized final Socket initConnectToMe(String user, String direction) throws BotException, IOException {
+	final Socket initConnectToMe(String user, String direction) throws BotException, IOException {
+		connectToMeLock.lock();
+		try {
+			return connectToMe(user, direction);
+		} finally {
+			connectToMeLock.unlock();
+		}
+	}
+
+	private Socket connectToMe(String user, String direction) throws BotException, IOException {
 		if (!isConnected()) {
 			throw new BotException(BotException.Error.NOT_CONNECTED_TO_HUB);
 		}
@@ -792,7 +964,7 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 			buffer = lock;
 			SendCommand(buffer, newsocket);
 
-			buffer = ReadCommand(clientInput); // Read the key sent by the
+			SkipCommand(clientInput); // Read the key sent by the
 			// remote client. I am not
 			// verifying the key,
 			// hence I am now simply moving on to the next step without
@@ -831,7 +1003,7 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 				logger.warn("Huh! Remote client for  " + user + " too wants to " + direction + " from me. This situation is not handled.");
 			}
 
-			buffer = ReadCommand(clientInput);// Reading $Key ........A .....0.0. 0. 0. 0. 0. 0.|
+			SkipCommand(clientInput);// Reading $Key ........A .....0.0. 0. 0. 0. 0. 0.|
 
 			if (N1 < N2)
 				logger.warn("N1 is < N2 dunno what to do now. Anyway continuing as if it never happened.");
@@ -841,7 +1013,16 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 		return newsocket;
 	}
 
-	synchronized private void replyConnectToMe(String user, String ip, int port) throws BotException, IOException { //Called in response to $ConnectToMe command from hub.
+	private void replyConnectToMe(String user, String ip, int port) throws BotException, IOException { //Called in response to $ConnectToMe command from hub.
+		replyConnectToMeLock.lock();
+		try {
+			connectToRemoteClient(user, ip, port);
+		} finally {
+			replyConnectToMeLock.unlock();
+		}
+	}
+
+	private void connectToRemoteClient(String user, String ip, int port) throws BotException, IOException {
 		if (!isConnected()) {
 			throw new BotException(BotException.Error.NOT_CONNECTED_TO_HUB);
 		}
@@ -849,7 +1030,7 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 			throw new BotException(BotException.Error.UNEXPECTED_RESPONSE);
 		}
 
-		Socket newsocket = new Socket();
+		Socket newsocket = new BufferedSocket();
 		newsocket.connect(new InetSocketAddress(ip, port), 60000);
 		logger.info("00>>Connected to remote Client:: " + ip + ":" + port);
 
@@ -887,13 +1068,13 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 		String direction = params[1];
 		int N = Integer.parseInt(params[2]);
 
-		buffer = ReadCommand(clientInput); //Reading $Key ........A .....0.0. 0. 0. 0. 0. 0.|
+		SkipCommand(clientInput); //Reading $Key ........A .....0.0. 0. 0. 0. 0. 0.|
 
 		if (direction.equalsIgnoreCase("Upload")) {
 			try {
 				downloadManager.download(remote_nick, newsocket, N, key);
 			} catch (BotException be) {
-				socket.close();
+				newsocket.close();
 			}
 		} else
 			uploadManager.upload(remote_nick, newsocket, N, key);
@@ -909,15 +1090,22 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 			public void run() {
 				try {
 					SendCommand("$Quit " + _botname + "|");
+					CommandWriter writer = hubWriter;
+					if (writer != null)
+						writer.flush();
 				} catch (IOException e) {}
 				finally {
 					try {
 						if (_inputThread != null)
 							_inputThread.stop();
+						if (hubConnection != null)
+							hubConnection.close();
 						if (socket != null)
 							socket.close();
 						socket = null;
 						_inputThread = null;
+						hubConnection = null;
+						hubWriter = null;
 					} catch (IOException e) {}
 					dispatchThread.callOnBotQuit();
 				}
@@ -939,14 +1127,21 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 		downloadManager.close();
 		if (_inputThread != null)
 			_inputThread.stop();
+		if (hubConnection != null)
+			hubConnection.close();
 		dispatchThread.stopIt();
 		if (!isInMultiHubsMode() && _udp_inputThread != null)
 			_udp_inputThread.stop();
+		if (!isInMultiHubsMode())
+			udpSender.close();
 		if (shareManager != null && !isInMultiHubsMode())
 			shareManager.close();
 		if (downloadCentral != null && !isInMultiHubsMode())
 			downloadCentral.close();
-		outThread.terminate();
+		if (!sharedJobThreads) {
+			outThread.terminate();
+			searchResponder.terminate();
+		}
 		if(multiHubsAdapter != null) {
 			multiHubsAdapter.removeBot(this);
 		}
@@ -963,6 +1158,8 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 	@Override
 	final void disconnected() {
 		_inputThread = null;
+		hubConnection = null;
+		hubWriter = null;
 		dispatchThread.callOnDisconnect();
 	}
 
@@ -1109,120 +1306,273 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 		}
 	}
 
+	/**
+	 * Extracts the name of the command, i.e. everything till the first
+	 * space or the trailing '|'. All chat messages map to "&lt;".
+	 * @param rawCommand
+	 * @return
+	 */
+	static String commandName(String rawCommand) {
+		if (rawCommand.startsWith("<"))
+			return "<";
+		int len = rawCommand.length();
+		for (int i = 0; i < len; i++) {
+			char c = rawCommand.charAt(i);
+			if (c == ' ' || c == '|')
+				return rawCommand.substring(0, i);
+		}
+		return rawCommand;
+	}
+
+	/**
+	 * Registers a handler for a hub command which the framework itself does
+	 * not handle. The handler is found by a single lookup on the command's
+	 * name, so registering many handlers costs nothing per command.
+	 * <p>
+	 * This method is thread safe.
+	 * @param command The name of the command including the '$', e.g. "$Supports".
+	 * @param handler
+	 * @return The handler previously registered for <i>command</i>, else null.
+	 * @throws IllegalArgumentException If the framework handles <i>command</i> itself.
+	 */
+	public CommandHandler registerCommandHandler(String command, CommandHandler handler) {
+		if (handler == null)
+			throw new NullPointerException("handler is null.");
+		if (builtinHandlers.containsKey(command))
+			throw new IllegalArgumentException(command + " is handled by jDCBot itself.");
+		return userHandlers.put(command, handler);
+	}
+
+	/**
+	 * @param command
+	 * @return The handler which was registered for <i>command</i>, else null.
+	 */
+	public CommandHandler unregisterCommandHandler(String command) {
+		return userHandlers.remove(command);
+	}
+
 	/**
 	 * Handles all commands from InputThread all passes it to different methods.
 	 * 
 	 * @param rawCommand Raw command sent from hub
 	 */
 	final void handleCommand(String rawCommand) {
+		TrafficRecorder recorder = trafficRecorder;
+		if (recorder != null)
+			recorder.recordHubCommand(rawCommand);
+
+		String name = commandName(rawCommand);
+		CommandHandler handler = builtinHandlers.get(name);
+		if (handler == null)
+			handler = userHandlers.get(name);
+
+		if (handler != null)
+			handler.handleCommand(rawCommand);
+		else if (logger.isDebugEnabled())
+			logger.debug("The command above is not handled.");
+	}
 
-		if (rawCommand.startsWith("<")) {
-			processPublicMsg(rawCommand);
-		} else if (rawCommand.startsWith("$Quit")) {
-			String user = rawCommand.substring(6);
-			user = user.substring(0, user.length() - 1);
-			um.userQuit(user);
-			dispatchThread.callOnQuit(user);
-		} else if (rawCommand.startsWith("$Hello") && (rawCommand != "$Hello " + _botname + "|")) {
-			String user = rawCommand.substring(7);
-			user = user.substring(0, user.length() - 1);
-			um.userJoin(user);
-			dispatchThread.callOnJoin(user);
-		} else if (rawCommand.startsWith("$To:")) {
-			String user, from, message;
-			int index1 = rawCommand.indexOf('$', 2);
-			int index2 = rawCommand.indexOf('>', index1);
-
-			from = rawCommand.substring(rawCommand.indexOf(':', 4) + 2, rawCommand.indexOf('$', 2) - 1);
-			user = rawCommand.substring(index1 + 2, index2);
-			message = unescapeSpecial(rawCommand.substring(index2 + 2, rawCommand.length() - 1));
-			if (user.equals(from))
-				dispatchThread.callOnPrivateMessage(user, message);
-			else
-				dispatchThread.callOnChannelMessage(user, from, message);
-		} else if (rawCommand.startsWith("$Search ")) {
-			int space = rawCommand.indexOf(' ', 9);
-			String firstPart = rawCommand.substring(8, space).trim();
-			String secondPart = rawCommand.substring(space + 1, rawCommand.length() - 1);
-			StringTokenizer st = new StringTokenizer(secondPart, "?");
-			if (st.countTokens() != 5)
-				return;
-			boolean isSizeRestricted, isMinimumSize;
-			long size;
-			SearchSet.DataType dataType;
-			String searchPattern;
-			isSizeRestricted = (st.nextToken() == "T");
-			isMinimumSize = (st.nextToken() == "T");
-			size = Long.parseLong(st.nextToken());
-			dataType = SearchSet.DataType.getEnumForValue(Integer.parseInt(st.nextToken()));
-			searchPattern = st.nextToken();
-
-			SearchSet search = new SearchSet();
-			search.string = dataType == SearchSet.DataType.TTH ? searchPattern : unescapeSpecial(searchPattern);
-			search.size = size;
-			search.size_unit = SearchSet.SizeUnit.BYTE;
-			search.size_criteria =
-				isSizeRestricted ? (isMinimumSize ? SearchSet.SizeCriteria.ATMOST : SearchSet.SizeCriteria.ATLEAST)
-						: SearchSet.SizeCriteria.NONE;
-				search.data_type = dataType;
-
-				// send trigger to passive/active search
-				if (firstPart.toLowerCase().startsWith("hub:")) {
-					String user = firstPart.substring(4);
-					onSearch(user, search);
-					dispatchThread.callOnPassiveSearch(user, search);
-					onPassiveSearch(user, isSizeRestricted, isMinimumSize, size, dataType.getValue(), searchPattern);
-				} else {
-					int dotdot = firstPart.indexOf(':');
-					String ip = firstPart.substring(0, dotdot);
-					int port = Integer.parseInt(firstPart.substring(dotdot + 1));
-					onSearch(ip, port, search);
-					dispatchThread.callOnActiveSearch(ip, port, search);
-					onActiveSearch(ip, port, isSizeRestricted, isMinimumSize, size, dataType.getValue(), searchPattern);
+	/**
+	 * @return The table of the commands handled by jDCBot itself.
+	 */
+	private Map<String, CommandHandler> createBuiltinHandlers() {
+		Map<String, CommandHandler> h = new HashMap<String, CommandHandler>();
+		h.put("<", new CommandHandler() {
+			@Override
+			public void handleCommand(String rawCommand) {
+				processPublicMsg(rawCommand);
+			}
+		});
+		h.put("$Quit", new CommandHandler() {
+			@Override
+			public void handleCommand(String rawCommand) {
+				String user = rawCommand.substring(6);
+				user = user.substring(0, user.length() - 1);
+				um.userQuit(user);
+				dispatchThread.callOnQuit(user);
+			}
+		});
+		h.put("$Hello", new CommandHandler() {
+			@Override
+			public void handleCommand(String rawCommand) {
+				String user = rawCommand.substring(7);
+				user = user.substring(0, user.length() - 1);
+				um.userJoin(user);
+				dispatchThread.callOnJoin(user);
+			}
+		});
+		h.put("$To:", new CommandHandler() {
+			@Override
+			public void handleCommand(String rawCommand) {
+				processPrivateMsg(rawCommand);
+			}
+		});
+		h.put("$Search", new CommandHandler() {
+			@Override
+			public void handleCommand(String rawCommand) {
+				processSearch(rawCommand);
+			}
+		});
+		h.put("$NickList", new CommandHandler() {
+			@Override
+			public void handleCommand(String rawCommand) {
+				um.addUsers(rawCommand.substring(10, rawCommand.length() - 1));
+			}
+		});
+		h.put("$OpList", new CommandHandler() {
+			@Override
+			public void handleCommand(String rawCommand) {
+				um.addOps(rawCommand.substring(8, rawCommand.length() - 1));
+			}
+		});
+		h.put("$MyINFO", new CommandHandler() {
+			@Override
+			public void handleCommand(String rawCommand) {
+				if (!rawCommand.startsWith("$MyINFO $ALL"))
+					return;
+				//Parsed in place, unchanged infos cost no allocations.
+				if (um.SetInfo(rawCommand, 13, rawCommand.length() - 1) && downloadCentral != null)
+					downloadCentral.triggerProcessQ(false);
+			}
+		});
+		h.put("$UserIP", new CommandHandler() {
+			@Override
+			public void handleCommand(String rawCommand) {
+				um.updateUserIPs(rawCommand.substring(8, rawCommand.length() - 1));
+			}
+		});
+		h.put("$RevConnectToMe", new CommandHandler() {
+			@Override
+			public void handleCommand(String rawCommand) {
+				processRevConnectToMe(rawCommand);
+			}
+		});
+		h.put("$ConnectToMe", new CommandHandler() {
+			@Override
+			public void handleCommand(String rawCommand) {
+				processConnectToMe(rawCommand);
+			}
+		});
+		h.put("$SR", new CommandHandler() {
+			@Override
+			public void handleCommand(String rawCommand) {
+				processSRcommand(rawCommand, null, 0);
+			}
+		});
+		h.put("$HubName", new CommandHandler() {
+			@Override
+			public void handleCommand(String rawCommand) {
+				_hubname = unescapeSpecial(rawCommand.substring(9, rawCommand.length() - 1));
+				dispatchThread.callOnHubName(_hubname);
+			}
+		});
+		return h;
+	}
+
+	private void processPrivateMsg(String rawCommand) {
+		String user, from, message;
+		int index1 = rawCommand.indexOf('$', 2);
+		int index2 = rawCommand.indexOf('>', index1);
+
+		from = rawCommand.substring(rawCommand.indexOf(':', 4) + 2, rawCommand.indexOf('$', 2) - 1);
+		user = rawCommand.substring(index1 + 2, index2);
+		message = unescapeSpecial(rawCommand.substring(index2 + 2, rawCommand.length() - 1));
+		if (user.equals(from))
+			dispatchThread.callOnPrivateMessage(user, message);
+		else
+			dispatchThread.callOnChannelMessage(user, from, message);
+	}
+
+	private void processSearch(String rawCommand) {
+		int space = rawCommand.indexOf(' ', 9);
+		String firstPart = rawCommand.substring(8, space).trim();
+		String secondPart = rawCommand.substring(space + 1, rawCommand.length() - 1);
+		StringTokenizer st = new StringTokenizer(secondPart, "?");
+		if (st.countTokens() != 5)
+			return;
+		boolean isSizeRestricted, isMinimumSize;
+		long size;
+		SearchSet.DataType dataType;
+		String searchPattern;
+		isSizeRestricted = (st.nextToken() == "T");
+		isMinimumSize = (st.nextToken() == "T");
+		size = Long.parseLong(st.nextToken());
+		dataType = SearchSet.DataType.getEnumForValue(Integer.parseInt(st.nextToken()));
+		searchPattern = st.nextToken();
+
+		SearchSet search = new SearchSet();
+		search.string = dataType == SearchSet.DataType.TTH ? searchPattern : unescapeSpecial(searchPattern);
+		search.size = size;
+		search.size_unit = SearchSet.SizeUnit.BYTE;
+		search.size_criteria =
+			isSizeRestricted ? (isMinimumSize ? SearchSet.SizeCriteria.ATMOST : SearchSet.SizeCriteria.ATLEAST)
+					: SearchSet.SizeCriteria.NONE;
+		search.data_type = dataType;
+
+		// send trigger to passive/active search
+		if (firstPart.toLowerCase().startsWith("hub:")) {
+			String user = firstPart.substring(4);
+			onSearch(user, search);
+			dispatchThread.callOnPassiveSearch(user, search);
+			onPassiveSearch(user, isSizeRestricted, isMinimumSize, size, dataType.getValue(), searchPattern);
+		} else {
+			int dotdot = firstPart.indexOf(':');
+			String ip = firstPart.substring(0, dotdot);
+			int port = Integer.parseInt(firstPart.substring(dotdot + 1));
+			onSearch(ip, port, search);
+			dispatchThread.callOnActiveSearch(ip, port, search);
+			onActiveSearch(ip, port, isSizeRestricted, isMinimumSize, size, dataType.getValue(), searchPattern);
+		}
+	}
+
+	private void processRevConnectToMe(String rawCommand) {
+		String params[] = parseRawCmd(rawCommand);
+		String me = params[2];
+		final String remote_user = params[1];
+		if (me.equalsIgnoreCase(_botname)) {
+			runBlockingJob(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						uploadManager.uploadPassive(remote_user);
+					} catch (BotException e) {
+						logger.error("BotException from uploadManager.uploadPassive(): " + e.getMessage(), e);
+					}
 				}
-		} else if (rawCommand.startsWith("$NickList")) {
-			um.addUsers(rawCommand.substring(10, rawCommand.length() - 1));
-		} else if (rawCommand.startsWith("$OpList")) {
-			um.addOps(rawCommand.substring(8, rawCommand.length() - 1));
-		} else if (rawCommand.startsWith("$MyINFO $ALL")) {
-			String usr = rawCommand.substring(13, rawCommand.indexOf(' ', 13));
-			if (usr.equalsIgnoreCase(_botname))
-				return;
-			um.SetInfo(rawCommand.substring(13, rawCommand.length() - 1));
-			if (downloadCentral != null)
-				downloadCentral.triggerProcessQ(false);
-		} else if (rawCommand.startsWith("$UserIP")) {
-			um.updateUserIPs(rawCommand.substring(8, rawCommand.length() - 1));
-		} else if (rawCommand.startsWith("$RevConnectToMe")) {
-			String params[] = parseRawCmd(rawCommand);
-			String me = params[2];
-			String remote_user = params[1];
-			if (me.equalsIgnoreCase(_botname)) {
+			});
+		}
+	}
+
+	private void processConnectToMe(String rawCommand) {
+		String params[] = parseRawCmd(rawCommand);
+		final String user = params[1];
+		params = params[2].split(":");
+		final String ip = params[0];
+		final int port = Integer.parseInt(params[1]);
+		runBlockingJob(new Runnable() {
+			@Override
+			public void run() {
 				try {
-					uploadManager.uploadPassive(remote_user);
-				} catch (BotException e) {
-					logger.error("BotException from uploadManager.uploadPassive(): " + e.getMessage(), e);
+					replyConnectToMe(user, ip, port);
+				} catch (Exception e) {
+					logger.error("Exception by replyConnectToMe in handleCommand: " + e.getMessage(), e);
 				}
 			}
-		} else if (rawCommand.startsWith("$ConnectToMe")) {
-			String params[] = parseRawCmd(rawCommand);
-			String user = params[1];
-			params = params[2].split(":");
-			String ip = params[0];
-			int port = Integer.parseInt(params[1]);
-			try {
-				replyConnectToMe(user, ip, port);
-			} catch (Exception e) {
-				logger.error("Exception by replyConnectToMe in handleCommand: " + e.getMessage(), e);
-			}
-		} else if (rawCommand.startsWith("$SR ")) {
-			processSRcommand(rawCommand, null, 0);
-		} else if (rawCommand.startsWith("$HubName ")) {
-			_hubname = unescapeSpecial(rawCommand.substring(9, rawCommand.length() - 1));
-			dispatchThread.callOnHubName(_hubname);
-		} else
-			logger.debug("The command above is not handled.");
+		});
+	}
 
+	/**
+	 * Runs <i>job</i> in the current thread when we have our own InputThread,
+	 * else on HubConnectionEngine's job pool so that the selector threads
+	 * (which serve other hubs too) are never blocked.
+	 * @param job
+	 */
+	private void runBlockingJob(Runnable job) {
+		HubConnectionEngine engine = getConnectionEngine();
+		if (hubConnection != null && engine != null)
+			engine.invokeLater(job);
+		else
+			job.run();
 	}
 
 	private void processPublicMsg(String rawCommand) {
@@ -1237,7 +1587,11 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 	 * Handled internally. <b>DO NOT CALL.</b>
 	 */
 	public final void handleUDPCommand(String rawCommand, String ip, int port) {
-		logger.debug("From user(" + ip + ":" + port + "): " + rawCommand);
+		if (logger.isDebugEnabled())
+			logger.debug("From user(" + ip + ":" + port + "): " + rawCommand);
+		TrafficRecorder recorder = trafficRecorder;
+		if (recorder != null)
+			recorder.recordUDPCommand(rawCommand, ip, port);
 
 		if (rawCommand.startsWith("$SR ")) {
 			processSRcommand(rawCommand, ip, port);
@@ -1366,6 +1720,9 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 	 * if not extremely required.<br>
 	 * <br>
 	 * <b>Note:</b> Always make use of outThread for writing on socket as it may block.
+	 * <p>
+	 * Once logged in, the commands are passed through a {@link CommandWriter}
+	 * hence they may reach the hub after up to {@link #getCommandLatency()} milliseconds.
 	 * 
 	 * @param buffer
 	 *                Line which needs to be send. This method won't append "|" on the end on the string if it doesn't exist, so it is up to make
@@ -1373,7 +1730,12 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 	 * @throws IOException On error while sending data into the socket.
 	 */
 	protected final void SendCommand(final String buffer) throws IOException {
-		if (output != null) {
+		CommandWriter writer = hubWriter;
+		if (writer != null) {
+			if (logger.isDebugEnabled())
+				logger.debug("From bot: " + buffer);
+			writer.write(buffer);
+		} else if (output != null) {
 			SendCommand(buffer, output);
 		}
 	}
@@ -1577,17 +1939,28 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 
 		logger.debug("from bot: " + buffer);
 
-		try {
-			DatagramSocket ds = new DatagramSocket();
-			byte[] bytes = new byte[buffer.length()];
-			for (int i = 0; i < buffer.length(); i++)
-				bytes[i] = (byte) buffer.charAt(i);
-			InetAddress address = InetAddress.getByName(IP);
-			DatagramPacket packet = new DatagramPacket(bytes, bytes.length, address, port);
-			ds.send(packet);
-		} catch (Exception e) {
-			logger.error("Exception in SendActiveSearchReturn.", e);
-		}
+		byte[] bytes = new byte[buffer.length()];
+		for (int i = 0; i < buffer.length(); i++)
+			bytes[i] = (byte) buffer.charAt(i);
+		if (!udpSender.send(IP, port, bytes))
+			logger.debug("Search result to " + IP + ":" + port + " dropped.");
+	}
+
+	/**
+	 * @return The pool answering the searches of other users, use this to
+	 * tune it or to see how many searches were answered in time. It is shared
+	 * by all the bots when they use a {@link HubConnectionEngine}.
+	 */
+	public SearchResponder getSearchResponder() {
+		return searchResponder;
+	}
+
+	/**
+	 * @return The sender of the active search results. In multi hubs mode
+	 * this is shared by all the bots.
+	 */
+	public UDPSender getUDPSender() {
+		return udpSender;
 	}
 
 	/**
@@ -1660,7 +2033,7 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 
 		final List<User> u = um.getUserByIP(ip, false);
 		
-		searchThread.invokeLater(new Runnable() {
+		searchResponder.submit(new Runnable() {
 			@Override
 			public void run() {
 				/*
@@ -1701,7 +2074,7 @@ public abstract class jDCBot extends InputThreadTarget implements UDPInputThread
 		if (shareManager == null)
 			return;
 
-		searchThread.invokeLater(new Runnable() {
+		searchResponder.submit(new Runnable() {
 			@Override
 			public void run() {
 				List<SearchResultSet> res = shareManager.searchOwnFileList(search, MAX_RESULTS_PASSIVE, getUser(user), 1.0);
@@ -0,0 +1,1128 @@
+/*
+ * CompactFileList.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.shareframework;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jonelo.sugar.util.Base32;
+
+import org.elite.jdcbot.util.GlobalFunctions;
+
+/**
+ * Created on 18-Oct-10<br>
+ * A read-only file list stored in a few primitive arrays instead of
+ * an object per file and directory, for very large file lists.
+ * <p>
+ * All the names and paths are kept once each, UTF-8 encoded, in a
+ * single byte array and are referred to by their index. Sizes and
+ * modification times are kept in long arrays, TTHs as 24 bytes each and
+ * the parent of every file and directory as an index. The directories
+ * are stored in breadth first order and the files grouped by their
+ * directory, so the children of any directory are found in a contiguous
+ * range.
+ * <p>
+ * It can be searched and looked up much like a FLDir tree. Names which are
+ * all ASCII are matched in place, without decoding them, and files are
+ * looked up by TTH in a hash table made when first needed. FLDir and FLFile
+ * objects returned by it are made on the fly and changing them has no
+ * effect on this. Use {@link #toTree()} to get the whole file list as a
+ * FLDir tree. {@link FileListManager} does that automatically when it
+ * needs the tree.
+ * <p>
+ * It can be saved in a versioned binary format, see {@link #writeTo(OutputStream)},
+ * which has the same layout as the arrays. So a saved file list can be
+ * memory mapped and used in place ({@link #open(File)}), without reading
+ * the whole file or making any objects for its files.
+ * <p>
+ * This class is thread safe, as it is immutable (but for the hash table).
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+public class CompactFileList {
+	/**
+	 * The first bytes of a file list saved by {@link #writeTo(OutputStream)}.
+	 */
+	static final byte MAGIC[] = { 'J', 'D', 'C', 'B', 'F', 'L' };
+	private static final short VERSION = 1;
+
+	private static final int TTH_LEN = 24;
+	private static final byte SHARED = 1;
+	/**
+	 * The file or directory and all the directories above it are shared.
+	 */
+	private static final byte VISIBLE = 2;
+	private static final byte HASHED = 4;
+
+	private final String CID;
+	private final boolean isJDCBotGenerated;
+
+	/**
+	 * String <i>i</i> is in pool[strStart[i]] to pool[strStart[i + 1] - 1].
+	 */
+	private final ByteBuffer pool;
+	private final IntBuffer strStart;
+
+	//Directories, dir 0 is the root.
+	private final IntBuffer dirName;
+	private final IntBuffer dirParent;
+	private final ByteBuffer dirFlags;
+	/**
+	 * Sub-directories of dir <i>d</i> are dirChildStart[d] to dirChildStart[d + 1] - 1.
+	 */
+	private final IntBuffer dirChildStart;
+	/**
+	 * Files of dir <i>d</i> are dirFileStart[d] to dirFileStart[d + 1] - 1.
+	 */
+	private final IntBuffer dirFileStart;
+
+	//Files.
+	private final IntBuffer fileName;
+	/**
+	 * -1 if the file has no path, e.g. in downloaded file lists.
+	 */
+	private final IntBuffer filePath;
+	private final IntBuffer fileParent;
+	private final LongBuffer fileSize;
+	private final LongBuffer fileModified;
+	private final ByteBuffer fileFlags;
+	/**
+	 * See {@link FLFile#getTypeFlags()}.
+	 */
+	private final ByteBuffer fileTypes;
+	private final ByteBuffer fileHash;
+	/**
+	 * Hashes which are not 24 byte base32 encoded TTHs, by file.
+	 */
+	private final Map<Integer, String> oddHashes;
+
+	private final int dirCount;
+	private final int fileCount;
+	/**
+	 * The file this is mapped from, null if this is in the heap.
+	 */
+	private final File source;
+	/**
+	 * Open addressing hash table of the files which have TTHs, see
+	 * {@link #hashTable()}. It is null till first needed.
+	 */
+	private volatile int hashTable[] = null;
+	private final Object hashTableLock = new Object();
+
+	private CompactFileList(Builder b, int newDirId[]) {
+		CID = b.CID;
+		isJDCBotGenerated = b.isJDCBotGenerated;
+
+		source = null;
+		byte p[] = b.pool.toByteArray();
+		int strStart[] = new int[b.strCount + 1];
+		System.arraycopy(b.strStart, 0, strStart, 0, b.strCount);
+		strStart[b.strCount] = p.length;
+
+		int nd = dirCount = b.dirCount;
+		int dirName[] = new int[nd];
+		int dirParent[] = new int[nd];
+		byte dirFlags[] = new byte[nd];
+		int dirChildStart[] = new int[nd + 1];
+		for (int raw = 0; raw < nd; raw++) {
+			int d = newDirId[raw];
+			dirName[d] = b.dirName[raw];
+			dirParent[d] = raw == 0 ? -1 : newDirId[b.dirParent[raw]];
+			dirFlags[d] = b.dirFlags[raw];
+		}
+		//In breadth first order the children of every dir follow those of the dir before it.
+		for (int d = 1; d < nd; d++)
+			dirChildStart[dirParent[d] + 1]++;
+		dirChildStart[0] = 1;
+		for (int d = 1; d <= nd; d++)
+			dirChildStart[d] += dirChildStart[d - 1];
+		dirFlags[0] |= SHARED | VISIBLE;
+		for (int d = 1; d < nd; d++) { //Parents come before their children.
+			if ((dirFlags[d] & SHARED) != 0 && (dirFlags[dirParent[d]] & VISIBLE) != 0)
+				dirFlags[d] |= VISIBLE;
+		}
+
+		int nf = fileCount = b.fileCount;
+		int dirFileStart[] = new int[nd + 1];
+		for (int f = 0; f < nf; f++)
+			dirFileStart[newDirId[b.fileParent[f]] + 1]++;
+		for (int d = 1; d <= nd; d++)
+			dirFileStart[d] += dirFileStart[d - 1];
+		int next[] = new int[nd];
+		System.arraycopy(dirFileStart, 0, next, 0, nd);
+
+		int fileName[] = new int[nf];
+		int filePath[] = new int[nf];
+		int fileParent[] = new int[nf];
+		long fileSize[] = new long[nf];
+		long fileModified[] = new long[nf];
+		byte fileFlags[] = new byte[nf];
+		byte fileTypes[] = new byte[nf];
+		byte fileHash[] = new byte[nf * TTH_LEN];
+		oddHashes = new HashMap<Integer, String>();
+		for (int raw = 0; raw < nf; raw++) {
+			int d = newDirId[b.fileParent[raw]];
+			int f = next[d]++;
+			fileName[f] = b.fileName[raw];
+			filePath[f] = b.filePath[raw];
+			fileParent[f] = d;
+			fileSize[f] = b.fileSize[raw];
+			fileModified[f] = b.fileModified[raw];
+			fileTypes[f] = b.fileTypes[raw];
+			byte flags = b.fileFlags[raw];
+			if ((flags & SHARED) != 0 && (dirFlags[d] & VISIBLE) != 0)
+				flags |= VISIBLE;
+			fileFlags[f] = flags;
+			if ((flags & HASHED) != 0)
+				System.arraycopy(b.fileHash, raw * TTH_LEN, fileHash, f * TTH_LEN, TTH_LEN);
+			String odd = b.oddHashes.get(raw);
+			if (odd != null)
+				oddHashes.put(f, odd);
+		}
+
+		this.pool = ByteBuffer.wrap(p);
+		this.strStart = IntBuffer.wrap(strStart);
+		this.dirName = IntBuffer.wrap(dirName);
+		this.dirParent = IntBuffer.wrap(dirParent);
+		this.dirFlags = ByteBuffer.wrap(dirFlags);
+		this.dirChildStart = IntBuffer.wrap(dirChildStart);
+		this.dirFileStart = IntBuffer.wrap(dirFileStart);
+		this.fileName = IntBuffer.wrap(fileName);
+		this.filePath = IntBuffer.wrap(filePath);
+		this.fileParent = IntBuffer.wrap(fileParent);
+		this.fileSize = LongBuffer.wrap(fileSize);
+		this.fileModified = LongBuffer.wrap(fileModified);
+		this.fileFlags = ByteBuffer.wrap(fileFlags);
+		this.fileTypes = ByteBuffer.wrap(fileTypes);
+		this.fileHash = ByteBuffer.wrap(fileHash);
+	}
+
+	/**
+	 * Reads a file list saved by {@link #writeTo(OutputStream)}. The
+	 * columns are views of <i>buf</i>, nothing is copied except the odd hashes.
+	 * @param buf Positioned at the start of the file list.
+	 * @param source The file <i>buf</i> is mapped from, else null.
+	 * @throws IOException If <i>buf</i> does not hold a valid file list.
+	 */
+	private CompactFileList(ByteBuffer buf, File source) throws IOException {
+		this.source = source;
+		try {
+			buf = buf.slice(); //Offsets and alignment are from the start of the file list.
+			byte magic[] = new byte[MAGIC.length];
+			buf.get(magic);
+			if (!hasMagic(magic))
+				throw new IOException("Not a jDCBot file list.");
+			short version = buf.getShort();
+			if (version != VERSION)
+				throw new IOException("Unsupported file list version " + version + ".");
+			isJDCBotGenerated = (buf.getInt() & 1) != 0;
+			byte cid[] = new byte[buf.getInt()];
+			buf.get(cid);
+			CID = cid.length == 0 ? null : new String(cid, "utf-8");
+			align(buf);
+
+			int strCount = buf.getInt();
+			int poolLen = buf.getInt();
+			int nd = dirCount = buf.getInt();
+			int nf = fileCount = buf.getInt();
+			int oddCount = buf.getInt();
+			if (strCount < 0 || poolLen < 0 || nd < 1 || nf < 0 || oddCount < 0)
+				throw new IOException("Corrupt file list header.");
+			align(buf);
+
+			strStart = section(buf, 4L * (strCount + 1)).asIntBuffer();
+			pool = section(buf, poolLen);
+			dirName = section(buf, 4L * nd).asIntBuffer();
+			dirParent = section(buf, 4L * nd).asIntBuffer();
+			dirChildStart = section(buf, 4L * (nd + 1)).asIntBuffer();
+			dirFileStart = section(buf, 4L * (nd + 1)).asIntBuffer();
+			dirFlags = section(buf, nd);
+			fileSize = section(buf, 8L * nf).asLongBuffer();
+			fileModified = section(buf, 8L * nf).asLongBuffer();
+			fileName = section(buf, 4L * nf).asIntBuffer();
+			filePath = section(buf, 4L * nf).asIntBuffer();
+			fileParent = section(buf, 4L * nf).asIntBuffer();
+			fileFlags = section(buf, nf);
+			fileTypes = section(buf, nf);
+			fileHash = section(buf, (long) TTH_LEN * nf);
+
+			oddHashes = new HashMap<Integer, String>();
+			for (int i = 0; i < oddCount; i++) {
+				int f = buf.getInt();
+				byte h[] = new byte[buf.getInt()];
+				buf.get(h);
+				oddHashes.put(f, new String(h, "utf-8"));
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated file list.");
+		} catch (NegativeArraySizeException e) {
+			throw new IOException("Corrupt file list.");
+		}
+
+		if (strStart.get(strCount()) != pool.capacity() || dirChildStart.get(dirCount) != dirCount
+				|| dirFileStart.get(dirCount) != fileCount)
+			throw new IOException("Corrupt file list.");
+	}
+
+	private int strCount() {
+		return strStart.capacity() - 1;
+	}
+
+	/**
+	 * @param buf
+	 * @param len
+	 * @return The next <i>len</i> bytes of <i>buf</i>, which
+	 * is then moved past them and the padding after them.
+	 * @throws IOException If <i>buf</i> is too short.
+	 */
+	private static ByteBuffer section(ByteBuffer buf, long len) throws IOException {
+		if (len > buf.remaining())
+			throw new IOException("Truncated file list.");
+		ByteBuffer s = buf.slice();
+		s.limit((int) len);
+		s = s.slice(); //So that its capacity is len.
+		buf.position(buf.position() + (int) len);
+		align(buf);
+		return s;
+	}
+
+	private static void align(ByteBuffer buf) {
+		buf.position(Math.min(buf.limit(), (buf.position() + 7) & ~7));
+	}
+
+	/**
+	 * @param head
+	 * @return true if <i>head</i> starts like a file list saved by {@link #writeTo(OutputStream)}.
+	 */
+	static boolean hasMagic(byte head[]) {
+		if (head.length < MAGIC.length)
+			return false;
+		for (int i = 0; i < MAGIC.length; i++)
+			if (head[i] != MAGIC[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Makes a compact copy of a FLDir tree.
+	 * @param root The root of the file list.
+	 * @return
+	 */
+	public static CompactFileList fromTree(FLDir root) {
+		Builder b = new Builder(root.getCID(), root.isJDCBotGenerated());
+		addTree(b, root, 0);
+		return b.build();
+	}
+
+	private static void addTree(Builder b, FLDir dir, int id) {
+		for (FLFile f : dir.getFiles())
+			b.addFile(id, f.name, f.size, f.lastModified, f.hash, f.path, f.shared, f.getTypeFlags());
+		for (FLDir d : dir.getSubDirs())
+			addTree(b, d, b.addDir(id, d.getName(), d.isShared()));
+	}
+
+	/**
+	 * Saves this file list in a binary format. All numbers are big-endian and
+	 * every section starts at a multiple of 8 bytes. The format is:
+	 * <ol>
+	 * <li>"JDCBFL", the version (short) and a flags int (bit 0 is set if jDCBot generated).</li>
+	 * <li>The CID as its length (int) and UTF-8 bytes.</li>
+	 * <li>Number of strings, size of the string pool, number of directories,
+	 * number of files and number of odd hashes, as ints.</li>
+	 * <li>The columns strStart, pool, dirName, dirParent, dirChildStart, dirFileStart,
+	 * dirFlags, fileSize, fileModified, fileName, filePath, fileParent, fileFlags,
+	 * fileTypes and fileHash. Every column is an array of fixed width values.</li>
+	 * <li>The odd hashes as file index (int), length (int) and UTF-8 bytes.</li>
+	 * </ol>
+	 * @param out It is not closed.
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		DataOutputStream o = new DataOutputStream(out);
+		o.write(MAGIC);
+		o.writeShort(VERSION);
+		o.writeInt(isJDCBotGenerated ? 1 : 0);
+		byte cid[] = CID == null ? new byte[0] : CID.getBytes("utf-8");
+		o.writeInt(cid.length);
+		o.write(cid);
+		pad(o);
+
+		o.writeInt(strCount());
+		o.writeInt(pool.capacity());
+		o.writeInt(dirCount);
+		o.writeInt(fileCount);
+		o.writeInt(oddHashes.size());
+		pad(o);
+
+		write(o, strStart);
+		write(o, pool);
+		write(o, dirName);
+		write(o, dirParent);
+		write(o, dirChildStart);
+		write(o, dirFileStart);
+		write(o, dirFlags);
+		for (int i = 0; i < fileCount; i++)
+			o.writeLong(fileSize.get(i));
+		pad(o);
+		for (int i = 0; i < fileCount; i++)
+			o.writeLong(fileModified.get(i));
+		pad(o);
+		write(o, fileName);
+		write(o, filePath);
+		write(o, fileParent);
+		write(o, fileFlags);
+		write(o, fileTypes);
+		write(o, fileHash);
+
+		for (Map.Entry<Integer, String> e : oddHashes.entrySet()) {
+			byte h[] = e.getValue().getBytes("utf-8");
+			o.writeInt(e.getKey());
+			o.writeInt(h.length);
+			o.write(h);
+		}
+		o.flush();
+	}
+
+	private static void write(DataOutputStream o, IntBuffer col) throws IOException {
+		for (int i = 0; i < col.capacity(); i++)
+			o.writeInt(col.get(i));
+		pad(o);
+	}
+
+	private static void write(DataOutputStream o, ByteBuffer col) throws IOException {
+		if (col.hasArray())
+			o.write(col.array(), col.arrayOffset(), col.capacity());
+		else
+			for (int i = 0; i < col.capacity(); i++)
+				o.write(col.get(i));
+		pad(o);
+	}
+
+	private static void pad(DataOutputStream o) throws IOException {
+		while (o.size() % 8 != 0)
+			o.write(0);
+	}
+
+	/**
+	 * Reads a file list saved by {@link #writeTo(OutputStream)} into the heap.
+	 * @param in It is read till its end but not closed.
+	 * @return
+	 * @throws IOException If <i>in</i> does not have a valid file list.
+	 */
+	public static CompactFileList read(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte b[] = new byte[64 * 1024];
+		int n;
+		while ((n = in.read(b)) != -1)
+			bytes.write(b, 0, n);
+		return new CompactFileList(ByteBuffer.wrap(bytes.toByteArray()), null);
+	}
+
+	/**
+	 * Memory maps a file list saved by {@link #writeTo(OutputStream)}. The
+	 * file is read by the OS only as its parts are used. Note that on some
+	 * OSes a mapped file cannot be deleted or replaced till it is garbage collected.
+	 * @param file
+	 * @return
+	 * @throws IOException If <i>file</i> does not have a valid file list.
+	 */
+	public static CompactFileList open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			if (ch.size() > Integer.MAX_VALUE)
+				throw new IOException("File list too large to be mapped: " + file);
+			return new CompactFileList(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()), file);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return The file this is memory mapped from, or null if this is in the heap.
+	 */
+	public File getSource() {
+		return source;
+	}
+
+	/**
+	 * @return Approximate number of bytes of the heap this takes. The
+	 * columns of a memory mapped file list are not in the heap.
+	 */
+	public long getHeapSize() {
+		long size = 128 + oddHashes.size() * 96L;
+		if (source == null)
+			size += pool.capacity() + 4L * strStart.capacity() + dirCount * 17L + fileCount * (8 + 8 + 4 + 4 + 4 + 1 + 1 + TTH_LEN);
+		int table[] = hashTable;
+		if (table != null)
+			size += 4L * table.length;
+		return size;
+	}
+
+	/**
+	 * @return A FLDir tree of this file list. It is
+	 * newly made on every call.
+	 */
+	public FLDir toTree() {
+		FLDir dirs[] = new FLDir[dirCount];
+		dirs[0] = new FLDir("Root", true, null);
+		dirs[0].setCID(CID);
+		dirs[0].setJDCBotGenerated(isJDCBotGenerated);
+		for (int d = 1; d < dirs.length; d++) {
+			FLDir parent = dirs[dirParent.get(d)];
+			dirs[d] = new FLDir(string(dirName.get(d)), false, parent);
+			dirs[d].setShared((dirFlags.get(d) & SHARED) != 0);
+		}
+		//Adding in bulk as a FLDir's children are already unique.
+		for (int d = 0; d < dirs.length; d++) {
+			List<FLFile> files = new ArrayList<FLFile>(dirFileStart.get(d + 1) - dirFileStart.get(d));
+			for (int f = dirFileStart.get(d); f < dirFileStart.get(d + 1); f++)
+				files.add(fileNode(f, dirs[d]));
+			dirs[d].addFile(files);
+			List<FLDir> subDirs = new ArrayList<FLDir>(dirChildStart.get(d + 1) - dirChildStart.get(d));
+			for (int c = dirChildStart.get(d); c < dirChildStart.get(d + 1); c++)
+				subDirs.add(dirs[c]);
+			dirs[d].addSubDirs(subDirs);
+		}
+		return dirs[0];
+	}
+
+	public String getCID() {
+		return CID;
+	}
+
+	public boolean isJDCBotGenerated() {
+		return isJDCBotGenerated;
+	}
+
+	public int getFileCount() {
+		return fileCount;
+	}
+
+	/**
+	 * @return Number of directories, including the root.
+	 */
+	public int getDirCount() {
+		return dirCount;
+	}
+
+	/**
+	 * @param all If true then files which are not shared are counted too.
+	 * @return Total size of the files.
+	 */
+	public long getSize(boolean all) {
+		long size = 0;
+		for (int f = 0; f < fileCount; f++)
+			if (all || (fileFlags.get(f) & VISIBLE) != 0)
+				size += fileSize.get(f);
+		return size;
+	}
+
+	/**
+	 * Same as {@link FLDir#search(SearchSet, int, boolean)} on the root,
+	 * though the results may be in a different order.
+	 * @param For
+	 * @param maxResult Set this to &lt;=0 to get all the results.
+	 * @param all If true then files and directories which are not shared are searched too.
+	 * @return null is never returned.
+	 */
+	public List<SearchResultSet> search(SearchSet For, final int maxResult, boolean all) {
+		List<SearchResultSet> res = new ArrayList<SearchResultSet>();
+		byte mask = all ? 0 : VISIBLE;
+
+		if (For.data_type == SearchSet.DataType.TTH) {
+			String hash = For.string.trim();
+			byte h[] = tthOf(hash);
+			if (h != null) {
+				int table[] = hashTable();
+				for (int i = slot(h, 0, table.length); table[i] != -1 && !full(res, maxResult); i = (i + 1) & (table.length - 1)) {
+					int f = table[i];
+					if ((fileFlags.get(f) & mask) == mask && hasHash(f, hash, h) && fulfillsSizeCriteria(f, For))
+						res.add(fileResult(f));
+				}
+				return res;
+			}
+			for (int f = 0; f < fileCount && !full(res, maxResult); f++)
+				if ((fileFlags.get(f) & mask) == mask && hasHash(f, hash, h) && fulfillsSizeCriteria(f, For))
+					res.add(fileResult(f));
+			return res;
+		}
+
+		List<String> t = new ArrayList<String>();
+		for (String term : For.string.toLowerCase().trim().split(" ")) {
+			term = term.trim();
+			if (term.length() != 0)
+				t.add(term);
+		}
+		String terms[] = t.toArray(new String[t.size()]);
+		byte asciiTerms[][] = new byte[terms.length][];
+		for (int i = 0; i < terms.length; i++)
+			asciiTerms[i] = asciiOf(terms[i]);
+
+		if (For.data_type != SearchSet.DataType.DIRECTORY) {
+			int typeFlag = For.data_type == SearchSet.DataType.ANY ? 0 : FLFile.flagOf(For.data_type);
+			for (int f = 0; f < fileCount && !full(res, maxResult); f++) {
+				if ((fileFlags.get(f) & mask) != mask || (fileTypes.get(f) & typeFlag) != typeFlag)
+					continue;
+				if (fulfillsSizeCriteria(f, For) && matches(fileName.get(f), terms, asciiTerms))
+					res.add(fileResult(f));
+			}
+		}
+		if (For.data_type == SearchSet.DataType.DIRECTORY || For.data_type == SearchSet.DataType.ANY) {
+			for (int d = 1; d < dirCount && !full(res, maxResult); d++) {
+				if ((dirFlags.get(d) & mask) == mask && matches(dirName.get(d), terms, asciiTerms)) {
+					SearchResultSet srs = new SearchResultSet();
+					srs.isDir = true;
+					srs.name = dirPath(d);
+					res.add(srs);
+				}
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Same as GlobalFunctions.matches(terms, string(s)), but a string
+	 * which is all ASCII, as most names are, is matched in the pool as it is.
+	 * @param s
+	 * @param terms The search terms, lower-cased and trimmed, without empty ones.
+	 * @param asciiTerms The bytes of <i>terms</i>, null for the terms which are not all ASCII.
+	 * @return true if string <i>s</i> contains any of the terms.
+	 */
+	private boolean matches(int s, String terms[], byte asciiTerms[][]) {
+		if (terms.length == 0) //An empty search matches everything.
+			return true;
+		int start = strStart.get(s);
+		int end = strStart.get(s + 1);
+		for (int i = start; i < end; i++)
+			if (pool.get(i) < 0) //Not ASCII.
+				return GlobalFunctions.matches(terms, string(s));
+		while (start < end && pool.get(start) <= ' ')
+			start++;
+		while (end > start && pool.get(end - 1) <= ' ')
+			end--;
+		//A term which is not all ASCII cannot be in an ASCII string.
+		for (byte term[] : asciiTerms)
+			if (term != null && contains(start, end, term))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param start
+	 * @param end
+	 * @param term Lower-cased ASCII bytes.
+	 * @return true if the ASCII bytes pool[start] to pool[end - 1] contain <i>term</i>, ignoring case.
+	 */
+	private boolean contains(int start, int end, byte term[]) {
+		next: for (int i = start; i + term.length <= end; i++) {
+			for (int k = 0; k < term.length; k++) {
+				byte b = pool.get(i + k);
+				if (b >= 'A' && b <= 'Z')
+					b += 'a' - 'A';
+				if (b != term[k])
+					continue next;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param s
+	 * @return The bytes of <i>s</i>, or null if it is not all ASCII.
+	 */
+	private static byte[] asciiOf(String s) {
+		byte b[] = new byte[s.length()];
+		for (int i = 0; i < b.length; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80)
+				return null;
+			b[i] = (byte) c;
+		}
+		return b;
+	}
+
+	private static boolean full(List<SearchResultSet> res, int maxResult) {
+		return maxResult > 0 && res.size() >= maxResult;
+	}
+
+	private boolean fulfillsSizeCriteria(int f, SearchSet SS) {
+		if (SS.size_criteria == SearchSet.SizeCriteria.NONE)
+			return true;
+		long size = SS.size_unit == SearchSet.SizeUnit.BYTE ? SS.size : SS.size_unit.getValue() * 1024 * SS.size;
+		if (SS.size_criteria == SearchSet.SizeCriteria.ATLEAST)
+			return fileSize.get(f) >= size;
+		else
+			return fileSize.get(f) <= size;
+	}
+
+	private SearchResultSet fileResult(int f) {
+		SearchResultSet srs = new SearchResultSet();
+		srs.isDir = false;
+		srs.name = dirPath(fileParent.get(f)) + "/" + string(fileName.get(f));
+		srs.size = fileSize.get(f);
+		srs.TTH = hash(f);
+		return srs;
+	}
+
+	/**
+	 * Same as {@link FLDir#getFileInTreeByHash(String, boolean)} on the root.
+	 * @param hash
+	 * @param all If true then files which are not shared are returned too.
+	 * @return A new FLFile, or null if no such file is found.
+	 */
+	public FLFile getFileByHash(String hash, boolean all) {
+		byte mask = all ? 0 : VISIBLE;
+		byte h[] = tthOf(hash);
+		if (h != null) {
+			//Files with the same hash are in the table in their order.
+			int table[] = hashTable();
+			for (int i = slot(h, 0, table.length); table[i] != -1; i = (i + 1) & (table.length - 1)) {
+				int f = table[i];
+				if ((fileFlags.get(f) & mask) == mask && hasHash(f, hash, h))
+					return fileNode(f, dirNode(fileParent.get(f)));
+			}
+			return null;
+		}
+		for (int f = 0; f < fileCount; f++)
+			if ((fileFlags.get(f) & mask) == mask && hasHash(f, hash, h))
+				return fileNode(f, dirNode(fileParent.get(f)));
+		return null;
+	}
+
+	/**
+	 * A TTH is as good as random, so its first bytes are used as its
+	 * hash code. The table has at least twice as many slots as files
+	 * with TTHs, free slots are -1.
+	 * @return The hash table of the files which have TTHs, made when first called.
+	 */
+	private int[] hashTable() {
+		int table[] = hashTable;
+		if (table != null)
+			return table;
+		synchronized (hashTableLock) {
+			if (hashTable == null) {
+				int n = 0;
+				for (int f = 0; f < fileCount; f++)
+					if ((fileFlags.get(f) & HASHED) != 0)
+						n++;
+				int size = 16;
+				while (size < 2 * n)
+					size <<= 1;
+				table = new int[size];
+				Arrays.fill(table, -1);
+				byte h[] = new byte[4];
+				for (int f = 0; f < fileCount; f++) {
+					if ((fileFlags.get(f) & HASHED) == 0)
+						continue;
+					for (int i = 0; i < h.length; i++)
+						h[i] = fileHash.get(f * TTH_LEN + i);
+					int i = slot(h, 0, size);
+					while (table[i] != -1)
+						i = (i + 1) & (size - 1);
+					table[i] = f;
+				}
+				hashTable = table;
+			}
+			return hashTable;
+		}
+	}
+
+	/**
+	 * @param h
+	 * @param off
+	 * @param size A power of two.
+	 * @return The slot of the TTH h[off] to h[off + 23] in a hash table of <i>size</i> slots.
+	 */
+	private static int slot(byte h[], int off, int size) {
+		return ((h[off] & 0xFF) << 24 | (h[off + 1] & 0xFF) << 16 | (h[off + 2] & 0xFF) << 8 | (h[off + 3] & 0xFF)) & (size - 1);
+	}
+
+	/**
+	 * @param hash
+	 * @return The binary form of the TTH <i>hash</i>, or null if it is not a valid TTH.
+	 */
+	private static byte[] tthOf(String hash) {
+		hash = hash.toUpperCase();
+		return Builder.isTTH(hash) ? Base32.decode(hash) : null;
+	}
+
+	/**
+	 * Compares without encoding the hash of every file.
+	 * @param f
+	 * @param hash
+	 * @param tth Binary form of <i>hash</i>, if it is a valid TTH.
+	 * @return true if file <i>f</i>'s hash is <i>hash</i>, ignoring case.
+	 */
+	private boolean hasHash(int f, String hash, byte tth[]) {
+		if ((fileFlags.get(f) & HASHED) == 0) {
+			String odd = oddHashes.get(f);
+			return odd != null && odd.equalsIgnoreCase(hash);
+		}
+		if (tth == null)
+			return false;
+		int off = f * TTH_LEN;
+		for (int i = 0; i < TTH_LEN; i++)
+			if (fileHash.get(off + i) != tth[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Same as {@link FLDir#getChildInTree(List, boolean)} on the root.
+	 * @param path The virtual path split around '/', starting with 'Root'.
+	 * @param dirOnly If true then will look for directories only.
+	 * @return A new FLFile or FLDir, or null if no such node is found.
+	 */
+	public FLInterface getChildInTree(List<String> path, boolean dirOnly) {
+		if (path.size() == 0 || !path.get(0).equals("Root"))
+			return null;
+		int d = 0;
+		for (int i = 1; i < path.size(); i++) {
+			String name = path.get(i);
+			int next = -1;
+			for (int c = dirChildStart.get(d); c < dirChildStart.get(d + 1) && next == -1; c++)
+				if (string(dirName.get(c)).equals(name))
+					next = c;
+			if (next != -1) {
+				d = next;
+				continue;
+			}
+			if (dirOnly || i != path.size() - 1)
+				return null;
+			for (int f = dirFileStart.get(d); f < dirFileStart.get(d + 1); f++)
+				if (string(fileName.get(f)).equals(name))
+					return fileNode(f, dirNode(d));
+			return null;
+		}
+		return dirNode(d);
+	}
+
+	/**
+	 * Writes the shared directories and the shared files which have hashes
+	 * in the XML file list, the same as a FLDir tree is written by
+	 * {@link ShareManager}.
+	 * @param w
+	 * @return Number of files not written, as they are not shared or have no hash.
+	 * @throws IOException
+	 */
+	int writeXml(FileListWriter w) throws IOException {
+		return writeXml(w, 0, 0);
+	}
+
+	private int writeXml(FileListWriter w, int d, int depth) throws IOException {
+		if ((dirFlags.get(d) & SHARED) == 0)
+			return 0;
+		if (d != 0)
+			w.startDirectory(depth, string(dirName.get(d)));
+		int skipped = 0;
+		for (int c = dirChildStart.get(d); c < dirChildStart.get(d + 1); c++)
+			skipped += writeXml(w, c, depth + 1);
+		for (int f = dirFileStart.get(d); f < dirFileStart.get(d + 1); f++) {
+			String hash = (fileFlags.get(f) & SHARED) != 0 ? hash(f) : null;
+			if (hash != null && hash.length() != 0)
+				w.file(depth + 1, string(fileName.get(f)), fileSize.get(f), hash);
+			else
+				skipped++;
+		}
+		if (d != 0)
+			w.endDirectory(depth);
+		return skipped;
+	}
+
+	/**
+	 * @param d
+	 * @return A new FLDir for dir <i>d</i>, with its parents but without its children.
+	 */
+	private FLDir dirNode(int d) {
+		if (d == 0) {
+			FLDir root = new FLDir("Root", true, null);
+			root.setCID(CID);
+			root.setJDCBotGenerated(isJDCBotGenerated);
+			return root;
+		}
+		FLDir dir = new FLDir(string(dirName.get(d)), false, dirNode(dirParent.get(d)));
+		dir.setShared((dirFlags.get(d) & SHARED) != 0);
+		return dir;
+	}
+
+	private FLFile fileNode(int f, FLDir parent) {
+		FLFile file =
+			new FLFile(string(fileName.get(f)), fileSize.get(f), filePath.get(f) == -1 ? null : string(filePath.get(f)), fileModified.get(f),
+					(fileFlags.get(f) & SHARED) != 0, parent);
+		file.hash = hash(f);
+		file.setTypeFlags(fileTypes.get(f) & 0xFF);
+		return file;
+	}
+
+	private String dirPath(int d) {
+		StringBuffer p = new StringBuffer();
+		for (; d > 0; d = dirParent.get(d))
+			p.insert(0, string(dirName.get(d))).insert(0, '/');
+		return p.insert(0, "/Root").toString();
+	}
+
+	private String hash(int f) {
+		if ((fileFlags.get(f) & HASHED) != 0) {
+			byte h[] = new byte[TTH_LEN];
+			for (int i = 0; i < TTH_LEN; i++)
+				h[i] = fileHash.get(f * TTH_LEN + i);
+			return Base32.encode(h);
+		}
+		return oddHashes.get(f);
+	}
+
+	private String string(int i) {
+		int start = strStart.get(i);
+		int len = strStart.get(i + 1) - start;
+		try {
+			if (pool.hasArray())
+				return new String(pool.array(), pool.arrayOffset() + start, len, "utf-8");
+			//Mapped, a duplicate so that the shared buffer's position is never changed.
+			byte b[] = new byte[len];
+			ByteBuffer d = pool.duplicate();
+			d.position(start);
+			d.get(b);
+			return new String(b, "utf-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuffer("CompactFileList[files:").append(getFileCount()).append(", dirs:").append(getDirCount()).append(
+		", pool:").append(pool.capacity()).append(" bytes").append(
+		source == null ? "" : ", mapped from " + source).append("]").toString();
+	}
+
+	/**
+	 * Builds a CompactFileList, one file or directory at a time, so that
+	 * a file list can be read straight into the compact form.
+	 * <p>
+	 * This class is not thread safe.
+	 */
+	public static class Builder {
+		private final String CID;
+		private final boolean isJDCBotGenerated;
+
+		private final Map<String, Integer> strIds = new HashMap<String, Integer>();
+		private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+		private int strStart[] = new int[64];
+		private int strCount = 0;
+
+		private int dirName[] = new int[16];
+		private int dirParent[] = new int[16];
+		private byte dirFlags[] = new byte[16];
+		private int dirCount = 0;
+
+		private int fileName[] = new int[64];
+		private int filePath[] = new int[64];
+		private int fileParent[] = new int[64];
+		private long fileSize[] = new long[64];
+		private long fileModified[] = new long[64];
+		private byte fileFlags[] = new byte[64];
+		private byte fileTypes[] = new byte[64];
+		private byte fileHash[] = new byte[64 * TTH_LEN];
+		private final Map<Integer, String> oddHashes = new HashMap<Integer, String>();
+		private int fileCount = 0;
+
+		/**
+		 * @param CID CID of the file list's owner.
+		 * @param isJDCBotGenerated
+		 */
+		public Builder(String CID, boolean isJDCBotGenerated) {
+			this.CID = CID;
+			this.isJDCBotGenerated = isJDCBotGenerated;
+			addDir(-1, "Root", true);
+		}
+
+		/**
+		 * @param parent Id of the parent directory. The root's id is 0.
+		 * @param name
+		 * @param shared
+		 * @return Id of the new directory.
+		 */
+		public int addDir(int parent, String name, boolean shared) {
+			if (dirCount == dirName.length) {
+				int n = dirCount * 2;
+				dirName = copyOf(dirName, n);
+				dirParent = copyOf(dirParent, n);
+				dirFlags = copyOf(dirFlags, n);
+			}
+			dirName[dirCount] = stringId(name);
+			dirParent[dirCount] = parent;
+			dirFlags[dirCount] = shared ? SHARED : 0;
+			return dirCount++;
+		}
+
+		/**
+		 * @param parent Id of the directory the file is in. The root's id is 0.
+		 * @param name
+		 * @param size
+		 * @param lastModified
+		 * @param hash The TTH, can be null.
+		 * @param path Path of the file in the file system, can be null.
+		 * @param shared
+		 */
+		public void addFile(int parent, String name, long size, long lastModified, String hash, String path, boolean shared) {
+			addFile(parent, name, size, lastModified, hash, path, shared, FLFile.typeFlagsOf(name));
+		}
+
+		/**
+		 * @param parent Id of the directory the file is in. The root's id is 0.
+		 * @param name
+		 * @param size
+		 * @param lastModified
+		 * @param hash The TTH, can be null.
+		 * @param path Path of the file in the file system, can be null.
+		 * @param shared
+		 * @param types Bit flags of the data types of the file, see {@link FLFile#getTypeFlags()}.
+		 */
+		public void addFile(int parent, String name, long size, long lastModified, String hash, String path, boolean shared, int types) {
+			if (fileCount == fileName.length) {
+				int n = fileCount * 2;
+				fileName = copyOf(fileName, n);
+				filePath = copyOf(filePath, n);
+				fileParent = copyOf(fileParent, n);
+				fileSize = copyOf(fileSize, n);
+				fileModified = copyOf(fileModified, n);
+				fileFlags = copyOf(fileFlags, n);
+				fileTypes = copyOf(fileTypes, n);
+				fileHash = copyOf(fileHash, n * TTH_LEN);
+			}
+			int f = fileCount++;
+			fileName[f] = stringId(name);
+			filePath[f] = path == null ? -1 : stringId(path);
+			fileParent[f] = parent;
+			fileSize[f] = size;
+			fileModified[f] = lastModified;
+			fileTypes[f] = (byte) types;
+			byte flags = shared ? SHARED : 0;
+			if (hash != null) {
+				byte h[] = isTTH(hash) ? Base32.decode(hash) : null;
+				if (h != null && h.length == TTH_LEN) {
+					System.arraycopy(h, 0, fileHash, f * TTH_LEN, TTH_LEN);
+					flags |= HASHED;
+				} else
+					oddHashes.put(f, hash);
+			}
+			fileFlags[f] = flags;
+		}
+
+		/**
+		 * @param hash
+		 * @return true if <i>hash</i> is a base32 encoded TTH which
+		 * will be the same after decoding and encoding again.
+		 */
+		private static boolean isTTH(String hash) {
+			if (hash.length() != 39)
+				return false;
+			for (int i = 0; i < hash.length(); i++) {
+				char c = hash.charAt(i);
+				if ((c < 'A' || c > 'Z') && (c < '2' || c > '7'))
+					return false;
+			}
+			return Base32.encode(Base32.decode(hash)).equals(hash);
+		}
+
+		private int stringId(String s) {
+			Integer id = strIds.get(s);
+			if (id != null)
+				return id;
+			if (strCount == strStart.length)
+				strStart = copyOf(strStart, strCount * 2);
+			strStart[strCount] = pool.size();
+			try {
+				pool.write(s.getBytes("utf-8"));
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			strIds.put(s, strCount);
+			return strCount++;
+		}
+
+		/**
+		 * @return The file list. The builder must not be used after this.
+		 */
+		public CompactFileList build() {
+			//Ordering the dirs breadth first.
+			int childCount[] = new int[dirCount + 1];
+			for (int d = 1; d < dirCount; d++)
+				childCount[dirParent[d] + 1]++;
+			for (int d = 1; d <= dirCount; d++)
+				childCount[d] += childCount[d - 1];
+			int children[] = new int[Math.max(dirCount - 1, 0)];
+			int next[] = new int[dirCount];
+			System.arraycopy(childCount, 0, next, 0, dirCount);
+			for (int d = 1; d < dirCount; d++)
+				children[next[dirParent[d]]++] = d;
+
+			int newDirId[] = new int[dirCount];
+			int order[] = new int[dirCount];
+			int n = 1;
+			order[0] = 0;
+			for (int i = 0; i < n; i++) {
+				int d = order[i];
+				newDirId[d] = i;
+				for (int c = childCount[d]; c < childCount[d + 1]; c++)
+					order[n++] = children[c];
+			}
+			return new CompactFileList(this, newDirId);
+		}
+
+		private static int[] copyOf(int a[], int n) {
+			int b[] = new int[n];
+			System.arraycopy(a, 0, b, 0, a.length);
+			return b;
+		}
+
+		private static long[] copyOf(long a[], int n) {
+			long b[] = new long[n];
+			System.arraycopy(a, 0, b, 0, a.length);
+			return b;
+		}
+
+		private static byte[] copyOf(byte a[], int n) {
+			byte b[] = new byte[n];
+			System.arraycopy(a, 0, b, 0, a.length);
+			return b;
+		}
+	}
+}
@@ -28,8 +28,10 @@ import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.elite.jdcbot.util.GlobalFunctions;
 
@@ -54,12 +56,40 @@ import org.elite.jdcbot.util.GlobalFunctions;
 public class FLDir implements Serializable, FLInterface {
     private static final long serialVersionUID = 8442912993644448963L;
     private final int HASH_CONST = 11;
+    /**
+     * Directories with fewer files (or sub-directories)
+     * than this are simply scanned to find one by name.
+     */
+    private static final int MIN_CHILDREN_TO_MAP = 16;
 
     private String _name;
     private FLDir _parent;
     private volatile boolean _isRoot;
     private List<FLFile> _files;
     private List<FLDir> _dirs;
+    /**
+     * Names of the files and sub-directories to them, to find
+     * them by name without scanning the lists. They are built
+     * when first needed and are discarded whenever children are
+     * removed or renamed. They are guarded by the lock of the list
+     * they map, and are null if not yet built.
+     */
+    private transient Map<String, FLFile> _fileNames = null;
+    private transient Map<String, FLDir> _dirNames = null;
+    /**
+     * The lines of the shared files of this directory in files.xml,
+     * as written at the depth <i>_filesXmlDepth</i>, so that they need
+     * not be written again when the files have not changed. This is null
+     * if it has to be (re)made. <i>_filesVersion</i> is incremented on
+     * every change to the files. They are guarded by <i>_files</i>' lock.
+     */
+    private transient byte _filesXml[] = null;
+    private transient int _filesXmlDepth;
+    private transient int _filesVersion = 0;
+    /**
+     * Used by {@link ShareIndex}, which guards it.
+     */
+    transient int indexId = 0;
     private volatile boolean isJDCBotGenerated = false;
     private volatile boolean isShared = true;
     /**
@@ -190,9 +220,163 @@ public class FLDir implements Serializable, FLInterface {
      * no effect.
      * @param name
      */
-    synchronized public void setName(String name) {
-	if (!isImmutable)
+    public void setName(String name) {
+	FLDir parent;
+	synchronized (this) {
+	    if (isImmutable)
+		return;
 	    _name = name;
+	    parent = _parent;
+	}
+	//Not holding own lock here, as the parent's lock is taken before its children's elsewhere.
+	if (parent != null)
+	    parent.childRenamed(this);
+    }
+
+    /**
+     * Must be called after renaming a file or sub-directory
+     * of this directory.
+     * @param child
+     */
+    void childRenamed(FLInterface child) {
+	if (child instanceof FLDir) {
+	    synchronized (_dirs) {
+		_dirNames = null;
+	    }
+	} else {
+	    synchronized (_files) {
+		_fileNames = null;
+		filesModified();
+	    }
+	}
+    }
+
+    /**
+     * Must be called after directly changing the fields of a
+     * file of this directory (say, {@link FLFile#hash}), so that
+     * its entry is written again when the file list is rebuilt.
+     */
+    public void filesChanged() {
+	synchronized (_files) {
+	    filesModified();
+	}
+    }
+
+    /**
+     * Must be called holding <i>_files</i>' lock.
+     */
+    private void filesModified() {
+	_filesXml = null;
+	_filesVersion++;
+    }
+
+    /**
+     * @return The number which must be passed to {@link #setFilesXml(byte[], int, int)}.
+     * Get it before getting the files whose XML is made.
+     */
+    int getFilesVersion() {
+	synchronized (_files) {
+	    return _filesVersion;
+	}
+    }
+
+    /**
+     * @param depth
+     * @return The cached XML lines of the files of this directory
+     * written at <i>depth</i>, or null if they must be made again.
+     */
+    byte[] getFilesXml(int depth) {
+	synchronized (_files) {
+	    return _filesXmlDepth == depth ? _filesXml : null;
+	}
+    }
+
+    /**
+     * Caches the XML lines of the files of this directory, unless
+     * the files changed since <i>version</i> was got.
+     * @param xml
+     * @param depth
+     * @param version
+     */
+    void setFilesXml(byte xml[], int depth, int version) {
+	synchronized (_files) {
+	    if (version != _filesVersion)
+		return;
+	    _filesXml = xml;
+	    _filesXmlDepth = depth;
+	}
+    }
+
+    /**
+     * Drops the cached XML lines of the files of this
+     * directory and of all the directories under it.
+     */
+    void releaseFilesXmlInTree() {
+	synchronized (_files) {
+	    _filesXml = null;
+	}
+	for (FLDir d : getSubDirs())
+	    d.releaseFilesXmlInTree();
+    }
+
+    /**
+     * Must be called holding <i>_files</i>' lock.
+     * @param name
+     * @return The first file in this directory named <i>name</i>
+     * or null if there is none.
+     */
+    private FLFile findFile(String name) {
+	if (_fileNames == null) {
+	    if (_files.size() < MIN_CHILDREN_TO_MAP) {
+		for (FLFile f : _files)
+		    if (f.name.equals(name))
+			return f;
+		return null;
+	    }
+	    _fileNames = new HashMap<String, FLFile>(_files.size() * 2);
+	    for (FLFile f : _files)
+		if (!_fileNames.containsKey(f.name))
+		    _fileNames.put(f.name, f);
+	}
+	return _fileNames.get(name);
+    }
+
+    /**
+     * Must be called holding <i>_dirs</i>' lock.
+     * @param name
+     * @return The first sub-directory of this directory named
+     * <i>name</i> or null if there is none.
+     */
+    private FLDir findDir(String name) {
+	if (_dirNames == null) {
+	    if (_dirs.size() < MIN_CHILDREN_TO_MAP) {
+		for (FLDir d : _dirs)
+		    if (d._name.equals(name))
+			return d;
+		return null;
+	    }
+	    _dirNames = new HashMap<String, FLDir>(_dirs.size() * 2);
+	    for (FLDir d : _dirs)
+		if (!_dirNames.containsKey(d._name))
+		    _dirNames.put(d._name, d);
+	}
+	return _dirNames.get(name);
+    }
+
+    /**
+     * Must be called holding <i>_dirs</i>' lock.
+     * @param d
+     * @return The immediate sub-directory equal to <i>d</i>
+     * or null if there is none.
+     */
+    private FLDir findEqualDir(FLDir d) {
+	FLDir c = findDir(d._name);
+	if (c == null) //Equal dirs have equal names.
+	    return null;
+	if (c.equals(d))
+	    return c;
+	int in = _dirs.indexOf(d);
+	return in == -1 ? null : _dirs.get(in);
     }
 
     /**
@@ -207,16 +391,14 @@ public class FLDir implements Serializable, FLInterface {
 	String ss[] = For.string.toLowerCase().trim().split(" ");
 	List<FLInterface> sr = new ArrayList<FLInterface>();
 	List<String> owners = new ArrayList<String>();
-	synchronized (_files) {
-	    synchronized (_dirs) {
-		search(For, ss, sr, owners, maxResult, all);
-	    }
-	}
+	search(For, ss, sr, owners, maxResult, all);
 	return convertFLItoSRS(sr, owners);
     }
 
     /**
-     * Not thread-safe in itself and hence must be called from a synchronized block.
+     * Locks the lists of only the directory being searched, and only
+     * while searching them, so that many searches can run through the
+     * tree at the same time.
      * @param For
      * @param ss
      * @param sr
@@ -227,81 +409,31 @@ public class FLDir implements Serializable, FLInterface {
     private void search(SearchSet For, String ss[], List<FLInterface> sr, List<String> owners, final int maxResult, boolean all) {
 	String pwd = this.getDirPath() + "/";
 	if (For.data_type != SearchSet.DataType.DIRECTORY) {
-	    for (FLFile f : _files) {
-		if (maxResult > 0 && sr.size() > maxResult)
-		    break;
-		if (!all && f.shared == false)
-		    continue;
-
-		switch (For.data_type) {
-		case ANY:
-			if (GlobalFunctions.matches(ss, f.name) && fulfillsSizeCriteria(f, For)) {
-				sr.add(f);
-				owners.add(pwd);
-			}
-			break;
-		case AUDIO:
-			if (GlobalFunctions.hasExt(f.name, new String[] { "mp3", "mp2", "wav", "au", "rm", "mid", "sm", "ogg" })
-					&& GlobalFunctions.matches(ss, f.name) && fulfillsSizeCriteria(f, For)) {
-				sr.add(f);
-				owners.add(pwd);
-			}
-			break;
-		case COMPRESSED:
-			if (GlobalFunctions.hasExt(f.name, new String[] { "zip", "arj", "rar", "lzh", "gz", "z", "arc", "pak", "bz2" })
-					&& GlobalFunctions.matches(ss, f.name) && fulfillsSizeCriteria(f, For)) {
-				sr.add(f);
-				owners.add(pwd);
-			}
-			break;
-		case DOCUMENT:
-			if (GlobalFunctions.hasExt(f.name, new String[] { "doc", "txt", "wri", "pdf", "ps", "tex", "ppt", "pptx", "docx" })
-					&& GlobalFunctions.matches(ss, f.name) && fulfillsSizeCriteria(f, For)) {
-				sr.add(f);
-				owners.add(pwd);
-			}
-			break;
-		case EXECUTABLE:
-			if (GlobalFunctions.hasExt(f.name, new String[] { "pm", "exe", "bat", "com", "sh", "class" })
-					&& GlobalFunctions.matches(ss, f.name) && fulfillsSizeCriteria(f, For)) {
-				sr.add(f);
-				owners.add(pwd);
-			} else if (!GlobalFunctions.isWindowsOS()) {
-				File ff = new File(f.path);
-				if (ff.exists() && ff.canExecute() && GlobalFunctions.matches(ss, f.name) && fulfillsSizeCriteria(f, For)) {
-					sr.add(f);
-					owners.add(pwd);
-				}
-			}
-			break;
-		case PICTURE:
-			if (GlobalFunctions.hasExt(f.name, new String[] { "gif", "jpg", "jpeg", "bmp", "pcx", "png", "wmf", "psd", "tif" })
-					&& GlobalFunctions.matches(ss, f.name) && fulfillsSizeCriteria(f, For)) {
-				sr.add(f);
-				owners.add(pwd);
-			}
-			break;
-		case VIDEO:
-			if (GlobalFunctions.hasExt(f.name, new String[] { "mpg", "mpeg", "avi", "asf", "mov", "mp4", "mkv", "divx", "rmvb",
-					"rm", "ogg" })
-					&& GlobalFunctions.matches(ss, f.name) && fulfillsSizeCriteria(f, For)) {
-				sr.add(f);
-				owners.add(pwd);
-			}
+	    synchronized (_files) {
+		for (FLFile f : _files) {
+		    if (maxResult > 0 && sr.size() > maxResult)
 			break;
-		case TTH:
+		    if (!all && f.shared == false)
+			continue;
+
+		    if (For.data_type == SearchSet.DataType.TTH) {
 			if (f.hash.equalsIgnoreCase(For.string.trim()) && fulfillsSizeCriteria(f, For)) {
-				sr.add(f);
-				owners.add(pwd);
+			    sr.add(f);
+			    owners.add(pwd);
 			}
-			break;
-		default:
-			break;
+		    } else if (f.isOfType(For.data_type) && fulfillsSizeCriteria(f, For) && GlobalFunctions.matches(ss, f.name)) {
+			sr.add(f);
+			owners.add(pwd);
+		    }
 		}
 	    }
 	}
 
-	for (FLDir d : _dirs) {
+	FLDir dirs[];
+	synchronized (_dirs) {
+	    dirs = _dirs.toArray(new FLDir[_dirs.size()]);
+	}
+	for (FLDir d : dirs) {
 	    if (maxResult > 0 && sr.size() > maxResult)
 		break;
 	    if (!all && d.isShared == false)
@@ -322,7 +454,7 @@ public class FLDir implements Serializable, FLInterface {
      * @return true if <i>f</i> fulfills size criteria as specified
      * in <i>SS</i>.
      */
-    private boolean fulfillsSizeCriteria(FLFile f, SearchSet SS) {
+    static boolean fulfillsSizeCriteria(FLFile f, SearchSet SS) {
 	SearchSet.SizeCriteria c = SS.size_criteria;
 	SearchSet.SizeUnit u = SS.size_unit;
 	long size = SS.size;
@@ -377,7 +509,11 @@ public class FLDir implements Serializable, FLInterface {
     }
 
     public boolean removeFile(FLFile f) {
-	return _files.remove(f);
+	synchronized (_files) {
+	    _fileNames = null;
+	    filesModified();
+	    return _files.remove(f);
+	}
     }
 
     /**
@@ -393,6 +529,9 @@ public class FLDir implements Serializable, FLInterface {
 	    if (_files.indexOf(f) == -1) {
 		_files.add(f);
 		f.parent = this;
+		filesModified();
+		if (_fileNames != null && !_fileNames.containsKey(f.name))
+		    _fileNames.put(f.name, f);
 		return true;
 	    } else
 		return false;
@@ -400,7 +539,11 @@ public class FLDir implements Serializable, FLInterface {
     }
 
     public void addFile(List<FLFile> files) {
-	_files.addAll(files);
+	synchronized (_files) {
+	    _fileNames = null;
+	    filesModified();
+	    _files.addAll(files);
+	}
     }
 
     public boolean isFileExistsInTree(FLFile f) {
@@ -430,6 +573,8 @@ public class FLDir implements Serializable, FLInterface {
 	    int in = _files.indexOf(f);
 	    if (in != -1) {
 		_files.remove(in);
+		_fileNames = null;
+		filesModified();
 		return true;
 	    } else {
 		synchronized (_dirs) {
@@ -554,7 +699,10 @@ public class FLDir implements Serializable, FLInterface {
     }
 
     public boolean removeSubDir(FLDir d) {
-	return _dirs.remove(d);
+	synchronized (_dirs) {
+	    _dirNames = null;
+	    return _dirs.remove(d);
+	}
     }
 
     /**
@@ -567,16 +715,21 @@ public class FLDir implements Serializable, FLInterface {
      */
     public boolean addSubDir(FLDir d) {
 	synchronized (_dirs) {
-	    if (_dirs.indexOf(d) != -1)
+	    if (findEqualDir(d) != null)
 		return false;
 	    _dirs.add(d);
 	    d.setParent(this);
+	    if (_dirNames != null && !_dirNames.containsKey(d._name))
+		_dirNames.put(d._name, d);
 	    return true;
 	}
     }
 
     public void addSubDirs(List<FLDir> dirs) {
-	_dirs.addAll(dirs);
+	synchronized (_dirs) {
+	    _dirNames = null;
+	    _dirs.addAll(dirs);
+	}
     }
 
     /**
@@ -598,10 +751,7 @@ public class FLDir implements Serializable, FLInterface {
      */
     public FLDir getSubDir(String name) {
 	synchronized (_dirs) {
-	    for (FLDir d : _dirs)
-		if (d._name.equals(name))
-		    return d;
-	    return null;
+	    return findDir(name);
 	}
     }
 
@@ -616,9 +766,10 @@ public class FLDir implements Serializable, FLInterface {
      */
     public boolean deleteSubDirInTree(FLDir d) {
 	synchronized (_dirs) {
-	    int in = _dirs.indexOf(d);
-	    if (in != -1) {
-		_dirs.remove(in);
+	    FLDir c = findEqualDir(d);
+	    if (c != null) {
+		_dirs.remove(c);
+		_dirNames = null;
 		return true;
 	    } else {
 		for (FLDir D : _dirs)
@@ -638,9 +789,9 @@ public class FLDir implements Serializable, FLInterface {
      */
     public FLDir getDirInTree(FLDir d) {
 	synchronized (_dirs) {
-	    int in = _dirs.indexOf(d);
-	    if (in != -1)
-		return _dirs.get(in);
+	    FLDir c = findEqualDir(d);
+	    if (c != null)
+		return c;
 	    else {
 		FLDir rd = null;
 		for (FLDir D : _dirs)
@@ -678,17 +829,14 @@ public class FLDir implements Serializable, FLInterface {
 		synchronized (_dirs) {
 
 		    String name = path.get(0);
-		    for (FLDir d : _dirs)
-			if (d._name.equals(name))
-			    return d.getChildInTree(path, dirOnly);
+		    FLDir d = findDir(name);
+		    if (d != null)
+			return d.getChildInTree(path, dirOnly);
 		    if (dirOnly)
 			return null;
 		    if (path.size() != 1)
 			return null;
-		    for (FLFile f : _files)
-			if (f.name.equals(name))
-			    return f;
-		    return null;
+		    return findFile(name);
 		}
 	    }
 	}
@@ -716,9 +864,11 @@ public class FLDir implements Serializable, FLInterface {
      * as its immediate file or sub-directory.
      */
     public boolean hasChild(FLInterface i) {
-	if (i instanceof FLDir)
-	    return _dirs.contains((FLDir) i);
-	else if (i instanceof FLFile)
+	if (i instanceof FLDir) {
+	    synchronized (_dirs) {
+		return findEqualDir((FLDir) i) != null;
+	    }
+	} else if (i instanceof FLFile)
 	    return _files.contains((FLFile) i);
 	else
 	    return false;
@@ -730,6 +880,7 @@ public class FLDir implements Serializable, FLInterface {
      */
     public void pruneEmptyDirsFromTree() {
 	synchronized (_dirs) {
+	    _dirNames = null;
 	    for (int i = 0; i < _dirs.size(); i++) {
 		if (_dirs.get(i).isEmpty())
 		    _dirs.remove(i);
@@ -744,25 +895,41 @@ public class FLDir implements Serializable, FLInterface {
      * tree that are not shared.
      */
     public void pruneUnsharedSharesInTree() {
-	pruneUnsharedSharesInTree(isShared);
+	pruneUnsharedSharesInTree(isShared, null);
     }
 
-    private void pruneUnsharedSharesInTree(boolean isShared) {
+    /**
+     * Same as {@link #pruneUnsharedSharesInTree()}.
+     * @param pruned The deleted FLDirs and FLFiles are added to this.
+     */
+    void pruneUnsharedSharesInTree(List<FLInterface> pruned) {
+	pruneUnsharedSharesInTree(isShared, pruned);
+    }
+
+    private void pruneUnsharedSharesInTree(boolean isShared, List<FLInterface> pruned) {
 	synchronized (_files) {
+	    _fileNames = null;
+	    filesModified();
 	    Iterator<FLFile> i = _files.iterator();
 	    while (i.hasNext()) {
 		FLFile f = i.next();
-		if (!f.shared || !isShared)
+		if (!f.shared || !isShared) {
 		    i.remove();
+		    if (pruned != null)
+			pruned.add(f);
+		}
 	    }
 	}
 	synchronized (_dirs) {
+	    _dirNames = null;
 	    Iterator<FLDir> i = _dirs.iterator();
 	    while (i.hasNext()) {
 		FLDir d = i.next();
 		if (!d.isShared || !isShared) {
-		    d.pruneUnsharedSharesInTree(d.isShared && isShared);
+		    d.pruneUnsharedSharesInTree(d.isShared && isShared, pruned);
 		    i.remove();
+		    if (pruned != null)
+			pruned.add(d);
 		}
 	    }
 	}
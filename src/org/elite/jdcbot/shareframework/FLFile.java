@@ -21,6 +21,10 @@ package org.elite.jdcbot.shareframework;
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elite.jdcbot.util.GlobalFunctions;
 
 /**
  * Created on 04-Jun-08<br>
@@ -36,12 +40,26 @@ import java.io.Serializable;
  *
  * @author AppleGrew
  * @since 1.0
- * @version 0.2
+ * @version 0.3
  */
 public class FLFile implements Serializable, FLInterface {
     private static final long serialVersionUID = -2879885769034120896L;
     private final int HASH_CONST = 91;
 
+    /**
+     * Extension to the bit flags of the data types
+     * having that extension.
+     */
+    private static final Map<String, Integer> EXT_TYPES = new HashMap<String, Integer>();
+    static {
+	addExts(SearchSet.DataType.AUDIO, new String[] { "mp3", "mp2", "wav", "au", "rm", "mid", "sm", "ogg" });
+	addExts(SearchSet.DataType.COMPRESSED, new String[] { "zip", "arj", "rar", "lzh", "gz", "z", "arc", "pak", "bz2" });
+	addExts(SearchSet.DataType.DOCUMENT, new String[] { "doc", "txt", "wri", "pdf", "ps", "tex", "ppt", "pptx", "docx" });
+	addExts(SearchSet.DataType.EXECUTABLE, new String[] { "pm", "exe", "bat", "com", "sh", "class" });
+	addExts(SearchSet.DataType.PICTURE, new String[] { "gif", "jpg", "jpeg", "bmp", "pcx", "png", "wmf", "psd", "tif" });
+	addExts(SearchSet.DataType.VIDEO, new String[] { "mpg", "mpeg", "avi", "asf", "mov", "mp4", "mkv", "divx", "rmvb", "rm", "ogg" });
+    }
+
     /**
      * Hash of the file.
      */
@@ -49,7 +67,11 @@ public class FLFile implements Serializable, FLInterface {
     /**
      * The virtual name of the file.
      * This can be the same as actual name
-     * of the file or anything else.
+     * of the file or anything else. If you
+     * change this after adding the file to a
+     * FLDir then remove it from the FLDir and
+     * add it again, else it won't be found by
+     * its new name.
      */
     public String name;
     /**
@@ -64,7 +86,8 @@ public class FLFile implements Serializable, FLInterface {
      * If this is set to false then this entry won't show up
      * in the file list, but always execute {@link ShareManager#rebuildFileList()}
      * after changing this value else the file list will still won't reflect the
-     * changes.
+     * changes. Before that call {@link FLDir#filesChanged()} of its parent, as
+     * must be done after changing any field of a file already in a FLDir.
      */
     public boolean shared;
 
@@ -81,6 +104,18 @@ public class FLFile implements Serializable, FLInterface {
      */
     public FLDir parent;
 
+    /**
+     * Bit flags of the data types this file is of,
+     * see {@link #getTypeFlags()}. They are valid
+     * only as long as <i>name</i> is same as <i>typesOf</i>.
+     */
+    private int types = 0;
+    private volatile String typesOf = null;
+    /**
+     * Used by {@link ShareIndex}, which guards it.
+     */
+    transient int indexId = 0;
+
     public FLFile(){
 	this(null);
     }
@@ -108,6 +143,89 @@ public class FLFile implements Serializable, FLInterface {
 	return parent==null?null:parent.getDirPath()+"/"+name;
     }
 
+    private static void addExts(SearchSet.DataType type, String exts[]) {
+	for (String ext : exts) {
+	    Integer t = EXT_TYPES.get(ext);
+	    EXT_TYPES.put(ext, (t == null ? 0 : t) | flagOf(type));
+	}
+    }
+
+    static int flagOf(SearchSet.DataType type) {
+	return 1 << type.ordinal();
+    }
+
+    /**
+     * Works out the data types (audio, video, etc.) of this
+     * file, from its name and, for executables on non-Windows
+     * systems, from the file system. This is done automatically
+     * the first time the types are needed and whenever <i>name</i>
+     * is changed. Call this when the file itself has changed.
+     */
+    public void classify() {
+	String n = name;
+	int flags = typeFlagsOf(n);
+	if ((flags & flagOf(SearchSet.DataType.EXECUTABLE)) == 0 && path != null && !GlobalFunctions.isWindowsOS()) {
+	    File f = new File(path);
+	    if (f.exists() && f.canExecute())
+		flags |= flagOf(SearchSet.DataType.EXECUTABLE);
+	}
+	setTypeFlags(n, flags);
+    }
+
+    /**
+     * @param name Name of the file.
+     * @return Bit flags of the data types of the file as told by
+     * its extension alone, the file system is not looked at.
+     */
+    static int typeFlagsOf(String name) {
+	String lname = name.trim().toLowerCase();
+	int dot = lname.lastIndexOf('.');
+	Integer t = dot == -1 ? null : EXT_TYPES.get(lname.substring(dot + 1));
+	return t == null ? 0 : t;
+    }
+
+    /**
+     * Sets the types worked out earlier, like those saved
+     * in a {@link CompactFileList}, so that they need not be
+     * worked out again.
+     * @param flags As given by {@link #getTypeFlags()}.
+     */
+    void setTypeFlags(int flags) {
+	setTypeFlags(name, flags);
+    }
+
+    private void setTypeFlags(String n, int flags) {
+	types = flags;
+	typesOf = n;
+    }
+
+    /**
+     * @return Bit flags of the data types this file is of.
+     * Bit <i>n</i> is set for type whose ordinal() is <i>n</i>.
+     */
+    public int getTypeFlags() {
+	if (typesOf != name)
+	    classify();
+	return types;
+    }
+
+    /**
+     * @param type
+     * @return true if this file is of the type <i>type</i>. Every
+     * file is of type ANY and none is of type DIRECTORY or TTH.
+     */
+    public boolean isOfType(SearchSet.DataType type) {
+	switch (type) {
+	case ANY:
+	    return true;
+	case DIRECTORY:
+	case TTH:
+	    return false;
+	default:
+	    return (getTypeFlags() & flagOf(type)) != 0;
+	}
+    }
+
     /**
      * Two FLFile are equal if their <i>path</i> point to the
      * very same file and their parent directories too are same,
@@ -0,0 +1,300 @@
+/*
+ * FileListCache.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.shareframework;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elite.jdcbot.framework.GlobalObjects;
+import org.elite.jdcbot.framework.User;
+import org.slf4j.Logger;
+
+/**
+ * Created on 18-Oct-10<br>
+ * Other users' file lists kept in the RAM. Every file list is weighed by
+ * the heap it is estimated to take, see {@link FileListManager#estimateHeapSize()},
+ * and when the total goes over the budget the least recently used file lists
+ * are evicted. The file lists are weighed before the cache's lock is taken,
+ * so a large tree being weighed never holds up the other callers.
+ * <p>
+ * Evicted file lists are handed to {@link #spill(User, FileListManager)} on a
+ * thread of its own, so that the caller never waits on the disk. Till the
+ * spilling finishes the file list can still be got from here, as the file it
+ * is being spilled to may not be complete yet.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+abstract class FileListCache {
+	private static final Logger logger = GlobalObjects.getLogger(FileListCache.class);
+
+	static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	//Guarded by this.
+	private final Map<User, Entry> lists = new LinkedHashMap<User, Entry>(16, 0.75f, true);
+	private final Map<User, FileListManager> spilling = new HashMap<User, FileListManager>();
+	private long bytes = 0;
+	private long maxBytes = DEFAULT_MAX_BYTES;
+	private int maxCount = Integer.MAX_VALUE;
+
+	private final ExecutorService spiller = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread th = new Thread(r, "FileListCache-Spiller");
+					th.setDaemon(true);
+					return th;
+				}
+			});
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong loadNanos = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Saves an evicted file list so that it can be loaded back later.
+	 * This is called on the spilling thread.
+	 * @param u
+	 * @param flm
+	 * @throws Exception
+	 */
+	protected abstract void spill(User u, FileListManager flm) throws Exception;
+
+	/**
+	 * @param u
+	 * @return The file list of <i>u</i> or null if it is not in the RAM.
+	 */
+	FileListManager get(User u) {
+		FileListManager flm;
+		boolean reweigh;
+		synchronized (this) {
+			Entry e = lists.get(u);
+			if (e != null) {
+				flm = e.flm;
+				//It may have been inflated to a tree since it was weighed.
+				reweigh = e.compact != flm.isCompact();
+			} else {
+				//Still being spilled, it is taken back.
+				flm = spilling.get(u);
+				reweigh = flm != null;
+			}
+		}
+		if (flm == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		if (reweigh)
+			reinstate(u, new Entry(flm));
+		return flm;
+	}
+
+	/**
+	 * Adds or replaces the file list of <i>u</i> and evicts
+	 * other file lists if the budget is exceeded.
+	 * @param u
+	 * @param flm
+	 */
+	void put(User u, FileListManager flm) {
+		Entry e = new Entry(flm);
+		synchronized (this) {
+			put(u, e);
+		}
+	}
+
+	/**
+	 * Puts back <i>e</i>, weighed again, unless its file list has
+	 * been replaced or removed since it was got.
+	 * @param u
+	 * @param e
+	 */
+	private synchronized void reinstate(User u, Entry e) {
+		Entry current = lists.get(u);
+		if (current != null ? current.flm == e.flm : spilling.get(u) == e.flm)
+			put(u, e);
+	}
+
+	private void put(User u, Entry e) {
+		remove(u);
+		lists.put(u, e);
+		bytes += e.weight;
+		evictExcess();
+	}
+
+	/**
+	 * Removes the file list of <i>u</i> without spilling it.
+	 * @param u
+	 * @return The removed file list or null.
+	 */
+	synchronized FileListManager remove(User u) {
+		spilling.remove(u);
+		Entry e = lists.remove(u);
+		if (e == null)
+			return null;
+		bytes -= e.weight;
+		return e.flm;
+	}
+
+	/**
+	 * @return The file lists in the RAM, least recently used first.
+	 */
+	synchronized Map<User, FileListManager> getAll() {
+		Map<User, FileListManager> all = new LinkedHashMap<User, FileListManager>();
+		for (Map.Entry<User, Entry> e : lists.entrySet())
+			all.put(e.getKey(), e.getValue().flm);
+		return all;
+	}
+
+	/**
+	 * Evicts the least recently used file lists till at most <i>max</i> are left.
+	 * @param max
+	 */
+	synchronized void trimTo(int max) {
+		while (lists.size() > max)
+			evictEldest();
+	}
+
+	private void evictExcess() {
+		//The most recently used one is kept even if it alone is over the budget.
+		while (lists.size() > 1 && (bytes > maxBytes || lists.size() > maxCount))
+			evictEldest();
+	}
+
+	private void evictEldest() {
+		Iterator<Map.Entry<User, Entry>> i = lists.entrySet().iterator();
+		Map.Entry<User, Entry> eldest = i.next();
+		i.remove();
+		final User u = eldest.getKey();
+		final FileListManager flm = eldest.getValue().flm;
+		bytes -= eldest.getValue().weight;
+		evictions.incrementAndGet();
+
+		spilling.put(u, flm);
+		spiller.execute(new Runnable() {
+			public void run() {
+				try {
+					spill(u, flm);
+				} catch (Exception e) {
+					logger.error("Exception while spilling file list of " + u.username(), e);
+				}
+				synchronized (FileListCache.this) {
+					if (spilling.get(u) == flm)
+						spilling.remove(u);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param nanos Time taken to load a file list from the disk.
+	 */
+	void recordLoad(long nanos) {
+		loads.incrementAndGet();
+		loadNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * @param max Max number of bytes of the heap the file lists can take.
+	 */
+	synchronized void setMaxBytes(long max) {
+		if (max < 0)
+			throw new IllegalArgumentException("max cannot be negative.");
+		maxBytes = max;
+		evictExcess();
+	}
+
+	synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @param max Max number of file lists, whatever their size.
+	 */
+	synchronized void setMaxCount(int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("max must be at least 1.");
+		maxCount = max;
+		evictExcess();
+	}
+
+	synchronized long getBytes() {
+		return bytes;
+	}
+
+	synchronized int size() {
+		return lists.size();
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	long getLoads() {
+		return loads.get();
+	}
+
+	long getLoadNanos() {
+		return loadNanos.get();
+	}
+
+	long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuffer("FileListCache[lists:").append(size()).append(", bytes:").append(getBytes()).append(", hits:").append(
+				getHits()).append(", misses:").append(getMisses()).append(", evictions:").append(getEvictions()).append("]").toString();
+	}
+
+	private static class Entry {
+		final FileListManager flm;
+		final long weight;
+		final boolean compact;
+
+		/**
+		 * Weighing a tree walks all of it, so this must not be made
+		 * while holding the cache's lock.
+		 * @param flm
+		 */
+		Entry(FileListManager flm) {
+			this.flm = flm;
+			compact = flm.isCompact();
+			weight = flm.estimateHeapSize();
+		}
+	}
+}
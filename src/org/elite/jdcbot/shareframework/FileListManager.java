@@ -19,9 +19,19 @@
  */
 package org.elite.jdcbot.shareframework;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.elite.jdcbot.util.GlobalFunctions;
+
 /**
  * Created on 05-Jun-08<br>
  * This provides methods to manipulate,
@@ -31,13 +41,34 @@ import java.util.List;
  * delimited and are case sensitive. All
  * absolute virtual paths start with
  * /Root.
+ * <p>
+ * The file list may be held as a {@link CompactFileList}, which takes
+ * far less memory. It is searched as it is, and is converted to a FLDir
+ * tree only when the tree is needed, i.e. by {@link #getFilelist()} or
+ * the methods which browse or modify the file list.
  *
  * @author AppleGrew
  * @since 1.0
- * @version 0.1
+ * @version 0.2
  */
 public class FileListManager {
     private FLDir filelist = null;
+    /**
+     * Set only while the file list is
+     * held in compact form.
+     */
+    private volatile CompactFileList compact = null;
+    /**
+     * Held while saving into a file, instead of the monitor, so
+     * that the file list can be used while it is being saved.
+     */
+    private final Object saveLock = new Object();
+    /**
+     * The index kept of this file list, if any, which is updated
+     * when the names are changed here. It is emptied when the file
+     * list is made compact and rebuilt when it is made a tree again.
+     */
+    private volatile ShareIndex index = null;
 
     private FLDir pwd;
     private FLInterface cut_buffer = null;
@@ -49,10 +80,233 @@ public class FileListManager {
 	filelist = fl;
     }
 
-    public FLDir getFilelist() {
+    public FileListManager(CompactFileList cfl) {
+	compact = cfl;
+    }
+
+    void setIndex(ShareIndex index) {
+	this.index = index;
+    }
+
+    /**
+     * @return The file list. If it is held in compact form
+     * then it is converted to a FLDir tree first.
+     */
+    public synchronized FLDir getFilelist() {
+	if (compact != null) {
+	    filelist = compact.toTree();
+	    pwd = filelist;
+	    compact = null;
+	    ShareIndex si = index;
+	    if (si != null)
+		si.rebuild(filelist);
+	}
 	return filelist;
     }
 
+    /**
+     * Unlike comparing with {@link #getFilelist()} this never
+     * converts a compact file list to a tree.
+     * @param fl
+     * @return true if <i>fl</i> is the root of this file list.
+     */
+    public synchronized boolean isFilelist(FLDir fl) {
+	return fl != null && fl == filelist;
+    }
+
+    /**
+     * @return The file list in compact form, or null if it
+     * is held as a FLDir tree.
+     */
+    public synchronized CompactFileList getCompactFilelist() {
+	return compact;
+    }
+
+    /**
+     * Unlike {@link #getCompactFilelist()} this never waits
+     * for the file list to be converted from one form to the other.
+     * @return true if the file list is held in compact form.
+     */
+    boolean isCompact() {
+	return compact != null;
+    }
+
+    /**
+     * @return Approximate number of bytes of the heap the file list takes.
+     */
+    public synchronized long estimateHeapSize() {
+	if (compact != null)
+	    return compact.getHeapSize();
+	return filelist == null ? 0 : estimateHeapSize(filelist);
+    }
+
+    private static long estimateHeapSize(FLDir dir) {
+	//Object headers, fields and the lists of children, and the Strings' chars.
+	long size = 160 + 2L * dir.getName().length();
+	for (FLFile f : dir.getFiles()) {
+	    size += 96 + 2L * f.name.length();
+	    if (f.hash != null)
+		size += 40 + 2L * f.hash.length();
+	    if (f.path != null)
+		size += 40 + 2L * f.path.length();
+	}
+	for (FLDir d : dir.getSubDirs())
+	    size += estimateHeapSize(d);
+	return size;
+    }
+
+    /**
+     * Converts the file list to the compact form. Any FLDir or
+     * FLFile got from this earlier is no more part of the file list.
+     */
+    public synchronized void compact() {
+	if (filelist != null)
+	    setCompactFilelist(CompactFileList.fromTree(filelist));
+    }
+
+    /**
+     * Replaces the file list with <i>cfl</i>.
+     * @param cfl
+     */
+    public synchronized void setCompactFilelist(CompactFileList cfl) {
+	compact = cfl;
+	filelist = null;
+	pwd = null;
+	cut_buffer = null;
+	sel = null;
+	ShareIndex si = index;
+	if (si != null)
+	    si.rebuild(null);
+    }
+
+    /**
+     * Writes the file list to <i>out</i>, in the binary format of
+     * {@link CompactFileList#writeTo(OutputStream)}, and closes it.
+     * @param out
+     * @throws IOException
+     */
+    public void saveToStream(OutputStream out) throws IOException {
+	try {
+	    toCompact().writeTo(out);
+	} finally {
+	    out.close();
+	}
+    }
+
+    /**
+     * A CompactFileList is never modified, so it can be written out
+     * without holding the monitor.
+     * @return The file list in compact form, the tree is left as it is.
+     */
+    private synchronized CompactFileList toCompact() {
+	return compact != null ? compact : CompactFileList.fromTree(filelist);
+    }
+
+    /**
+     * Saves the file list into <i>file</i>. It is first written to
+     * a temporary file which then replaces <i>file</i>, so a failed
+     * save never leaves a half written <i>file</i>. Nothing is written
+     * if the file list is the one mapped from <i>file</i>.
+     * @param file
+     * @throws IOException
+     */
+    public void saveToFile(File file) throws IOException {
+	synchronized (saveLock) {
+	    CompactFileList cfl = toCompact();
+	    if (file.equals(cfl.getSource()))
+		return;
+	    File tmp = new File(file.getPath() + ".tmp");
+	    try {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+		try {
+		    cfl.writeTo(out);
+		} finally {
+		    out.close();
+		}
+	    } catch (IOException e) {
+		tmp.delete();
+		throw e;
+	    }
+	    if (!tmp.renameTo(file)) {
+		//On some OSes rename does not replace an existing file.
+		file.delete();
+		if (!tmp.renameTo(file)) {
+		    tmp.delete();
+		    throw new IOException("Could not replace " + file);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Reads a file list written by {@link #saveToStream(OutputStream)}
+     * or, for the older dumps, by {@link FLDir#saveObjectToStream(OutputStream, FLDir)}.
+     * The file list is read into the heap and <i>in</i> is closed.
+     * @param in
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws InstantiationException The object read is not a file list.
+     */
+    public static FileListManager readFromStream(InputStream in) throws IOException, ClassNotFoundException, InstantiationException {
+	if (!in.markSupported())
+	    in = new BufferedInputStream(in);
+	byte head[];
+	try {
+	    in.mark(CompactFileList.MAGIC.length);
+	    head = readHead(in);
+	    in.reset();
+	} catch (IOException e) {
+	    in.close();
+	    throw e;
+	}
+	if (!CompactFileList.hasMagic(head))
+	    return new FileListManager(FLDir.readObjectFromStream(in));
+	try {
+	    return new FileListManager(CompactFileList.read(in));
+	} finally {
+	    in.close();
+	}
+    }
+
+    /**
+     * Opens a file list saved in <i>file</i>. If it is in the binary format of
+     * {@link CompactFileList} then it is memory mapped, see {@link CompactFileList#open(File)},
+     * else it is read like {@link #readFromStream(InputStream)}. On Windows it is
+     * always read into the heap, as there a mapped file cannot be deleted or
+     * replaced, so the file list could never be saved again into <i>file</i>.
+     * @param file
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws InstantiationException The object read is not a file list.
+     */
+    public static FileListManager open(File file) throws IOException, ClassNotFoundException, InstantiationException {
+	byte head[];
+	InputStream in = new FileInputStream(file);
+	try {
+	    head = readHead(in);
+	} finally {
+	    in.close();
+	}
+	if (CompactFileList.hasMagic(head) && !GlobalFunctions.isWindowsOS())
+	    return new FileListManager(CompactFileList.open(file));
+	return readFromStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    /**
+     * @param in
+     * @return The first few bytes of <i>in</i>, enough to tell the format of the file list.
+     * @throws IOException
+     */
+    private static byte[] readHead(InputStream in) throws IOException {
+	byte head[] = new byte[CompactFileList.MAGIC.length];
+	int n = 0, r;
+	while (n < head.length && (r = in.read(head, n, head.length - n)) != -1)
+	    n += r;
+	return head;
+    }
+
     /**
      * Sets a file list and present working
      * directory to <i>fl</i>.
@@ -61,7 +315,8 @@ public class FileListManager {
      * is added as its sub-directory. This
      * can be null.
      */
-    public void setFilelist(FLDir fl) {
+    public synchronized void setFilelist(FLDir fl) {
+	compact = null;
 	if (fl != null && !fl.isRoot()) {
 	    FLDir root = new FLDir("Root", true, null);
 	    root.addSubDir(fl);
@@ -83,18 +338,25 @@ public class FileListManager {
      * returned only if file list has yet not been set.
      */
     public List<SearchResultSet> search(SearchSet For, final int maxResult, boolean all) {
-	if (filelist == null)
+	FLDir fl;
+	synchronized (this) {
+	    if (compact != null)
+		return compact.search(For, maxResult, all);
+	    fl = filelist;
+	}
+	if (fl == null)
 	    return null;
 	else
-	    return filelist.search(For, maxResult, all);
+	    return fl.search(For, maxResult, all);
     }
 
     public FLDir getPwd() {
+	getFilelist();
 	return pwd;
     }
 
     public void cd(String path) throws ShareException {
-	if (filelist == null)
+	if (getFilelist() == null)
 	    throw new ShareException(ShareException.Error.FILELIST_NOT_YET_SET);
 
 	FLInterface p = filelist.getChildInTree(getDirNamesFromPath(path), true);
@@ -104,7 +366,7 @@ public class FileListManager {
     }
 
     public void select(String path) throws ShareException {
-	if (filelist == null)
+	if (getFilelist() == null)
 	    throw new ShareException(ShareException.Error.FILELIST_NOT_YET_SET);
 
 	FLInterface s = filelist.getChildInTree(getDirNamesFromPath(path), false);
@@ -123,7 +385,7 @@ public class FileListManager {
     }
 
     public void paste() throws ShareException {
-	if (filelist == null)
+	if (getFilelist() == null)
 	    throw new ShareException(ShareException.Error.FILELIST_NOT_YET_SET);
 	if (pwd == null)
 	    pwd = filelist;
@@ -160,16 +422,26 @@ public class FileListManager {
      * @throws ShareException 
      */
     public void rename(String what, String to) throws ShareException {
-	if (filelist == null)
+	if (getFilelist() == null)
 	    throw new ShareException(ShareException.Error.FILELIST_NOT_YET_SET);
 	if (to.contains("/") || to.contains("\\"))
 	    throw new ShareException(ShareException.Error.INVALID_NAME);
 
 	FLInterface fd = filelist.getChildInTree(getDirNamesFromPath(what), false);
-	if (fd instanceof FLDir)
+	String oldName;
+	if (fd instanceof FLDir) {
+	    oldName = ((FLDir) fd).getName();
 	    ((FLDir) fd).setName(to);
-	else
-	    ((FLFile) fd).name = to;
+	} else {
+	    FLFile f = (FLFile) fd;
+	    oldName = f.name;
+	    f.name = to;
+	    if (f.parent != null)
+		f.parent.childRenamed(f);
+	}
+	ShareIndex si = index;
+	if (si != null)
+	    si.rename(fd, oldName);
     }
 
     /**
@@ -178,7 +450,7 @@ public class FileListManager {
      * @throws ShareException
      */
     public List<FLInterface> ls() throws ShareException {
-	if (filelist == null)
+	if (getFilelist() == null)
 	    throw new ShareException(ShareException.Error.FILELIST_NOT_YET_SET);
 	if (pwd == null)
 	    pwd = filelist;
@@ -190,7 +462,7 @@ public class FileListManager {
 
     public List<String> getDirNamesFromPath(String path) {
 	if (pwd == null)
-	    pwd = filelist;
+	    pwd = getFilelist();
 	if (!path.startsWith("/"))
 	    path = pwd.getDirPath() + "/" + path;
 
@@ -0,0 +1,290 @@
+/*
+ * FileListWriter.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.shareframework;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Created on 18-Oct-10<br>
+ * Writes the XML file list (files.xml) straight into a reusable byte buffer.
+ * The names are UTF-8 encoded and escaped char by char, so no String
+ * or byte array is made per directory or file.
+ * <p>
+ * Parts of the output can be captured, see {@link #startCapture()}, and
+ * written again later using {@link #cached(byte[])}.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+final class FileListWriter {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/**
+	 * Room left in the buffer for the longest a single char can be written as.
+	 */
+	private static final int MAX_CHAR_LEN = 8;
+
+	private final OutputStream out;
+	private final byte buf[] = new byte[BUFFER_SIZE];
+	private int pos = 0;
+	private final byte digits[] = new byte[20];
+	/**
+	 * Bytes drained to <i>out</i> till now.
+	 */
+	private long drained = 0;
+	private long reused = 0;
+
+	/**
+	 * Not null while capturing. It has the captured bytes
+	 * till <i>captureStart</i>; the rest are still in <i>buf</i>.
+	 */
+	private ByteArrayOutputStream capture = null;
+	private int captureStart;
+	private final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+
+	/**
+	 * @param out Where the file list is written. It is
+	 * not closed, only flushed by {@link #flush()}.
+	 */
+	FileListWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Writes the XML declaration and the opening FileListing tag.
+	 * @param CID
+	 * @param generator
+	 * @throws IOException
+	 */
+	void startListing(String CID, String generator) throws IOException {
+		raw("<?xml version=\"1.0\" encoding=\"utf-8\" standalone=\"yes\"?>\n<FileListing Version=\"1\" CID=\"");
+		escaped(CID == null ? "null" : CID);
+		raw("\" Base=\"/\" Generator=\"");
+		escaped(generator);
+		raw("\">\n");
+	}
+
+	void endListing() throws IOException {
+		raw("</FileListing>\n");
+	}
+
+	void startDirectory(int depth, String name) throws IOException {
+		indent(depth);
+		raw("<Directory Name=\"");
+		escaped(name);
+		raw("\">\n");
+	}
+
+	void endDirectory(int depth) throws IOException {
+		indent(depth);
+		raw("</Directory>\n");
+	}
+
+	void file(int depth, String name, long size, String TTH) throws IOException {
+		indent(depth);
+		raw("<File Name=\"");
+		escaped(name);
+		raw("\" Size=\"");
+		number(size);
+		raw("\" TTH=\"");
+		escaped(TTH);
+		raw("\"/>\n");
+	}
+
+	/**
+	 * Starts capturing the output, till {@link #endCapture()}.
+	 */
+	void startCapture() {
+		captured.reset();
+		capture = captured;
+		captureStart = pos;
+	}
+
+	/**
+	 * @return What was written since {@link #startCapture()}.
+	 */
+	byte[] endCapture() {
+		capture.write(buf, captureStart, pos - captureStart);
+		capture = null;
+		return captured.toByteArray();
+	}
+
+	/**
+	 * Writes again bytes captured earlier.
+	 * @param xml
+	 * @throws IOException
+	 */
+	void cached(byte xml[]) throws IOException {
+		if (xml.length > buf.length) {
+			drain();
+			out.write(xml);
+			drained += xml.length;
+		} else {
+			ensure(xml.length);
+			System.arraycopy(xml, 0, buf, pos, xml.length);
+			pos += xml.length;
+		}
+		reused += xml.length;
+	}
+
+	/**
+	 * @return Number of bytes written till now.
+	 */
+	long getWritten() {
+		return drained + pos;
+	}
+
+	/**
+	 * @return Number of bytes written using {@link #cached(byte[])} till now.
+	 */
+	long getReused() {
+		return reused;
+	}
+
+	/**
+	 * Writes out the buffer and flushes the stream.
+	 * @throws IOException
+	 */
+	void flush() throws IOException {
+		drain();
+		out.flush();
+	}
+
+	private void indent(int depth) throws IOException {
+		for (int i = 0; i < depth; i++) {
+			ensure(1);
+			buf[pos++] = '\t';
+		}
+	}
+
+	/**
+	 * @param s Must be ASCII, with nothing to escape, and shorter than the buffer.
+	 * @throws IOException
+	 */
+	private void raw(String s) throws IOException {
+		ensure(s.length());
+		ascii(s);
+	}
+
+	private void number(long n) throws IOException {
+		if (n < 0) {
+			ensure(1);
+			buf[pos++] = '-';
+		}
+		int d = digits.length;
+		do {
+			digits[--d] = (byte) ('0' + Math.abs(n % 10));
+			n /= 10;
+		} while (n != 0);
+		ensure(digits.length - d);
+		System.arraycopy(digits, d, buf, pos, digits.length - d);
+		pos += digits.length - d;
+	}
+
+	/**
+	 * Writes <i>s</i> UTF-8 encoded and escaped to be put
+	 * in a double quoted attribute value.
+	 * @param s
+	 * @throws IOException
+	 */
+	private void escaped(String s) throws IOException {
+		int len = s.length();
+		//Room is made once for the whole of a short string.
+		boolean isShort = len <= buf.length / MAX_CHAR_LEN;
+		if (isShort)
+			ensure(len * MAX_CHAR_LEN);
+		for (int i = 0; i < len; i++) {
+			if (!isShort)
+				ensure(MAX_CHAR_LEN);
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				switch (c) {
+				case '&':
+					ascii("&amp;");
+					break;
+				case '<':
+					ascii("&lt;");
+					break;
+				case '>':
+					ascii("&gt;");
+					break;
+				case '"':
+					ascii("&quot;");
+					break;
+				case '\t':
+					ascii("&#9;");
+					break;
+				case '\n':
+					ascii("&#10;");
+					break;
+				case '\r':
+					ascii("&#13;");
+					break;
+				default:
+					if (c >= 0x20) //Other control chars are not allowed in XML at all.
+						buf[pos++] = (byte) c;
+				}
+			} else if (c < 0x800) {
+				buf[pos++] = (byte) (0xC0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buf[pos++] = (byte) (0xF0 | (cp >> 18));
+				buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+			} else if ((c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) || c == 0xFFFE || c == 0xFFFF) {
+				buf[pos++] = '?'; //Unpaired surrogate, or not allowed in XML.
+			} else {
+				buf[pos++] = (byte) (0xE0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	/**
+	 * Caller must have ensured room for <i>s</i>.
+	 * @param s
+	 */
+	private void ascii(String s) {
+		for (int i = 0; i < s.length(); i++)
+			buf[pos++] = (byte) s.charAt(i);
+	}
+
+	private void ensure(int room) throws IOException {
+		if (pos + room > buf.length)
+			drain();
+	}
+
+	private void drain() throws IOException {
+		if (capture != null) {
+			capture.write(buf, captureStart, pos - captureStart);
+			captureStart = 0;
+		}
+		out.write(buf, 0, pos);
+		drained += pos;
+		pos = 0;
+	}
+}
@@ -21,6 +21,8 @@ package org.elite.jdcbot.shareframework;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -33,11 +35,12 @@ import org.xml.sax.helpers.DefaultHandler;
 /**
  * Created on 11-Jun-08<br>
  * Parses the XML filelist and converts
- * that to FLDir and FLFile tree.
+ * that to FLDir and FLFile tree, or to
+ * a CompactFileList.
  * 
  * @author AppleGrew
  * @since 1.0
- * @version 0.1
+ * @version 0.2
  */
 public class FilelistConverter extends ByteArrayInputStream {
     private FLDir fl = new FLDir("Root", true, null);
@@ -57,6 +60,25 @@ public class FilelistConverter extends ByteArrayInputStream {
 	return fl;
     }
 
+    /**
+     * Parses the file list straight into the compact form,
+     * without making the FLDir and FLFile tree.
+     * @return
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws IOException
+     */
+    public CompactFileList parseCompact() throws ParserConfigurationException, SAXException, IOException {
+	SAXParserFactory factory = SAXParserFactory.newInstance();
+	SAXParser parser = factory.newSAXParser();
+
+	CompactFilelistHandler handler = new CompactFilelistHandler();
+
+	parser.parse(this, handler);
+
+	return handler.builder == null ? new CompactFileList.Builder(null, false).build() : handler.builder.build();
+    }
+
     private class FilelistHandler extends DefaultHandler {
 	private FLDir pwd = fl;
 
@@ -90,4 +112,42 @@ public class FilelistConverter extends ByteArrayInputStream {
 	    }
 	}
     }
+
+    private class CompactFilelistHandler extends DefaultHandler {
+	private CompactFileList.Builder builder = null;
+	/**
+	 * Ids of the directories from root to
+	 * the present one.
+	 */
+	private List<Integer> dirs = new ArrayList<Integer>();
+
+	public void startElement(String uri, String lname, String qname, Attributes attrs) throws SAXException {
+
+	    if (qname.equalsIgnoreCase("Directory")) {
+		dirs.add(builder().addDir(dirs.get(dirs.size() - 1), attrs.getValue("Name"), true));
+
+	    } else if (qname.equalsIgnoreCase("FileListing")) {
+		String generator = attrs.getValue("Generator");
+		builder = new CompactFileList.Builder(attrs.getValue("CID"), generator != null && generator.toLowerCase().contains("jdcbot"));
+		dirs.clear();
+		dirs.add(0);
+
+	    } else if (qname.equalsIgnoreCase("File")) {
+		builder().addFile(dirs.get(dirs.size() - 1), attrs.getValue("Name"), Long.parseLong(attrs.getValue("Size")), 0, attrs
+			.getValue("TTH"), null, true);
+	    }
+	}
+
+	public void endElement(String uri, String lname, String qname) throws SAXException {
+	    if (qname.equalsIgnoreCase("Directory")) {
+		dirs.remove(dirs.size() - 1);
+	    }
+	}
+
+	private CompactFileList.Builder builder() throws SAXException {
+	    if (builder == null)
+		throw new SAXException("Directory or File found outside FileListing.");
+	    return builder;
+	}
+    }
 }
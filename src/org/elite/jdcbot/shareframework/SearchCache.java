@@ -0,0 +1,155 @@
+/*
+ * SearchCache.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.shareframework;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created on 18-Oct-10<br>
+ * Remembers the results of the most recent distinct searches in own
+ * file list, so that the same search made by many users is
+ * searched for just once. Searches are compared after normalizing them,
+ * so that (say) "Foo bar" and "bar  foo" are taken as the same search.
+ * <p>
+ * The cache must be cleared whenever the file list changes. To make
+ * sure a search which was running during the clearing does not put
+ * back a stale result, every result is put with the version of the cache
+ * obtained before searching, see {@link #getVersion()}.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+final class SearchCache {
+	static final int DEFAULT_SIZE = 1024;
+
+	private final Map<String, List<SearchResultSet>> cache = new LinkedHashMap<String, List<SearchResultSet>>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, List<SearchResultSet>> eldest) {
+			return size() > maxSize;
+		}
+	};
+	private int maxSize = DEFAULT_SIZE; //Guarded by this.
+	private long version = 0; //Guarded by this.
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param search
+	 * @param maxResult
+	 * @return The key under which results of <i>search</i> are cached.
+	 */
+	static String keyOf(SearchSet search, int maxResult) {
+		StringBuffer key = new StringBuffer();
+		key.append(search.data_type.getValue()).append('|').append(maxResult).append('|');
+		if (search.size_criteria != SearchSet.SizeCriteria.NONE)
+			key.append(search.size_criteria.ordinal()).append(search.size_unit.getValue()).append(':').append(search.size);
+		key.append('|');
+
+		if (search.data_type == SearchSet.DataType.TTH) {
+			key.append(search.string.trim().toUpperCase());
+		} else {
+			//The terms are matched independent of each other, so their order does not matter.
+			String terms[] = search.string.toLowerCase().trim().split(" ");
+			Arrays.sort(terms);
+			String prev = null;
+			for (String t : terms) {
+				if (t.length() == 0 || t.equals(prev))
+					continue;
+				key.append(t).append(' ');
+				prev = t;
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @param key
+	 * @return A copy of the cached results or null if there are none.
+	 */
+	List<SearchResultSet> get(String key) {
+		List<SearchResultSet> res;
+		synchronized (this) {
+			res = cache.get(key);
+		}
+		if (res == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return new ArrayList<SearchResultSet>(res);
+	}
+
+	/**
+	 * @param key
+	 * @param res
+	 * @param version The version got before searching.
+	 */
+	synchronized void put(String key, List<SearchResultSet> res, long version) {
+		if (version != this.version || maxSize == 0 || res == null)
+			return;
+		cache.put(key, new ArrayList<SearchResultSet>(res));
+	}
+
+	synchronized long getVersion() {
+		return version;
+	}
+
+	synchronized void clear() {
+		version++;
+		cache.clear();
+	}
+
+	/**
+	 * @param size Max number of searches to remember. 0 disables caching.
+	 */
+	synchronized void setMaxSize(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("size cannot be negative.");
+		maxSize = size;
+		if (size == 0)
+			cache.clear();
+		else
+			while (cache.size() > size)
+				cache.remove(cache.keySet().iterator().next());
+	}
+
+	synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+}
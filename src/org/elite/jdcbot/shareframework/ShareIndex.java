@@ -0,0 +1,675 @@
+/*
+ * ShareIndex.java
+ *
+ * Copyright (C) 2010 AppleGrew
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.elite.jdcbot.shareframework;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Created on 18-Oct-10<br>
+ * An inverted index of the names of the files and directories in own
+ * file list, so that searches need not walk the whole tree.
+ * <p>
+ * A search term matches a name if the name contains it (see
+ * GlobalFunctions.matches()), so the names are indexed by their
+ * trigrams, i.e. every three consecutive characters. A name can contain
+ * a term only if it has all the term's trigrams, so only the names in
+ * the shortest list of the term's trigrams need to be checked. Whole
+ * words are found the same way as any other substring. Terms shorter
+ * than a trigram are matched by scanning all the names, which still
+ * is much faster than walking the tree and usually stops soon at the
+ * result limit, since such terms match most names.
+ * <p>
+ * The files are also indexed by their TTH, for TTH searches and for
+ * uploads requested by TTH. When a file's hash is changed {@link #rehash(FLFile, String)}
+ * must be called.
+ * <p>
+ * Files are added to the index as they are shared. Whether a file or
+ * directory is shared is checked when searching, so un-sharing needs no
+ * update. When nodes are deleted from the tree {@link #remove(FLInterface)}
+ * must be called, and when renamed {@link #rename(FLInterface, String)}.
+ * Moving a node needs no update. The names are not copied, they are
+ * lower-cased as they are read.
+ * <p>
+ * This class is thread safe. Many searches can run at the same time.
+ *
+ * @author AppleGrew
+ * @since 1.2.0
+ * @version 0.1
+ */
+final class ShareIndex {
+	private static final int GRAM = 3;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	//Guarded by lock.
+	private FLDir root = null;
+	/**
+	 * The indexed FLFiles and FLDirs. Their position in this is their id,
+	 * which is kept in their <i>indexId</i> too, plus one so that zero
+	 * means not indexed. Ids below <i>end</i> have been given out, those
+	 * of removed entries are null here and are kept in <i>freeIds</i> to
+	 * be given out again.
+	 */
+	private FLInterface entries[] = new FLInterface[16];
+	private int end = 0;
+	private IntList freeIds = new IntList();
+	private int count = 0;
+	/**
+	 * Trigram to the ids of entries having it, in ascending order.
+	 */
+	private GramMap grams = new GramMap();
+	/**
+	 * Upper-cased TTH to the files having it. Usually there is just one.
+	 */
+	private Map<String, FLFile[]> hashes = new HashMap<String, FLFile[]>();
+
+	/**
+	 * Discards the index and indexes the whole tree under <i>root</i>.
+	 * @param root Root of own file list. If null then the index is simply emptied.
+	 */
+	void rebuild(FLDir root) {
+		List<FLInterface> nodes = new ArrayList<FLInterface>();
+		if (root != null)
+			collect(root, nodes);
+
+		lock.writeLock().lock();
+		try {
+			this.root = root;
+			entries = new FLInterface[Math.max(16, nodes.size())];
+			end = 0;
+			freeIds = new IntList();
+			count = 0;
+			grams = new GramMap();
+			hashes = new HashMap<String, FLFile[]>();
+			for (FLInterface fi : nodes)
+				index(fi);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void collect(FLDir dir, List<FLInterface> nodes) {
+		nodes.addAll(dir.getFiles());
+		for (FLDir d : dir.getSubDirs()) {
+			nodes.add(d);
+			collect(d, nodes);
+		}
+	}
+
+	/**
+	 * Indexes a file or directory just added to the tree.
+	 * @param fi
+	 */
+	void add(FLInterface fi) {
+		lock.writeLock().lock();
+		try {
+			if (idOf(fi) < 0)
+				index(fi);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Drops a file or directory just deleted from the tree. For a
+	 * directory all under it are dropped too.
+	 * @param fi
+	 */
+	void remove(FLInterface fi) {
+		lock.writeLock().lock();
+		try {
+			unindexTree(fi);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Updates the index after <i>fi</i> has been renamed.
+	 * @param fi
+	 * @param oldName The name <i>fi</i> had before.
+	 */
+	void rename(FLInterface fi, String oldName) {
+		lock.writeLock().lock();
+		try {
+			int id = idOf(fi);
+			if (id < 0)
+				return;
+			removeGrams(oldName, id);
+			addGrams(nameOf(fi), id);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Updates the TTH index after the hash of <i>f</i> has been changed.
+	 * @param f An indexed file.
+	 * @param oldHash The hash <i>f</i> had before.
+	 */
+	void rehash(FLFile f, String oldHash) {
+		lock.writeLock().lock();
+		try {
+			removeHash(oldHash, f);
+			addHash(f);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void addHash(FLFile f) {
+		if (f.hash == null || f.hash.length() == 0)
+			return;
+		String key = f.hash.toUpperCase();
+		FLFile files[] = hashes.get(key);
+		if (files == null) {
+			files = new FLFile[] { f };
+		} else {
+			for (FLFile ff : files)
+				if (ff == f)
+					return;
+			FLFile nfiles[] = new FLFile[files.length + 1];
+			System.arraycopy(files, 0, nfiles, 0, files.length);
+			nfiles[files.length] = f;
+			files = nfiles;
+		}
+		hashes.put(key, files);
+	}
+
+	private void removeHash(String hash, FLFile f) {
+		if (hash == null || hash.length() == 0)
+			return;
+		String key = hash.toUpperCase();
+		FLFile files[] = hashes.get(key);
+		if (files == null)
+			return;
+		List<FLFile> rest = new ArrayList<FLFile>(files.length);
+		for (FLFile ff : files)
+			if (ff != f)
+				rest.add(ff);
+		if (rest.size() == 0)
+			hashes.remove(key);
+		else
+			hashes.put(key, rest.toArray(new FLFile[rest.size()]));
+	}
+
+	/**
+	 * @param fl
+	 * @return true if <i>fl</i> is the file list which is indexed.
+	 */
+	boolean isIndexOf(FLDir fl) {
+		lock.readLock().lock();
+		try {
+			return fl != null && fl == root;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * This is the same as {@link FLDir#getFileInTreeByHash(String, boolean)} on
+	 * the indexed file list.
+	 * @param hash
+	 * @param all If true then files which are not shared are returned too.
+	 * @return null if no such file is found.
+	 */
+	FLFile getFileByHash(String hash, boolean all) {
+		lock.readLock().lock();
+		try {
+			FLFile files[] = hashes.get(hash.trim().toUpperCase());
+			if (files != null)
+				for (FLFile f : files)
+					if (all || isVisible(f))
+						return f;
+			return null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void index(FLInterface fi) {
+		int id;
+		if (freeIds.size > 0)
+			id = freeIds.pop();
+		else {
+			if (end == entries.length) {
+				FLInterface e[] = new FLInterface[end * 2];
+				System.arraycopy(entries, 0, e, 0, end);
+				entries = e;
+			}
+			id = end++;
+		}
+		entries[id] = fi;
+		setId(fi, id + 1);
+		count++;
+		if (fi instanceof FLFile)
+			addHash((FLFile) fi);
+		addGrams(nameOf(fi), id);
+	}
+
+	private void unindexTree(FLInterface fi) {
+		int id = idOf(fi);
+		if (id >= 0) {
+			if (fi instanceof FLFile)
+				removeHash(((FLFile) fi).hash, (FLFile) fi);
+			removeGrams(nameOf(fi), id);
+			entries[id] = null;
+			setId(fi, 0);
+			freeIds.add(id);
+			count--;
+		}
+		if (fi instanceof FLDir) {
+			FLDir d = (FLDir) fi;
+			for (FLFile f : d.getFiles())
+				unindexTree(f);
+			for (FLDir sd : d.getSubDirs())
+				unindexTree(sd);
+		}
+	}
+
+	private void addGrams(String name, int id) {
+		int e = trimmedEnd(name);
+		for (int i = trimmedStart(name); i + GRAM <= e; i++) {
+			long g = gramAt(name, i);
+			IntList ids = grams.get(g);
+			if (ids == null) {
+				ids = new IntList();
+				grams.put(g, ids);
+			}
+			ids.insert(id); //The same trigram may occur more than once in a name, it is added once.
+		}
+	}
+
+	private void removeGrams(String name, int id) {
+		int e = trimmedEnd(name);
+		for (int i = trimmedStart(name); i + GRAM <= e; i++) {
+			IntList ids = grams.get(gramAt(name, i));
+			if (ids != null)
+				ids.remove(id);
+		}
+	}
+
+	/**
+	 * @param fi
+	 * @return The id of <i>fi</i>, or -1 if it is not in the index.
+	 */
+	private int idOf(FLInterface fi) {
+		int id = (fi instanceof FLFile ? ((FLFile) fi).indexId : ((FLDir) fi).indexId) - 1;
+		return id >= 0 && id < end && entries[id] == fi ? id : -1;
+	}
+
+	private static void setId(FLInterface fi, int indexId) {
+		if (fi instanceof FLFile)
+			((FLFile) fi).indexId = indexId;
+		else
+			((FLDir) fi).indexId = indexId;
+	}
+
+	private static String nameOf(FLInterface fi) {
+		return fi instanceof FLFile ? ((FLFile) fi).name : ((FLDir) fi).getName();
+	}
+
+	/**
+	 * @param s
+	 * @param i
+	 * @return The lower-cased trigram of <i>s</i> starting at <i>i</i>.
+	 */
+	private static long gramAt(String s, int i) {
+		return ((long) Character.toLowerCase(s.charAt(i)) << 32) | ((long) Character.toLowerCase(s.charAt(i + 1)) << 16)
+				| Character.toLowerCase(s.charAt(i + 2));
+	}
+
+	//The bounds of s.trim(), without making the String.
+	private static int trimmedStart(String s) {
+		int i = 0;
+		while (i < s.length() && s.charAt(i) <= ' ')
+			i++;
+		return i;
+	}
+
+	private static int trimmedEnd(String s) {
+		int i = s.length();
+		while (i > 0 && s.charAt(i - 1) <= ' ')
+			i--;
+		return i;
+	}
+
+	/**
+	 * Same as name.trim().toLowerCase().contains(term), but without
+	 * copying <i>name</i>.
+	 * @param name
+	 * @param term A lower-cased term.
+	 * @return true if the name contains <i>term</i>, ignoring case.
+	 */
+	private static boolean contains(String name, String term) {
+		int last = trimmedEnd(name) - term.length();
+		next: for (int i = trimmedStart(name); i <= last; i++) {
+			for (int k = 0; k < term.length(); k++)
+				if (Character.toLowerCase(name.charAt(i + k)) != term.charAt(k))
+					continue next;
+			return true;
+		}
+		return false;
+	}
+
+	private static String toLowerCase(String s) {
+		char c[] = new char[s.length()];
+		for (int i = 0; i < c.length; i++)
+			c[i] = Character.toLowerCase(s.charAt(i));
+		return new String(c);
+	}
+
+	/**
+	 * Searches the shared files and directories. The results are same
+	 * as that of {@link FLDir#search(SearchSet, int, boolean)}, though maybe
+	 * in a different order.
+	 * @param For
+	 * @param maxResult Set this to &lt;=0 to get all the results.
+	 * @param fl The file list to search in.
+	 * @return null if <i>fl</i> is not the indexed file list.
+	 */
+	List<SearchResultSet> search(SearchSet For, int maxResult, FLDir fl) {
+		if (For.data_type == SearchSet.DataType.TTH)
+			return searchHash(For, maxResult, fl);
+
+		List<String> terms = new ArrayList<String>();
+		boolean scan = false;
+		//Lower-cased a char at a time, the same as the names.
+		for (String t : toLowerCase(For.string).trim().split(" ")) {
+			t = t.trim();
+			if (t.length() == 0 || terms.contains(t))
+				continue;
+			terms.add(t);
+			if (t.length() < GRAM)
+				scan = true;
+		}
+
+		List<FLInterface> found = new ArrayList<FLInterface>();
+		lock.readLock().lock();
+		try {
+			if (fl == null || fl != root)
+				return null;
+
+			if (terms.size() == 0 || scan) {
+				//An empty search matches everything.
+				for (int id = 0; id < end && !full(found, maxResult); id++) {
+					FLInterface fi = entries[id];
+					if (fi != null && matchesAny(nameOf(fi), terms) && accepts(fi, For))
+						found.add(fi);
+				}
+			} else {
+				BitSet seen = new BitSet(end);
+				for (String t : terms) {
+					IntList ids = candidates(t);
+					for (int i = 0; ids != null && i < ids.size && !full(found, maxResult); i++) {
+						int id = ids.get(i);
+						FLInterface fi = entries[id];
+						if (!seen.get(id) && contains(nameOf(fi), t) && accepts(fi, For)) {
+							seen.set(id);
+							found.add(fi);
+						}
+					}
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return toSearchResults(found);
+	}
+
+	private List<SearchResultSet> searchHash(SearchSet For, int maxResult, FLDir fl) {
+		List<FLInterface> found = new ArrayList<FLInterface>();
+		lock.readLock().lock();
+		try {
+			if (fl == null || fl != root)
+				return null;
+			FLFile files[] = hashes.get(For.string.trim().toUpperCase());
+			if (files != null)
+				for (FLFile f : files)
+					if (!full(found, maxResult) && accepts(f, For))
+						found.add(f);
+		} finally {
+			lock.readLock().unlock();
+		}
+		return toSearchResults(found);
+	}
+
+	/**
+	 * @param term At least {@link #GRAM} characters long.
+	 * @return The shortest list of ids among those of the trigrams of <i>term</i>,
+	 * or null if any of its trigrams is not in the index.
+	 */
+	private IntList candidates(String term) {
+		IntList shortest = null;
+		for (int i = 0; i + GRAM <= term.length(); i++) {
+			IntList ids = grams.get(gramAt(term, i));
+			if (ids == null)
+				return null;
+			if (shortest == null || ids.size < shortest.size)
+				shortest = ids;
+		}
+		return shortest;
+	}
+
+	private static boolean full(List<FLInterface> found, int maxResult) {
+		return maxResult > 0 && found.size() >= maxResult;
+	}
+
+	private static boolean matchesAny(String name, List<String> terms) {
+		if (terms.size() == 0)
+			return true;
+		for (String t : terms)
+			if (contains(name, t))
+				return true;
+		return false;
+	}
+
+	private static boolean accepts(FLInterface fi, SearchSet For) {
+		if (fi instanceof FLFile) {
+			FLFile f = (FLFile) fi;
+			if (For.data_type == SearchSet.DataType.DIRECTORY || !FLDir.fulfillsSizeCriteria(f, For))
+				return false;
+			if (For.data_type != SearchSet.DataType.TTH && !f.isOfType(For.data_type))
+				return false;
+		} else if (For.data_type != SearchSet.DataType.DIRECTORY && For.data_type != SearchSet.DataType.ANY)
+			return false;
+		return isVisible(fi);
+	}
+
+	/**
+	 * @param fi
+	 * @return true if <i>fi</i> and all directories above it are shared.
+	 */
+	private static boolean isVisible(FLInterface fi) {
+		FLDir d;
+		if (fi instanceof FLFile) {
+			if (!((FLFile) fi).shared)
+				return false;
+			d = ((FLFile) fi).parent;
+		} else
+			d = (FLDir) fi;
+		//Un-sharing a directory hides all under it.
+		for (; d != null; d = d.getParent())
+			if (!d.isShared())
+				return false;
+		return true;
+	}
+
+	private static List<SearchResultSet> toSearchResults(List<FLInterface> found) {
+		List<SearchResultSet> res = new ArrayList<SearchResultSet>(found.size());
+		for (FLInterface fi : found) {
+			SearchResultSet srs = new SearchResultSet();
+			if (fi instanceof FLDir) {
+				srs.isDir = true;
+				srs.name = ((FLDir) fi).getDirPath();
+				srs.size = 0;
+				srs.TTH = "";
+			} else {
+				FLFile f = (FLFile) fi;
+				srs.isDir = false;
+				srs.name = f.getVirtualPath();
+				srs.size = f.size;
+				srs.TTH = f.hash;
+			}
+			res.add(srs);
+		}
+		return res;
+	}
+
+	/**
+	 * @return Number of files and directories indexed.
+	 */
+	int size() {
+		lock.readLock().lock();
+		try {
+			return count;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * A growable array of ints, to avoid boxing every id.
+	 */
+	private static final class IntList {
+		int data[] = new int[4];
+		int size = 0;
+
+		void add(int i) {
+			if (size == data.length) {
+				int d[] = new int[size * 2];
+				System.arraycopy(data, 0, d, 0, size);
+				data = d;
+			}
+			data[size++] = i;
+		}
+
+		int get(int i) {
+			return data[i];
+		}
+
+		int pop() {
+			return data[--size];
+		}
+
+		/**
+		 * Adds <i>i</i> to this sorted list, if it is not in it already.
+		 * @param i
+		 */
+		void insert(int i) {
+			if (size == 0 || data[size - 1] < i) { //Ids are mostly given out in ascending order.
+				add(i);
+				return;
+			}
+			int at = find(i);
+			if (data[at] == i)
+				return;
+			add(0);
+			System.arraycopy(data, at, data, at + 1, size - 1 - at);
+			data[at] = i;
+		}
+
+		/**
+		 * Removes <i>i</i> from this sorted list, if it is in it.
+		 * @param i
+		 */
+		void remove(int i) {
+			int at = find(i);
+			if (at < size && data[at] == i) {
+				System.arraycopy(data, at + 1, data, at, size - 1 - at);
+				size--;
+			}
+		}
+
+		/**
+		 * @param i
+		 * @return The position of the first element not less than <i>i</i>.
+		 */
+		private int find(int i) {
+			int lo = 0, hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (data[mid] < i)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+	}
+
+	/**
+	 * A hash table from trigrams to their ids, with open addressing so
+	 * that the trigrams need not be boxed. Trigrams are never removed
+	 * from it, when all their ids are removed their lists are left empty,
+	 * until the index is rebuilt.
+	 */
+	private static final class GramMap {
+		private long keys[] = new long[64];
+		//A null value marks a free slot.
+		private IntList values[] = new IntList[64];
+		private int size = 0;
+
+		IntList get(long key) {
+			int mask = keys.length - 1;
+			for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask)
+				if (keys[i] == key)
+					return values[i];
+			return null;
+		}
+
+		/**
+		 * @param key Must not be in the map already.
+		 * @param value
+		 */
+		void put(long key, IntList value) {
+			if (4 * (size + 1) > 3 * keys.length)
+				grow();
+			int mask = keys.length - 1;
+			int i = slot(key, mask);
+			while (values[i] != null)
+				i = (i + 1) & mask;
+			keys[i] = key;
+			values[i] = value;
+			size++;
+		}
+
+		private void grow() {
+			long oldKeys[] = keys;
+			IntList oldValues[] = values;
+			keys = new long[oldKeys.length * 2];
+			values = new IntList[oldKeys.length * 2];
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++)
+				if (oldValues[i] != null)
+					put(oldKeys[i], oldValues[i]);
+		}
+
+		private static int slot(long key, int mask) {
+			return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+		}
+	}
+}
@@ -20,9 +20,9 @@
 package org.elite.jdcbot.shareframework;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
@@ -32,15 +32,14 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Vector;
+import java.util.zip.DeflaterOutputStream;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -86,7 +85,7 @@ public class ShareManager {
 	/**
 	 * This is an abstraction of the file list. This is
 	 * saved into 'fileListHash' under {@link #miscDir}
-	 * directory using serialization.
+	 * directory in the binary format of {@link CompactFileList}.
 	 * <p>
 	 * <b>Note:</b> You must call {@link #setDirs(String, String) setDirs(String, String)} as soon as
 	 * possible as many exceptions could be thrown and it is actually undefined what will happen if
@@ -99,7 +98,16 @@ public class ShareManager {
 	 * </ol>
 	 */
 	protected FileListManager ownFL;
-	protected Map<User, FileListManager> FLs;
+	/**
+	 * Other users' file lists in the RAM. Evicted ones are saved
+	 * into {@link #downloadFLDir}.
+	 */
+	private final FileListCache FLs = new FileListCache() {
+		@Override
+		protected void spill(User u, FileListManager flm) throws IOException {
+			saveOthersFL(u, flm);
+		}
+	};
 
 	protected HashManager hashMan;
 	protected List<ShareManagerListener> listeners;
@@ -108,8 +116,34 @@ public class ShareManager {
 	protected UploadStreamManager uploadStreamManager;
 	private String hashingFile;
 	private double hashSpeed = -1;
-	private int maximumFLtoKeepInRAM = 5;
 	protected ShareWorker shareWorker = null;
+	/**
+	 * Results of recent searches in own file list. It is cleared
+	 * whenever own file list changes.
+	 */
+	private final SearchCache searchCache = new SearchCache();
+	/**
+	 * Index of the names in own file list. It is empty while own file
+	 * list is compact.
+	 */
+	private final ShareIndex shareIndex = new ShareIndex();
+	/**
+	 * See {@link #setCompactOwnFileList(boolean)}.
+	 */
+	private volatile boolean compactOwnFL = true;
+	//Of the last build of the XML file list.
+	private volatile long flBytesWritten = 0;
+	private volatile long flBytesReused = 0;
+	/**
+	 * See {@link #setCacheFileListFragments(boolean)}.
+	 */
+	private volatile boolean cacheFLFragments = true;
+	/**
+	 * Own files.xml.bz2 in the RAM. It is replaced, as a whole, on
+	 * every rebuild of the file list.
+	 */
+	private volatile EncodedFileList encodedFL = null;
+	private final Object encodedFLLock = new Object();
 
 	protected BotInterface boi;
 
@@ -130,7 +164,7 @@ public class ShareManager {
 	 */
 	public ShareManager(BotInterface boi) {
 		ownFL = new FileListManager();
-		FLs = Collections.synchronizedMap(new HashMap<User, FileListManager>());
+		ownFL.setIndex(shareIndex);
 		listeners = Collections.synchronizedList(new ArrayList<ShareManagerListener>());
 		hashMan = new HashManager();
 		uploadStreamManager = new UploadStreamManager();
@@ -165,8 +199,15 @@ public class ShareManager {
 
 		File fl = new File(miscDir.getPath() + File.separator + fileListHash);
 		boolean otherException = false;
+		boolean legacy = false;
 		try {
-			ownFL.setFilelist(FLDir.readObjectFromStream(new BufferedInputStream(new FileInputStream(fl))));
+			FileListManager saved = FileListManager.readFromStream(new BufferedInputStream(new FileInputStream(fl)));
+			CompactFileList cfl = saved.getCompactFilelist();
+			legacy = cfl == null;
+			if (cfl != null && compactOwnFL)
+				ownFL.setCompactFilelist(cfl);
+			else
+				ownFL.setFilelist(saved.getFilelist());
 		} catch (FileNotFoundException e) {
 			ownFL.setFilelist(new FLDir("Root", true, null));
 			ownFL.getFilelist().setCID(generateUniqueCID());
@@ -185,11 +226,24 @@ public class ShareManager {
 			fl.delete();
 		}
 
-		if (ownFL.getFilelist() == null) {
-			ownFL.setFilelist(new FLDir("Root", true, null));
-			ownFL.getFilelist().setCID(generateUniqueCID());
+		if (!ownFL.isCompact()) {
+			if (ownFL.getFilelist() == null) {
+				ownFL.setFilelist(new FLDir("Root", true, null));
+				ownFL.getFilelist().setCID(generateUniqueCID());
+			}
+			shareIndex.rebuild(ownFL.getFilelist());
 		}
+		searchCache.clear();
+		autoCompactOwnFL(null);
 
+		if (legacy) {
+			//Dumps older than the binary format are converted on their first load.
+			try {
+				saveOwnFL();
+			} catch (IOException e) {
+				logger.error("Exception in init()", e);
+			}
+		}
 	}
 
 	public void addListener(ShareManagerListener sml) {
@@ -216,21 +270,26 @@ public class ShareManager {
 		synchronized (ownFL) {
 			ownFL.setFilelist(new FLDir("Root", true, null));
 			ownFL.getFilelist().setCID(generateUniqueCID());
+			shareIndex.rebuild(ownFL.getFilelist());
+			searchCache.clear();
+			autoCompactOwnFL(null);
 			File f = new File(miscDir.getPath() + File.separator + fileListHash);
 			f.delete();
 		}
 	}
 
 	protected void saveOwnFL() throws FileNotFoundException, IOException {
-		FLDir.saveObjectToStream(new BufferedOutputStream(new FileOutputStream(miscDir.getPath() + File.separator + fileListHash)), ownFL
-				.getFilelist());
+		ownFL.saveToFile(new File(miscDir.getPath() + File.separator + fileListHash));
 	}
 
 	/**
 	 * The number of file lists to keep in the
 	 * RAM. Excess file lists are unloaded and saved
 	 * into secondary storage disk. When required it
-	 * will be automatically restored back into the RAM. 
+	 * will be automatically restored back into the RAM.
+	 * <p>
+	 * By default there is no limit on the number, only on
+	 * the RAM they take, see {@link #setMaximumFLBytesInRAM(long)}.
 	 * @param count The number of file lists to keep including
 	 * bot's own. This can have a minimum value of 2. If it
 	 * is not then it is ignored.
@@ -238,16 +297,90 @@ public class ShareManager {
 	public void setMaximumFLtoKeepInRAM(int count) {
 		if (count < 2)
 			return;
-		maximumFLtoKeepInRAM = count;
+		FLs.setMaxCount(count - 1);
+	}
+
+	/**
+	 * The RAM other users' file lists can take. When it is exceeded
+	 * the least recently used file lists are unloaded and saved into
+	 * secondary storage disk, in the background. The RAM a file list
+	 * takes is estimated, see {@link FileListManager#estimateHeapSize()}.
+	 * @param bytes Default is 64 MB.
+	 */
+	public void setMaximumFLBytesInRAM(long bytes) {
+		FLs.setMaxBytes(bytes);
+	}
+
+	public long getMaximumFLBytesInRAM() {
+		return FLs.getMaxBytes();
+	}
+
+	/**
+	 * @return Estimated RAM taken by other users' file lists now.
+	 */
+	public long getFLBytesInRAM() {
+		return FLs.getBytes();
+	}
+
+	/**
+	 * @return Number of times a file list asked for using
+	 * {@link #getOthersFileListManager(User)} was in the RAM.
+	 */
+	public long getFLCacheHits() {
+		return FLs.getHits();
+	}
+
+	/**
+	 * @return Number of times a file list asked for using
+	 * {@link #getOthersFileListManager(User)} was not in the RAM.
+	 */
+	public long getFLCacheMisses() {
+		return FLs.getMisses();
+	}
+
+	/**
+	 * @return Number of file lists loaded back from the disk.
+	 */
+	public long getFLLoadCount() {
+		return FLs.getLoads();
+	}
+
+	/**
+	 * @return Total time, in milliseconds, taken to load file lists back from the disk.
+	 */
+	public long getFLLoadTime() {
+		return FLs.getLoadNanos() / 1000000;
+	}
+
+	/**
+	 * @return Number of file lists unloaded from the RAM.
+	 */
+	public long getFLEvictionCount() {
+		return FLs.getEvictions();
+	}
+
+	/**
+	 * @return The other users' file lists which are in the RAM, least recently
+	 * used first. This is a copy, changing it does not change what is in the RAM,
+	 * use {@link #putOthersFL(User, FileListManager)} and {@link #freeOthersFL(User)} for that.
+	 */
+	protected Map<User, FileListManager> getOthersFLs() {
+		return FLs.getAll();
+	}
+
+	/**
+	 * Keeps <i>flm</i> in the RAM as the file list of <i>u</i>. This may
+	 * unload other file lists to keep within the limits.
+	 * @param u
+	 * @param flm
+	 */
+	protected void putOthersFL(User u, FileListManager flm) {
+		FLs.put(u, flm);
 	}
 
 	protected void saveOthersFLs() throws FileNotFoundException, IOException {
-		Set<User> users = FLs.keySet();
-		synchronized (FLs) {
-			for (User u : users)
-				FLDir.saveObjectToStream(new BufferedOutputStream(new FileOutputStream(downloadFLDir.getPath() + File.separator
-						+ (u.getClientID().isEmpty() ? u.username() : u.getClientID()))), FLs.get(u).getFilelist());
-		}
+		for (Map.Entry<User, FileListManager> e : FLs.getAll().entrySet())
+			saveOthersFL(e.getKey(), e.getValue());
 	}
 
 	/**
@@ -257,9 +390,15 @@ public class ShareManager {
 	 * @throws IOException
 	 */
 	protected void saveOthersFL(User u) throws FileNotFoundException, IOException {
+		FileListManager flm = FLs.getAll().get(u);
+		if (flm != null)
+			saveOthersFL(u, flm);
+	}
+
+	private void saveOthersFL(User u, FileListManager flm) throws FileNotFoundException, IOException {
 		File fl = new File(downloadFLDir.getPath() + File.separator + (u.getClientID().isEmpty() ? u.username() : u.getClientID()));
 		fl.deleteOnExit();
-		FLDir.saveObjectToStream(new BufferedOutputStream(new FileOutputStream(fl)), FLs.get(u).getFilelist());
+		flm.saveToFile(fl);
 	}
 
 	/**
@@ -270,36 +409,35 @@ public class ShareManager {
 	 * @throws ClassNotFoundException
 	 * @throws InstantiationException
 	 * @return A new instance of FileListManager with the file list of User <i>u</i>
-	 * loaded from the secondary disk.
+	 * loaded from the secondary disk. The file list is memory mapped, so only the
+	 * parts of it which are used are read, except on Windows, see {@link FileListManager#open(File)}.
 	 */
 	protected FileListManager loadOthersFL(User u) throws FileNotFoundException, IOException, ClassNotFoundException,
 	InstantiationException {
-		FLDir root =
-			FLDir.readObjectFromStream(new BufferedInputStream(new FileInputStream(downloadFLDir.getPath() + File.separator
-					+ (u.getClientID().isEmpty() ? u.username() : u.getClientID()))));
-		return new FileListManager(root);
+		return FileListManager.open(new File(downloadFLDir.getPath() + File.separator
+				+ (u.getClientID().isEmpty() ? u.username() : u.getClientID())));
 	}
 
 	protected void freeOthersFL(User u) {
+		FileListManager flm = FLs.remove(u);
+		if (flm == null)
+			return;
 		try {
-			saveOthersFL(u);
+			saveOthersFL(u, flm);
 		} catch (FileNotFoundException e) {
-			logger.error("Exception in loadOthersFL()", e);
+			logger.error("Exception in freeOthersFL()", e);
 		} catch (IOException e) {
-			logger.error("Exception in loadOthersFL()", e);
+			logger.error("Exception in freeOthersFL()", e);
 		}
-		FLs.remove(u);
 	}
 
+	/**
+	 * Unloads the least recently used file lists, in the
+	 * background, till at most <i>max</i> are left in the RAM.
+	 * @param max
+	 */
 	protected void freeExcessOthersFLs(int max) {
-		synchronized (FLs) {
-			if (FLs.size() <= max)
-				return;
-			User users[] = FLs.keySet().toArray(new User[0]);
-			int i = 0;
-			while (FLs.size() > max)
-				freeOthersFL(users[i++]);
-		}
+		FLs.trimTo(max);
 	}
 
 	public void close() {
@@ -319,47 +457,157 @@ public class ShareManager {
 	 * @throws FileNotFoundException 
 	 */
 	synchronized public void rebuildFileList() throws FileNotFoundException, IOException {
-		OutputStream bos = new BufferedOutputStream(new FileOutputStream(miscDir.getPath() + File.separator + fileList));
-		bos.write("BZ".getBytes());
-		bos = new CBZip2OutputStream(bos);
-		writeFL(bos, ownFL.getFilelist());
+		searchCache.clear();
+		ByteArrayOutputStream bz2 = new ByteArrayOutputStream();
+		bz2.write("BZ".getBytes());
+		OutputStream bos = new CBZip2OutputStream(bz2);
+		CompactFileList cfl;
+		FLDir fl = null;
+		synchronized (ownFL) {
+			cfl = ownFL.getCompactFilelist();
+			if (cfl == null)
+				fl = ownFL.getFilelist();
+		}
+		if (cfl != null)
+			writeFL(bos, cfl);
+		else
+			writeFL(bos, fl);
 		bos.close();
+		byte b[] = bz2.toByteArray();
+
+		OutputStream fos = new FileOutputStream(miscDir.getPath() + File.separator + fileList);
+		try {
+			fos.write(b);
+		} finally {
+			fos.close();
+		}
+		//Uploads already running go on sending the list they started with.
+		encodedFL = new EncodedFileList(b);
 		boi.updateShareSize();
 	}
 
+	/**
+	 * Writes the file list in XML. The lines of the files of every directory
+	 * are cached in it, so only the directories whose files changed since the
+	 * last time are written anew, see {@link FLDir#filesChanged()}.
+	 * <p>
+	 * The cached lines are kept on the heap for as long as the tree is, so
+	 * together they take about as much as the whole uncompressed XML file list.
+	 * Use {@link #setCacheFileListFragments(boolean)} to not keep them.
+	 * <p>
+	 * This is not called while own file list is compact, see
+	 * {@link #setCompactOwnFileList(boolean)}.
+	 * @param out
+	 * @param flRoot
+	 * @throws IOException
+	 */
 	protected void writeFL(OutputStream out, FLDir flRoot) throws IOException {
-		out.write("<?xml version=\"1.0\" encoding=\"utf-8\" standalone=\"yes\"?>\n".getBytes());
-		out.write(("<FileListing Version=\"1\" CID=\"" + flRoot.getCID() + "\" Base=\"/\" Generator=\"" + GlobalObjects.CLIENT_NAME + " "
-				+ GlobalObjects.VERSION + "\">\n").getBytes());
-		writeDir2FL(out, flRoot, "");
-		out.write("</FileListing>\n".getBytes());
+		FileListWriter w = new FileListWriter(out);
+		w.startListing(flRoot.getCID(), GlobalObjects.CLIENT_NAME + " " + GlobalObjects.VERSION);
+		writeDir2FL(w, flRoot, 0);
+		w.endListing();
+		w.flush();
+		flBytesWritten = w.getWritten();
+		flBytesReused = w.getReused();
+	}
+
+	/**
+	 * Writes the file list in XML straight from the compact form. Nothing
+	 * is cached, it is cheap enough to write it all every time.
+	 * @param out
+	 * @param cfl
+	 * @throws IOException
+	 */
+	private void writeFL(OutputStream out, CompactFileList cfl) throws IOException {
+		FileListWriter w = new FileListWriter(out);
+		w.startListing(cfl.getCID(), GlobalObjects.CLIENT_NAME + " " + GlobalObjects.VERSION);
+		int skipped = cfl.writeXml(w);
+		w.endListing();
+		w.flush();
+		flBytesWritten = w.getWritten();
+		flBytesReused = 0;
+		if (skipped != 0)
+			notifyMiscMsg(skipped + " files not written to file list, since they are not shared or their hashes are not set.");
+	}
+
+	/**
+	 * @return Size in bytes of the XML file list (before compression) when it was last built.
+	 */
+	public long getFileListBytesWritten() {
+		return flBytesWritten;
 	}
 
-	private void writeDir2FL(OutputStream out, FLDir dir, String indentTabs) throws UnsupportedEncodingException, IOException {
+	/**
+	 * The reused bytes are those cached on the heap since the previous
+	 * build, see {@link #writeFL(OutputStream, FLDir)}. This is always 0
+	 * if the cache is turned off or own file list is compact.
+	 * @return Bytes of the XML file list which were reused from its previous build,
+	 * when it was last built.
+	 */
+	public long getFileListBytesReused() {
+		return flBytesReused;
+	}
+
+	/**
+	 * Whether the XML lines of the files of every shared directory are
+	 * kept on the heap, with the directory, so that they need not be written
+	 * again when the file list is rebuilt. They take about as much heap as the
+	 * whole uncompressed XML file list, for as long as own file list is a
+	 * FLDir tree. A compact own file list (see {@link #setCompactOwnFileList(boolean)})
+	 * keeps none.
+	 * @param cache If false then the lines cached till now are dropped and none
+	 * are kept from then on. Default is true.
+	 */
+	synchronized public void setCacheFileListFragments(boolean cache) {
+		cacheFLFragments = cache;
+		if (cache)
+			return;
+		FLDir fl = null;
+		synchronized (ownFL) {
+			if (!ownFL.isCompact())
+				fl = ownFL.getFilelist();
+		}
+		if (fl != null)
+			fl.releaseFilesXmlInTree();
+	}
+
+	public boolean isCacheFileListFragments() {
+		return cacheFLFragments;
+	}
+
+	private void writeDir2FL(FileListWriter w, FLDir dir, int depth) throws IOException {
 		if (!dir.isShared())
 			return;
 
 		//if (!dir.isRoot() || (dir.isRoot() && dir.hasFile()))
 		if (!dir.isRoot())
-			out.write((indentTabs + "<Directory Name=\"" + dir.getName() + "\">\n").getBytes("utf-8"));
+			w.startDirectory(depth, dir.getName());
 
-		FLDir dirs[] = dir.getSubDirs().toArray(new FLDir[0]);
-		for (FLDir d : dirs) {
-			writeDir2FL(out, d, indentTabs + "\t");
+		for (FLDir d : dir.getSubDirs()) {
+			writeDir2FL(w, d, depth + 1);
 		}
 
-		FLFile files[] = dir.getFiles().toArray(new FLFile[0]);
-		for (FLFile f : files) {
-			if (f.shared && f.hash != null && !f.hash.isEmpty()) {
-				out.write((indentTabs + "\t" + "<File Name=\"" + f.name + "\" Size=\"" + f.size + "\" TTH=\"" + f.hash + "\"/>\n")
-						.getBytes("utf-8"));
-			} else
-				notifyMiscMsg(f + " not written to file list, since it is not shared or its hash is not set.");
+		boolean cache = cacheFLFragments;
+		byte xml[] = cache ? dir.getFilesXml(depth + 1) : null;
+		if (xml != null) {
+			w.cached(xml);
+		} else {
+			int version = dir.getFilesVersion();
+			if (cache)
+				w.startCapture();
+			for (FLFile f : dir.getFiles()) {
+				if (f.shared && f.hash != null && !f.hash.isEmpty()) {
+					w.file(depth + 1, f.name, f.size, f.hash);
+				} else
+					notifyMiscMsg(f + " not written to file list, since it is not shared or its hash is not set.");
+			}
+			if (cache)
+				dir.setFilesXml(w.endCapture(), depth + 1, version);
 		}
 
 		//if (!dir.isRoot() || (dir.isRoot() && dir.hasFile()))
 		if (!dir.isRoot())
-			out.write((indentTabs + "</Directory>\n").getBytes());
+			w.endDirectory(depth);
 	}
 
 	/**
@@ -374,9 +622,11 @@ public class ShareManager {
 	 * @return null is never returned.
 	 */
 	public List<SearchResultSet> searchOwnFileList(SearchSet search, final int maxResult, User user, double certainity) {
-		synchronized (ownFL) {
-			return getOwnFL(user, certainity).search(search, maxResult, false);
-		}
+		FLDir fl = getOwnFL(user, certainity);
+		if (fl != null && !ownFL.isFilelist(fl)) //Some other file list is shown to this user, that is not cached.
+			return fl.search(search, maxResult, false);
+		List<SearchResultSet> res = cachedSearch(search, maxResult);
+		return res == null ? new ArrayList<SearchResultSet>() : res;
 	}
 
 	/**
@@ -390,11 +640,166 @@ public class ShareManager {
 	 * @return
 	 */
 	public List<SearchResultSet> searchOwnFileList(SearchSet search, final int maxResult) {
+		return cachedSearch(search, maxResult);
+	}
+
+	private List<SearchResultSet> cachedSearch(SearchSet search, int maxResult) {
+		if (searchCache.getMaxSize() == 0)
+			return indexedSearch(search, maxResult);
+
+		String key = SearchCache.keyOf(search, maxResult);
+		List<SearchResultSet> res = searchCache.get(key);
+		if (res != null)
+			return res;
+		long version = searchCache.getVersion();
+		res = indexedSearch(search, maxResult);
+		if (res != null)
+			searchCache.put(key, res, version);
+		return res;
+	}
+
+	/**
+	 * @param search
+	 * @param maxResult
+	 * @return null if own file list has not been set yet.
+	 */
+	private List<SearchResultSet> indexedSearch(SearchSet search, int maxResult) {
+		CompactFileList cfl;
+		FLDir fl = null;
+		synchronized (ownFL) {
+			cfl = ownFL.getCompactFilelist();
+			if (cfl == null)
+				fl = ownFL.getFilelist();
+		}
+		//Not holding ownFL's lock while searching, so that searches can run in parallel.
+		//FLDir is thread safe and CompactFileList is immutable.
+		if (cfl != null)
+			return cfl.search(search, maxResult, false);
+		if (fl == null)
+			return null;
+		List<SearchResultSet> res = shareIndex.search(search, maxResult, fl);
+		if (res == null) //Not answerable from the index.
+			res = fl.search(search, maxResult, false);
+		return res;
+	}
+
+	/**
+	 * Rebuilds the index used to search own file list. New shares, renames
+	 * using {@link #getOwnFileListManager()} and pruning are indexed
+	 * automatically, but if you add, delete or rename files or directories
+	 * directly in the FLDir tree of own file list then you must call this.
+	 * A compact own file list is not indexed.
+	 */
+	public void reindexOwnFileList() {
+		synchronized (ownFL) {
+			if (!ownFL.isCompact())
+				shareIndex.rebuild(ownFL.getFilelist());
+			searchCache.clear();
+		}
+	}
+
+	/**
+	 * By default own file list is kept in the compact form ({@link CompactFileList})
+	 * whenever no hashing is in progress, as it takes a fraction of the heap a FLDir
+	 * tree takes. Searches and uploads are then served from it as it is, and the XML
+	 * file list is written from it. The tree is made again only when it is needed,
+	 * i.e. while new shares are hashed or updated, or when you use it through
+	 * {@link #getOwnFileListManager()}, and it is converted back once the share is
+	 * changed using the methods of this class or {@link #compactOwnFileList()} is called.
+	 * <p>
+	 * A compact own file list is searched by scanning all its names, which is
+	 * fast, but not as fast as using the index kept of the tree. So, if your share
+	 * is searched far more often than the heap matters, turn this off.
+	 * @param compact If false then own file list is kept as a FLDir tree.
+	 */
+	public void setCompactOwnFileList(boolean compact) {
+		compactOwnFL = compact;
+		if (compact)
+			autoCompactOwnFL(null);
+		else
+			synchronized (ownFL) {
+				ownFL.getFilelist();
+			}
+	}
+
+	public boolean isCompactOwnFileList() {
+		return compactOwnFL;
+	}
+
+	/**
+	 * Converts own file list to the compact form now. This is done
+	 * automatically when the share is changed using the methods of
+	 * this class, if {@link #setCompactOwnFileList(boolean)} is set.
+	 * Nothing is done while hashing is in progress, as the hashing
+	 * works on the tree. Any FLDir or FLFile got from own file list
+	 * earlier is no more part of it.
+	 */
+	public void compactOwnFileList() {
 		synchronized (ownFL) {
-			return ownFL.search(search, maxResult, false);
+			if (shareWorker == null)
+				ownFL.compact();
 		}
 	}
 
+	/**
+	 * Converts own file list to the compact form, if that is set.
+	 * @param finished The ShareWorker which has just finished, if any. The
+	 * file list is not converted while any other is at work.
+	 */
+	private void autoCompactOwnFL(ShareWorker finished) {
+		if (!compactOwnFL)
+			return;
+		synchronized (ownFL) {
+			if (shareWorker == null || shareWorker == finished)
+				ownFL.compact();
+		}
+	}
+
+	/**
+	 * Empties the cache of search results. This is done automatically
+	 * when the share is changed using the methods of this class, but
+	 * if you modify own file list directly (say, using {@link #getOwnFileListManager()})
+	 * then you must call this (or {@link #rebuildFileList()}).
+	 */
+	public void invalidateSearchCache() {
+		searchCache.clear();
+	}
+
+	/**
+	 * @param size Max number of distinct searches whose results are
+	 * remembered. 0 disables the cache. Default is 1024.
+	 */
+	public void setSearchCacheSize(int size) {
+		searchCache.setMaxSize(size);
+	}
+
+	public int getSearchCacheSize() {
+		return searchCache.getMaxSize();
+	}
+
+	/**
+	 * @return Number of searches in own file list answered from the cache.
+	 */
+	public long getSearchCacheHits() {
+		return searchCache.getHits();
+	}
+
+	/**
+	 * @return Number of searches in own file list which were not in the cache.
+	 */
+	public long getSearchCacheMisses() {
+		return searchCache.getMisses();
+	}
+
+	/**
+	 * @return Fraction (0 to 1) of searches in own file list answered from the cache.
+	 */
+	public double getSearchCacheHitRatio() {
+		long hits = searchCache.getHits();
+		long total = hits + searchCache.getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
 	/**
 	 * @return Percentage completion of hashing task.
 	 */
@@ -486,18 +891,34 @@ public class ShareManager {
 			throw new FileNotFoundException("Not supported");
 
 		FLDir root = getOwnFL(u, 1.0);
+		CompactFileList cfl = null;
+		if (root == null || ownFL.isFilelist(root)) {
+			synchronized (ownFL) {
+				cfl = ownFL.getCompactFilelist();
+				if (cfl == null)
+					root = ownFL.getFilelist();
+			}
+		}
 
+		//From a compact file list f is a copy, so the changes made to it below are not kept.
 		FLFile f;
 		String tfile = file;
 		if (tfile.startsWith("TTH/")) {//file is hash
 			tfile = tfile.substring(4);
-			f = root.getFileInTreeByHash(tfile, true);
+			if (cfl != null)
+				f = cfl.getFileByHash(tfile, true);
+			else if (shareIndex.isIndexOf(root))
+				f = shareIndex.getFileByHash(tfile, true);
+			else
+				f = root.getFileInTreeByHash(tfile, true);
 
 		} else {//file is not hash
+			String rootName = cfl != null ? "Root" : root.getName();
 			tfile = tfile.replace('\\', '/');
-			if (!tfile.startsWith("/" + root.getName()) || !tfile.startsWith(root.getName()))
-				tfile = root.getName() + (tfile.startsWith("/") ? "" : "/") + tfile;
-			FLInterface fd = root.getChildInTree(FLDir.getDirNamesFromPath(tfile), false);
+			if (!tfile.startsWith("/" + rootName) || !tfile.startsWith(rootName))
+				tfile = rootName + (tfile.startsWith("/") ? "" : "/") + tfile;
+			List<String> path = FLDir.getDirNamesFromPath(tfile);
+			FLInterface fd = cfl != null ? cfl.getChildInTree(path, false) : root.getChildInTree(path, false);
 			if (fd == null || fd instanceof FLDir)
 				throw new FileNotFoundException("File not found");
 			f = (FLFile) fd;
@@ -518,6 +939,8 @@ public class ShareManager {
 			}
 			if (!ff.exists()) {
 				f.shared = false;
+				if (f.parent != null)
+					f.parent.filesChanged();
 				throw new FileNotFoundException("File not found");
 			}
 
@@ -535,7 +958,11 @@ public class ShareManager {
 			due =
 				new DUEntity(DUEntity.Type.FILE, file, start, Len, uploadStreamManager.getInputEntityStream(u, new BufferedInputStream(
 						new ByteArrayInputStream(b))));
-			f.size = b.length;
+			if (f.size != b.length) {
+				f.size = b.length;
+				if (f.parent != null)
+					f.parent.filesChanged();
+			}
 		}
 
 		if (start >= f.size)
@@ -556,31 +983,78 @@ public class ShareManager {
 		return due;
 	}
 
+	/**
+	 * Own file list is served from the RAM. It is read from
+	 * the disk only the first time, if it has not been rebuilt since
+	 * this was started.
+	 * @param u
+	 * @return
+	 * @throws FileNotFoundException
+	 */
 	public DUEntity getFileList(User u) throws FileNotFoundException {
-
 		byte b[] = getVirtualFLData(u);
-		InputStream ifl;
-		long len;
-		if (b == null) {
+		if (b == null)
+			b = getEncodedFileList().bz2;
 
-			File fl = new File(miscDir.getPath() + File.separator + "files.xml.bz2");
-			if (!fl.exists() && fl.canRead())
-				throw new FileNotFoundException("User file list not found or is not readable.");
+		DUEntity due = new DUEntity(DUEntity.Type.FILELIST, "", 0, b.length, new ByteArrayInputStream(b));
+		due.in();
 
-			ifl = new FileInputStream(fl);
-			len = fl.length();
+		return due;
+	}
 
-		} else {
-			len = b.length;
-			ifl = new ByteArrayInputStream(b);
-		}
+	/**
+	 * Like {@link #getFileList(User)} but the stream is already
+	 * compressed for sending in ZLIG mode, i.e. deflated. Own file
+	 * list is deflated only once after every rebuild.
+	 * @param u
+	 * @return null if the file list for <i>u</i> is not own file list,
+	 * see {@link #getVirtualFLData(User)}.
+	 * @throws FileNotFoundException
+	 */
+	public DUEntity getZlibFileList(User u) throws FileNotFoundException {
+		if (getVirtualFLData(u) != null)
+			return null;
 
-		DUEntity due = new DUEntity(DUEntity.Type.FILELIST, "", 0, len, new BufferedInputStream(ifl));
+		EncodedFileList enc = getEncodedFileList();
+		DUEntity due = new DUEntity(DUEntity.Type.FILELIST, "", 0, enc.bz2.length, new ByteArrayInputStream(enc.zlib()));
 		due.in();
 
 		return due;
 	}
 
+	private EncodedFileList getEncodedFileList() throws FileNotFoundException {
+		EncodedFileList enc = encodedFL;
+		if (enc != null)
+			return enc;
+		synchronized (encodedFLLock) {
+			if (encodedFL == null) {
+				File fl = new File(miscDir.getPath() + File.separator + fileList);
+				if (!fl.exists() || !fl.canRead())
+					throw new FileNotFoundException("User file list not found or is not readable.");
+				try {
+					byte b[] = new byte[(int) fl.length()];
+					DataInputStream in = new DataInputStream(new FileInputStream(fl));
+					try {
+						in.readFully(b);
+					} finally {
+						in.close();
+					}
+					encodedFL = new EncodedFileList(b);
+				} catch (FileNotFoundException e) {
+					throw e;
+				} catch (IOException e) {
+					logger.error("Exception in getEncodedFileList()", e);
+					throw new FileNotFoundException("User file list could not be read.");
+				}
+			}
+			return encodedFL;
+		}
+	}
+
+	/**
+	 * Own file list may be held in the compact form, see {@link #setCompactOwnFileList(boolean)}.
+	 * @return The manager of own file list.
+	 */
 	public FileListManager getOwnFileListManager() {
 		return ownFL;
 	}
@@ -595,10 +1069,9 @@ public class ShareManager {
 		FileListManager flm = FLs.get(u);
 		if (flm == null) {
 			try {
+				long start = System.nanoTime();
 				flm = loadOthersFL(u);
-				if (FLs.size() + 1 > maximumFLtoKeepInRAM) {
-					freeExcessOthersFLs(FLs.size() + 1 - maximumFLtoKeepInRAM + 1);
-				}
+				FLs.recordLoad(System.nanoTime() - start);
 				FLs.put(u, flm);
 			} catch (FileNotFoundException e) {
 				logger.error("Exception in getOthersFileListManager()", e);
@@ -622,6 +1095,9 @@ public class ShareManager {
 	 */
 	public long getOwnShareSize(boolean all) {
 		synchronized (ownFL) {
+			CompactFileList cfl = ownFL.getCompactFilelist();
+			if (cfl != null)
+				return cfl.getSize(all);
 			if (ownFL.getFilelist() == null)
 				return 0;
 			return ownFL.getFilelist().getSize(all);
@@ -674,19 +1150,27 @@ public class ShareManager {
 	public void removeShare(List<String> fORd) throws ShareException {
 		String pathNotFound = null;
 
-		FLDir fl = ownFL.getFilelist();
-		for (String p : fORd) {
-			p = sanitizeVirtualPath(p);
-			FLInterface fd = fl.getChildInTree(FLDir.getDirNamesFromPath(p), false);
-			if (fd != null) {
-				if (fd instanceof FLDir)
-					((FLDir) fd).setShared(false);
-				else
-					((FLFile) fd).shared = false;
-			} else {
-				pathNotFound = p;
-				notifyMiscMsg("Path: '" + p + "' not found and hence cannot be removed.");
+		synchronized (ownFL) {
+			FLDir fl = ownFL.getFilelist();
+			for (String p : fORd) {
+				p = sanitizeVirtualPath(p);
+				FLInterface fd = fl.getChildInTree(FLDir.getDirNamesFromPath(p), false);
+				if (fd != null) {
+					if (fd instanceof FLDir)
+						((FLDir) fd).setShared(false);
+					else {
+						FLFile f = (FLFile) fd;
+						f.shared = false;
+						if (f.parent != null)
+							f.parent.filesChanged();
+					}
+				} else {
+					pathNotFound = p;
+					notifyMiscMsg("Path: '" + p + "' not found and hence cannot be removed.");
+				}
 			}
+			searchCache.clear();
+			autoCompactOwnFL(null);
 		}
 		try {
 			rebuildFileList();
@@ -717,9 +1201,9 @@ public class ShareManager {
 	 */
 	protected String sanitizeVirtualPath(String p) {
 		p = p.replace('\\', '/');
-		FLDir fl = ownFL.getFilelist();
-		if (!p.startsWith("/" + fl.getName()))
-			p = "/" + fl.getName() + (p.startsWith("/") ? "" : "/") + p;
+		//The root is always named so, this need not make a compact file list a tree.
+		if (!p.startsWith("/Root"))
+			p = "/Root" + (p.startsWith("/") ? "" : "/") + p;
 		return p;
 	}
 
@@ -753,7 +1237,12 @@ public class ShareManager {
 	 */
 	public void pruneUnsharedShares() {
 		synchronized (ownFL) {
-			ownFL.getFilelist().pruneUnsharedSharesInTree();
+			List<FLInterface> pruned = new ArrayList<FLInterface>();
+			ownFL.getFilelist().pruneUnsharedSharesInTree(pruned);
+			for (FLInterface fi : pruned)
+				shareIndex.remove(fi);
+			searchCache.clear();
+			autoCompactOwnFL(null);
 		}
 	}
 
@@ -821,6 +1310,7 @@ public class ShareManager {
 				if (!myparent.addSubDir(me)) {//then it already exists.
 					return myparent.getDirInTree(me);
 				}
+				shareIndex.add(me);
 				return me;
 			}
 		}
@@ -905,6 +1395,7 @@ public class ShareManager {
 				if (ownFL.getFilelist() == null) {
 					ownFL.setFilelist(new FLDir("Root", true, null));
 					ownFL.getFilelist().setCID(generateUniqueCID());
+					shareIndex.rebuild(ownFL.getFilelist());
 				}
 				root = inside;
 				if (root == null)
@@ -921,8 +1412,11 @@ public class ShareManager {
 							d = d.getCanonicalFile();
 							inc_dir.add(d);
 							FLDir fld = new FLDir(d.getName(), false, root);
+							if (root.addSubDir(fld))
+								shareIndex.add(fld);
+							else //then it already exists.
+								fld = root.getDirInTree(fld);
 							inc_fldir.add(fld);
-							root.addSubDir(fld);
 						} catch (IOException e) {
 							logger.error("Exception in ShareAdder()", e);
 						}
@@ -995,7 +1489,11 @@ public class ShareManager {
 						if (accept)
 							updateShare.add(tflf.getVirtualPath());
 					}
-					tflf.shared = accept;
+					if (tflf.shared != accept) {
+						tflf.shared = accept;
+						if (tflf.parent != null)
+							tflf.parent.filesChanged();
+					}
 					if (accept)
 						reason = "Already shared.";
 					//Done so that for next iteration we need to search lesser elements.
@@ -1041,22 +1539,26 @@ public class ShareManager {
 			if (success) {
 				FLFile flf = new FLFile(f.getName(), f.length(), f.getAbsolutePath(), f.lastModified(), true, null);
 				flf.hash = hash;
+				flf.classify();
 
 				boolean added = false;
 				for (int i = 0; i < inc_dir.size(); i++) {
 					File d = inc_dir.get(i);
 					if (isSubOf(f, d)) {
 						FLDir parent = createParentFLDirs(f, d, inc_fldir.get(i));
-						parent.addFile(flf);
+						if (parent.addFile(flf))
+							shareIndex.add(flf);
 						flf.parent = parent;
 						added = true;
 						break;
 					}
 				}
 				if (!added) {//This file was not a sub of any dirs above, so add it in the Root.
-					root.addFile(flf);
+					if (root.addFile(flf))
+						shareIndex.add(flf);
 					flf.parent = root;
 				}
+				searchCache.clear();
 			}
 			notifyHashingOfFileComplete(f.getAbsolutePath(), success, e);
 		}
@@ -1098,6 +1600,7 @@ public class ShareManager {
 
 		private void finish() {
 			try {
+				autoCompactOwnFL(this);
 				saveOwnFL();
 				rebuildFileList();
 			} catch (FileNotFoundException e) {
@@ -1177,7 +1680,14 @@ public class ShareManager {
 
 		public void onFileHashed(File f, String hash, boolean success, HashException e) {
 			if (success) {
-				_updateShares.get(f).hash = hash;
+				FLFile flf = _updateShares.get(f);
+				String oldHash = flf.hash;
+				flf.hash = hash;
+				flf.classify();
+				if (flf.parent != null)
+					flf.parent.filesChanged();
+				shareIndex.rehash(flf, oldHash);
+				searchCache.clear();
 			}
 			notifyHashingOfFileComplete(f.getAbsolutePath(), success, e);
 		}
@@ -1193,6 +1703,7 @@ public class ShareManager {
 
 		private void finish() {
 			try {
+				autoCompactOwnFL(this);
 				saveOwnFL();
 				rebuildFileList();
 			} catch (FileNotFoundException e) {
@@ -1220,11 +1731,9 @@ public class ShareManager {
 		public void close() {
 			FilelistConverter fc = new FilelistConverter(this.toByteArray());
 			try {
-				FLDir root = fc.parse();
+				//Kept compact until someone browses it.
+				CompactFileList root = fc.parseCompact();
 				_u.setClientID(root.getCID());
-				if (FLs.size() + 1 >= maximumFLtoKeepInRAM) {
-					freeExcessOthersFLs(FLs.size() + 1 - maximumFLtoKeepInRAM + 1);
-				}
 				FLs.put(_u, new FileListManager(root));
 				notifyListeners(true, null);
 			} catch (ParserConfigurationException e) {
@@ -1347,11 +1856,41 @@ public class ShareManager {
 	 * See comment in the code of
 	 * {@link org.elite.jdcbot.framework.jDCBot#onSearch(String,int,SearchSet) onSearch(String,int,SearchSet)}
 	 * to exactly how this probability is calculated.
-	 * @return Root FLDir of the file list.
+	 * @return Root FLDir of the file list, or null for own file list. Null
+	 * is returned by default, so that a compact own file list need not be
+	 * made a tree.
 	 */
 	protected FLDir getOwnFL(User u, double certainity) {
-		synchronized (ownFL) {
-			return ownFL.getFilelist();
+		return null;
+	}
+
+	/**
+	 * Own file list as sent to the other users.
+	 */
+	private static class EncodedFileList {
+		final byte bz2[];
+		private byte zlib[] = null; //Guarded by this.
+
+		EncodedFileList(byte bz2[]) {
+			this.bz2 = bz2;
+		}
+
+		/**
+		 * @return <i>bz2</i> deflated, as sent in ZLIG mode.
+		 */
+		synchronized byte[] zlib() {
+			if (zlib == null) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(bz2.length + bz2.length / 100 + 64);
+				DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+				try {
+					out.write(bz2);
+					out.close();
+				} catch (IOException e) {
+					throw new RuntimeException(e); //Never thrown by ByteArrayOutputStream.
+				}
+				zlib = bytes.toByteArray();
+			}
+			return zlib;
 		}
 	}
 }